@@ -0,0 +1,63 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.atlassian.crowd.audit.AuditLogEntry;
+import org.opennetworking.crowd.listener.AuditIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
+
+/**
+ * Finding a user's last GitHub ID in their audit history, as the listener does for every
+ * attribute event, for histories of growing size.
+ * <p>
+ * {@code uncached} reads and indexes the whole history (the first event for a user, or one
+ * after the index expired); {@code cached} is every event after that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuditLookupBenchmark {
+    private static final String USERNAME = "benchmark-user";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int historySize;
+
+    @Param({"none"})
+    public String auditLatency;
+
+    private AuditIndex index;
+
+    @Setup
+    public void setup() {
+        SyntheticAuditService auditService = new SyntheticAuditService(historySize);
+        auditService.setLatency(Latency.parse(auditLatency));
+        index = new AuditIndex(auditService);
+    }
+
+    @Benchmark
+    public Optional<AuditLogEntry> uncached() {
+        index.invalidate(USERNAME);
+        return index.getLastEntry(USERNAME, GITHUB_ID_ATTRIBUTE);
+    }
+
+    @Benchmark
+    public Optional<AuditLogEntry> cached() {
+        return index.getLastEntry(USERNAME, GITHUB_ID_ATTRIBUTE);
+    }
+}
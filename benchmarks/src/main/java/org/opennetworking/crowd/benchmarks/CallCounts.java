@@ -0,0 +1,37 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calls made to a stand-in, by method.
+ */
+public class CallCounts {
+    private final ConcurrentMap<String, LongAdder> counts = Maps.newConcurrentMap();
+
+    public void increment(String method) {
+        counts.computeIfAbsent(method, m -> new LongAdder()).increment();
+    }
+
+    public long get(String method) {
+        LongAdder count = counts.get(method);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long total() {
+        return counts.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = Maps.newTreeMap();
+        counts.forEach((method, count) -> snapshot.put(method, count.sum()));
+        return snapshot;
+    }
+
+    public void reset() {
+        counts.clear();
+    }
+}
@@ -0,0 +1,111 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.google.common.collect.Maps;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files (-rf json) and fails if any benchmark got slower.
+ * <p>
+ * Usage: CompareResults baseline.json current.json [max regression percent, default 10].
+ * Benchmarks are matched by name and parameters; for throughput higher is better, for
+ * every other mode lower is. Exits with 1 if any benchmark regressed by more than the limit.
+ */
+public class CompareResults {
+    private static final class Result {
+        final String mode;
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(JsonObject benchmark) {
+            JsonObject metric = benchmark.getAsJsonObject("primaryMetric");
+            mode = benchmark.get("mode").getAsString();
+            score = metric.get("score").getAsDouble();
+            JsonElement scoreError = metric.get("scoreError");
+            error = scoreError != null && scoreError.isJsonPrimitive() &&
+                    scoreError.getAsJsonPrimitive().isNumber() ? scoreError.getAsDouble() : 0;
+            unit = metric.get("scoreUnit").getAsString();
+        }
+
+        /**
+         * Percentage by which this is worse than baseline; negative when it is better.
+         */
+        double regressionFrom(Result baseline) {
+            double change = (score - baseline.score) / baseline.score * 100;
+            return "thrpt".equals(mode) ? -change : change;
+        }
+    }
+
+    private static Map<String, Result> read(String path) throws IOException {
+        Map<String, Result> results = new TreeMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            JsonArray benchmarks = new JsonParser().parse(reader).getAsJsonArray();
+            for (JsonElement element : benchmarks) {
+                JsonObject benchmark = element.getAsJsonObject();
+                results.put(key(benchmark), new Result(benchmark));
+            }
+        }
+        return results;
+    }
+
+    private static String key(JsonObject benchmark) {
+        StringBuilder key = new StringBuilder(benchmark.get("benchmark").getAsString());
+        JsonObject params = benchmark.getAsJsonObject("params");
+        if (params != null) {
+            Map<String, String> sorted = Maps.newTreeMap();
+            params.entrySet().forEach(e -> sorted.put(e.getKey(), e.getValue().getAsString()));
+            sorted.forEach((name, value) -> key.append(' ').append(name).append('=').append(value));
+        }
+        return key.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults baseline.json current.json [max regression percent]");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+        double limit = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        int regressions = 0;
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("NEW        %s: %.3f %s%n", entry.getKey(), now.score, now.unit);
+                continue;
+            }
+            double regression = now.regressionFrom(before);
+            // Differences within the measurement error are noise, whatever their size
+            boolean significant = Math.abs(now.score - before.score) > now.error + before.error;
+            boolean regressed = significant && regression > limit;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-10s %s: %.3f -> %.3f %s (%+.1f%%)%n", regressed ? "REGRESSED" : "ok",
+                              entry.getKey(), before.score, now.score, now.unit,
+                              (now.score - before.score) / before.score * 100);
+        }
+        for (String missing : baseline.keySet()) {
+            if (!current.containsKey(missing)) {
+                System.out.printf("MISSING    %s%n", missing);
+            }
+        }
+        if (regressions > 0) {
+            System.out.printf("%d benchmarks regressed by more than %.0f%%%n", regressions, limit);
+            System.exit(1);
+        }
+    }
+}
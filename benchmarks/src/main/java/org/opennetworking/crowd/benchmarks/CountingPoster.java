@@ -0,0 +1,40 @@
+package org.opennetworking.crowd.benchmarks;
+
+import org.opennetworking.crowd.api.OnfEventPoster;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the events the listener sends, so listener benchmarks leave out delivery.
+ */
+public class CountingPoster implements OnfEventPoster {
+    private final LongAdder sent = new LongAdder();
+    private final boolean wantsGroups;
+
+    public CountingPoster() {
+        this(true);
+    }
+
+    /**
+     * @param wantsGroups false to act like a poster whose subscribers all take slim payloads
+     */
+    public CountingPoster(boolean wantsGroups) {
+        this.wantsGroups = wantsGroups;
+    }
+
+    @Override
+    public void send(WebhookEvent event) {
+        sent.increment();
+    }
+
+    @Override
+    public boolean wantsGroups(EventType type) {
+        return wantsGroups;
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+}
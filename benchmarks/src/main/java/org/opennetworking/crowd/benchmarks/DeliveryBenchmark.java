@@ -0,0 +1,127 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.poster.OnfEventPosterImpl;
+import org.opennetworking.crowd.poster.PosterSettings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
+import static org.opennetworking.crowd.poster.OnfEventPosterImpl.BATCH_SIZE_HEADER;
+
+/**
+ * End-to-end delivery: events handed to the poster until the receiver has them all, through
+ * the outbox, queue, serialization, signing and HTTP to an in-process stub receiver.
+ * <p>
+ * Each invocation sends {@value #EVENTS} events and waits for the receiver to count them, so
+ * the score is the time per delivered event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeliveryBenchmark {
+    private static final int EVENTS = 100;
+
+    @Param({"1", "50"})
+    public String batchSize;
+
+    @Param({"true", "false"})
+    public String outbox;
+
+    private final AtomicLong received = new AtomicLong();
+    private HttpServer receiver;
+    private ExecutorService receiverThreads;
+    private OnfEventPosterImpl poster;
+    private WebhookEvent event;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        receiver = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        receiver.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                ByteStreams.exhaust(body);
+            }
+            String batch = exchange.getRequestHeaders().getFirst(BATCH_SIZE_HEADER);
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            received.addAndGet(batch != null ? Long.parseLong(batch) : 1);
+        });
+        receiverThreads = Executors.newFixedThreadPool(8);
+        receiver.setExecutor(receiverThreads);
+        receiver.start();
+
+        PosterSettings settings = new PosterSettings(ImmutableMap.<String, String>builder()
+                .put("ONF_WEBHOOK_URL", "http://127.0.0.1:" + receiver.getAddress().getPort() + "/")
+                .put("ONF_WEBHOOK_SECRET", "benchmark-secret")
+                .put("ONF_WEBHOOK_DATA_DIR", Files.createTempDirectory("onf-webhook-benchmark").toString())
+                .put("ONF_WEBHOOK_OUTBOX", outbox)
+                .put("ONF_WEBHOOK_BATCH_SIZE", batchSize)
+                .put("ONF_WEBHOOK_BATCH_WINDOW_MILLIS", "5")
+                .build()::get);
+        poster = new OnfEventPosterImpl(settings);
+
+        UserTemplateWithAttributes user = UserTemplateWithAttributes.toUserWithNoAttributes(
+                ImmutableUser.builder(1L, "test-user")
+                             .displayName("Test User")
+                             .emailAddress("test@opennetworking.org")
+                             .build());
+        user.setAttribute(GITHUB_ID_ATTRIBUTE, "test-github");
+        event = new WebhookEvent();
+        event.type = USER_ADDED_GROUP;
+        event.user = new WebhookUser(user);
+        event.user.groups = ImmutableList.of("onf-members", "onf-tst", "onf-admins");
+        event.groupName = "onf-tst";
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        poster.close();
+        receiver.stop(0);
+        receiverThreads.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long deliver() {
+        long target = received.get() + EVENTS;
+        for (int i = 0; i < EVENTS; i++) {
+            poster.send(event);
+        }
+        while (received.get() < target) {
+            LockSupport.parkNanos(10_000);
+        }
+        return received.get();
+    }
+}
@@ -0,0 +1,110 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.atlassian.crowd.embedded.api.Directory;
+import com.atlassian.crowd.embedded.api.DirectoryType;
+import com.atlassian.crowd.event.group.GroupMembershipsCreatedEvent;
+import com.atlassian.crowd.model.directory.ImmutableDirectory;
+import com.atlassian.crowd.model.group.GroupTemplate;
+import com.atlassian.crowd.model.membership.MembershipType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.opennetworking.crowd.listener.FanOut;
+import org.opennetworking.crowd.listener.OnfEventListener;
+import org.opennetworking.crowd.poster.PosterSettings;
+import org.opennetworking.crowd.poster.Subscriber.PayloadMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.opennetworking.crowd.benchmarks.SyntheticDirectory.DIRECTORY_ID;
+import static org.opennetworking.crowd.benchmarks.SyntheticDirectory.ROOT;
+
+/**
+ * Cost of groupMembersCreated when a group tree is nested into another group, i.e. one
+ * USER_ADDED_GROUP per user anywhere in the tree.
+ * <p>
+ * The tree has width^depth bottom groups of usersPerGroup users each. Events are counted
+ * rather than delivered; users are looked up in the directory for every event, each call
+ * taking directoryLatency (a {@link Latency} spec, e.g. -p directoryLatency=lognormal:2:20).
+ * With payload SLIM users are sent without their groups, which are then not looked up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final String PARENT = "benchmark-parent";
+
+    @Param({"1", "3"})
+    public int depth;
+
+    @Param({"4", "8"})
+    public int width;
+
+    @Param({"10"})
+    public int usersPerGroup;
+
+    @Param({"0", "4"})
+    public String fanOutThreads;
+
+    @Param({"none"})
+    public String directoryLatency;
+
+    @Param({"FULL", "SLIM"})
+    public PayloadMode payload;
+
+    private SyntheticDirectory directoryManager;
+    private OnfEventListener listener;
+    private CountingPoster poster;
+    private GroupMembershipsCreatedEvent event;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directoryManager = SyntheticDirectory.tree(depth, width, usersPerGroup);
+        directoryManager.addGroup(DIRECTORY_ID, new GroupTemplate(PARENT, DIRECTORY_ID));
+        directoryManager.addGroupToGroup(DIRECTORY_ID, ROOT, PARENT);
+        directoryManager.setLatency(Latency.parse(directoryLatency));
+        PosterSettings settings = new PosterSettings(ImmutableMap.of(
+                "ONF_WEBHOOK_FANOUT_THREADS", fanOutThreads,
+                "ONF_WEBHOOK_USER_CACHE_TTL_MILLIS", "0")::get);
+        poster = new CountingPoster(payload == PayloadMode.FULL);
+        listener = new OnfEventListener(poster, directoryManager, new SyntheticAuditService(0), settings);
+        Directory directory = ImmutableDirectory.builder("benchmark", DirectoryType.CUSTOM, null)
+                                                .setId(DIRECTORY_ID)
+                                                .build();
+        event = new GroupMembershipsCreatedEvent(null, directory, ImmutableList.of(ROOT), PARENT,
+                                                 MembershipType.GROUP_GROUP);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws InterruptedException {
+        listener.close();
+    }
+
+    @Benchmark
+    public long groupMembersCreated() {
+        FanOut fanOut = listener.getFanOut();
+        long before = fanOut.getCompletedCount() + fanOut.getFailedCount();
+        listener.groupMembersCreated(event);
+        // Wait for the fan-out threads to finish every user
+        while (fanOut.getCompletedCount() + fanOut.getFailedCount() - before < directoryManager.getUserCount()) {
+            LockSupport.parkNanos(10_000);
+        }
+        return poster.getSentCount();
+    }
+}
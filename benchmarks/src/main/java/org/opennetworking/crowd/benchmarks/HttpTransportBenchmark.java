@@ -0,0 +1,95 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpServer;
+import org.opennetworking.crowd.poster.HttpTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Compares per-event latency of the pooled {@link HttpTransport} with the previous
+ * connection-per-event implementation against a local stub receiver.
+ * <p>
+ * Prints mean, median and 99th percentile latency for each; run the main method with
+ * {@code java -cp target/benchmarks.jar org.opennetworking.crowd.benchmarks.HttpTransportBenchmark}.
+ */
+public class HttpTransportBenchmark {
+    private static final int WARMUP = 2000;
+    private static final int EVENTS = 10000;
+
+    private static final Map<String, String> HEADERS = ImmutableMap.of("Content-Type", "application/json");
+    private static final byte[] PAYLOAD = ("{\"type\":\"USER_ADDED_GROUP\",\"user\":{\"username\":\"test-user\","
+            + "\"email\":\"test@test\",\"groups\":[\"onf-members\"]},\"groupName\":\"onf-members\"}")
+            .getBytes(StandardCharsets.UTF_8);
+
+    interface Poster {
+        void post(URL url) throws IOException;
+    }
+
+    /**
+     * The poster before connection pooling: a new connection per event, disconnected afterwards.
+     */
+    private static void postWithNewConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setUseCaches(false);
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(PAYLOAD);
+            }
+            connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void run(String name, URL url, Poster poster) throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            poster.post(url);
+        }
+        long[] latencies = new long[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            long start = System.nanoTime();
+            poster.post(url);
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%-16s mean %7.1f us   p50 %7.1f us   p99 %7.1f us%n", name,
+                          Arrays.stream(latencies).average().orElse(0) / 1000,
+                          latencies[EVENTS / 2] / 1000.0,
+                          latencies[EVENTS * 99 / 100] / 1000.0);
+    }
+
+    public static void main(String[] args) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() != -1) {
+                    // discard
+                }
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        HttpTransport transport = new HttpTransport(5000, 30000, 4);
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            run("new connection", url, HttpTransportBenchmark::postWithNewConnection);
+            run("pooled", url, u -> transport.post(u, HEADERS, PAYLOAD, PAYLOAD.length));
+        } finally {
+            transport.close();
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.google.common.base.Splitter;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A distribution of simulated call latencies, plus a rate of injected failures.
+ * <p>
+ * Written as a spec so it can be a JMH parameter or a command line argument:
+ * <pre>
+ * none                  no delay
+ * fixed:2               2 ms
+ * uniform:1:5           between 1 and 5 ms
+ * lognormal:2:20        median 2 ms, 99th percentile 20 ms; the long tail of an LDAP server
+ * </pre>
+ * followed by an optional failure rate, e.g. {@code lognormal:2:20,fail=0.01}.
+ */
+public class Latency {
+    private static final double Z_99 = 2.326; // standard normal 99th percentile
+
+    public static final Latency NONE = new Latency("none", 0, 0, 0);
+
+    private final String kind;
+    private final double a; // fixed: ms; uniform: min ms; lognormal: mu of ln(ms)
+    private final double b; // uniform: max ms; lognormal: sigma of ln(ms)
+    private final double failureRate;
+
+    private Latency(String kind, double a, double b, double failureRate) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+        this.failureRate = failureRate;
+    }
+
+    public static Latency parse(String spec) {
+        List<String> parts = Splitter.on(',').trimResults().splitToList(spec);
+        double failureRate = 0;
+        for (String option : parts.subList(1, parts.size())) {
+            if (!option.startsWith("fail=")) {
+                throw new IllegalArgumentException("Unknown latency option: " + option);
+            }
+            failureRate = Double.parseDouble(option.substring("fail=".length()));
+        }
+        List<String> fields = Splitter.on(':').splitToList(parts.get(0));
+        String kind = fields.get(0).toLowerCase(Locale.ENGLISH);
+        switch (kind) {
+            case "none":
+                return new Latency(kind, 0, 0, failureRate);
+            case "fixed":
+                return new Latency(kind, millis(fields, 1), 0, failureRate);
+            case "uniform":
+                return new Latency(kind, millis(fields, 1), millis(fields, 2), failureRate);
+            case "lognormal":
+                double median = millis(fields, 1);
+                double p99 = millis(fields, 2);
+                if (median <= 0 || p99 < median) {
+                    throw new IllegalArgumentException("Need 0 < median <= p99: " + spec);
+                }
+                return new Latency(kind, Math.log(median), Math.log(p99 / median) / Z_99, failureRate);
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+        }
+    }
+
+    private static double millis(List<String> fields, int index) {
+        if (fields.size() <= index) {
+            throw new IllegalArgumentException("Missing value in latency spec " + String.join(":", fields));
+        }
+        return Double.parseDouble(fields.get(index));
+    }
+
+    /**
+     * A delay drawn from the distribution, in nanoseconds.
+     */
+    public long nextNanos() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double millis;
+        switch (kind) {
+            case "fixed":
+                millis = a;
+                break;
+            case "uniform":
+                millis = a + random.nextDouble() * (b - a);
+                break;
+            case "lognormal":
+                millis = Math.exp(a + b * random.nextGaussian());
+                break;
+            default:
+                return 0;
+        }
+        return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * Waits for one delay; returns whether this call should fail.
+     */
+    public boolean await() {
+        long nanos = nextNanos();
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            nanos = deadline - System.nanoTime();
+        }
+        return fails();
+    }
+
+    /**
+     * Whether a call should fail, without waiting.
+     */
+    public boolean fails() {
+        return failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate;
+    }
+}
@@ -0,0 +1,180 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.atlassian.crowd.embedded.api.Directory;
+import com.atlassian.crowd.embedded.api.DirectoryType;
+import com.atlassian.crowd.event.group.GroupMembershipDeletedEvent;
+import com.atlassian.crowd.event.group.GroupMembershipsCreatedEvent;
+import com.atlassian.crowd.event.user.UserAttributeStoredEvent;
+import com.atlassian.crowd.model.directory.ImmutableDirectory;
+import com.atlassian.crowd.model.group.GroupTemplate;
+import com.atlassian.crowd.model.membership.MembershipType;
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.gson.GsonBuilder;
+import org.opennetworking.crowd.listener.OnfEventListener;
+import org.opennetworking.crowd.metrics.Histogram;
+import org.opennetworking.crowd.metrics.HistogramSummary;
+import org.opennetworking.crowd.poster.PosterSettings;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
+import static org.opennetworking.crowd.benchmarks.SyntheticDirectory.DIRECTORY_ID;
+
+/**
+ * Drives the listener with a stream of Crowd events against a large, slow synthetic directory
+ * and audit log, and reports throughput, per-event latency and the directory and audit calls
+ * made per event, as JSON.
+ * <p>
+ * Events are a rotation of GitHub ID changes, a user added to and removed from a bottom-level
+ * group, and (every nestEvery events) a bottom-level group nested into another group, each
+ * for a random user or group, dispatched from a pool of threads like Crowd's event threads.
+ * Arguments are name=value pairs (defaults in parentheses):
+ * <pre>
+ * depth, width, usersPerGroup   the group tree (4, 10, 100: a million users)
+ * directoryLatency, auditLatency  per-call {@link Latency} specs (lognormal:2:20, lognormal:5:50)
+ * auditHistory                  audit changesets per user (20)
+ * events, threads               events to send and threads sending them (10000, 8)
+ * nestEvery                     events between group nestings; 0 for none (1000)
+ * payload                       full, or slim to send users without their groups (full)
+ * out                           also write the report to this file
+ * ONF_WEBHOOK_...               any listener setting, e.g. ONF_WEBHOOK_FANOUT_THREADS=4
+ * </pre>
+ * Webhook events are counted rather than delivered.
+ */
+public class LoadHarness {
+    private static final String NEST_PARENT = "load-parent";
+
+    private final Map<String, String> args;
+    private final SyntheticDirectory directoryManager;
+    private final SyntheticAuditService auditService;
+    private final CountingPoster poster;
+    private final OnfEventListener listener;
+    private final Directory directory = ImmutableDirectory.builder("load", DirectoryType.CUSTOM, null)
+                                                          .setId(DIRECTORY_ID)
+                                                          .build();
+    private final Histogram latency = new Histogram();
+    private final AtomicLong failures = new AtomicLong();
+
+    LoadHarness(Map<String, String> args) throws IOException {
+        this.args = args;
+        directoryManager = SyntheticDirectory.tree(getInt("depth", 4), getInt("width", 10),
+                                                   getInt("usersPerGroup", 100));
+        directoryManager.addGroup(DIRECTORY_ID, new GroupTemplate(NEST_PARENT, DIRECTORY_ID));
+        directoryManager.setLatency(Latency.parse(get("directoryLatency", "lognormal:2:20")));
+        auditService = new SyntheticAuditService(getInt("auditHistory", 20));
+        auditService.setLatency(Latency.parse(get("auditLatency", "lognormal:5:50")));
+        poster = new CountingPoster(!get("payload", "full").equalsIgnoreCase("slim"));
+
+        Map<String, String> settings = Maps.newHashMap();
+        settings.put("ONF_WEBHOOK_DATA_DIR", Files.createTempDirectory("onf-webhook-load").toString());
+        args.forEach((name, value) -> {
+            if (name.startsWith("ONF_WEBHOOK_")) {
+                settings.put(name, value);
+            }
+        });
+        listener = new OnfEventListener(poster, directoryManager, auditService, new PosterSettings(settings::get));
+    }
+
+    private String get(String name, String defaultValue) {
+        return args.getOrDefault(name, defaultValue);
+    }
+
+    private int getInt(String name, int defaultValue) {
+        return Integer.parseInt(get(name, String.valueOf(defaultValue)));
+    }
+
+    private String randomUser() {
+        return SyntheticDirectory.userName(ThreadLocalRandom.current().nextLong(directoryManager.getUserCount()));
+    }
+
+    private void handle(long n, int nestEvery) {
+        String username = randomUser();
+        long start = System.nanoTime();
+        try {
+            if (nestEvery > 0 && n % nestEvery == nestEvery - 1) {
+                listener.groupMembersCreated(new GroupMembershipsCreatedEvent(
+                        null, directory, ImmutableList.of(directoryManager.getLeafGroup(username)),
+                        NEST_PARENT, MembershipType.GROUP_GROUP));
+            } else if (n % 3 == 0) {
+                listener.userAttributeStored(new UserAttributeStoredEvent(
+                        null, directory, ImmutableUser.builder(DIRECTORY_ID, username).build(),
+                        ImmutableMap.of(GITHUB_ID_ATTRIBUTE, ImmutableSet.of(username + "-gh-" + n))));
+            } else if (n % 3 == 1) {
+                listener.groupMembersCreated(new GroupMembershipsCreatedEvent(
+                        null, directory, ImmutableList.of(username), directoryManager.getLeafGroup(username),
+                        MembershipType.GROUP_USER));
+            } else {
+                listener.groupMemberDeleted(new GroupMembershipDeletedEvent(
+                        null, directory, username, directoryManager.getLeafGroup(username),
+                        MembershipType.GROUP_USER));
+            }
+        } catch (RuntimeException e) {
+            failures.incrementAndGet(); // e.g. an injected audit log failure
+        }
+        latency.record(System.nanoTime() - start);
+    }
+
+    Map<String, Object> run() throws InterruptedException {
+        int events = getInt("events", 10000);
+        int threads = getInt("threads", 8);
+        int nestEvery = getInt("nestEvery", 1000);
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (long n = 0; n < events; n++) {
+            long event = n;
+            executor.execute(() -> handle(event, nestEvery));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        listener.close(); // waits for fan-out to finish
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Map<String, Object> report = Maps.newLinkedHashMap();
+        report.put("arguments", args);
+        report.put("users", directoryManager.getUserCount());
+        report.put("groups", directoryManager.getGroupCount());
+        report.put("events", events);
+        report.put("seconds", seconds);
+        report.put("eventsPerSecond", events / seconds);
+        report.put("eventLatencyMillis", HistogramSummary.ofNanos(latency));
+        report.put("eventFailures", failures.get());
+        report.put("webhookEventsSent", poster.getSentCount());
+        report.put("directoryCallsPerEvent", (double) directoryManager.getCalls().total() / events);
+        report.put("directoryCalls", directoryManager.getCalls().snapshot());
+        report.put("auditCallsPerEvent", (double) auditService.getCalls().total() / events);
+        report.put("auditCalls", auditService.getCalls().snapshot());
+        return report;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = Maps.newLinkedHashMap();
+        for (String arg : argv) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Arguments are name=value pairs; see the LoadHarness javadoc");
+                System.exit(2);
+            }
+            args.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        LoadHarness harness = new LoadHarness(args);
+        String report = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(harness.run());
+        System.out.println(report);
+        if (args.containsKey("out")) {
+            Files.write(Paths.get(args.get("out")), report.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
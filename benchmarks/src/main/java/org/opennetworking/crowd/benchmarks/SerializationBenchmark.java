@@ -0,0 +1,81 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import org.apache.commons.codec.digest.HmacUtils;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.poster.PayloadBuffer;
+import org.opennetworking.crowd.poster.WebhookJsonWriter;
+import org.opennetworking.crowd.poster.WebhookSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
+
+/**
+ * Serialization and signing cost per webhook event.
+ * <p>
+ * {@code legacy} is the original path (a new Gson per event, String body, HmacUtils);
+ * {@code reused} is the poster's path (thread-local buffer, streaming writer, reused Mac).
+ * Run with {@code -prof gc} and compare gc.alloc.rate.norm for bytes allocated per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    private static final String SECRET = "benchmark-secret";
+
+    private WebhookEvent event;
+    private WebhookJsonWriter writer;
+    private WebhookSigner signer;
+    private final PayloadBuffer payload = new PayloadBuffer();
+
+    @Setup
+    public void setup() {
+        UserTemplateWithAttributes user = UserTemplateWithAttributes.toUserWithNoAttributes(
+                ImmutableUser.builder(1L, "test-user")
+                             .displayName("Test User")
+                             .emailAddress("test@opennetworking.org")
+                             .build());
+        user.setAttribute(GITHUB_ID_ATTRIBUTE, "test-github");
+        event = new WebhookEvent();
+        event.type = USER_ADDED_GROUP;
+        event.user = new WebhookUser(user);
+        event.user.groups = ImmutableList.of("onf-members", "onf-tst", "onf-admins");
+        event.groupName = "onf-tst";
+        writer = new WebhookJsonWriter();
+        signer = new WebhookSigner(SECRET);
+    }
+
+    @Benchmark
+    public String legacy() {
+        String payload = new Gson().toJson(event);
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        return HmacUtils.hmacSha256Hex(SECRET.getBytes(StandardCharsets.UTF_8), body);
+    }
+
+    @Benchmark
+    public String reused() {
+        payload.reset();
+        writer.write(event, payload);
+        return signer.sign(payload.bytes(), payload.length());
+    }
+}
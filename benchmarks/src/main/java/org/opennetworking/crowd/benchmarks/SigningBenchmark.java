@@ -0,0 +1,59 @@
+package org.opennetworking.crowd.benchmarks;
+
+import org.apache.commons.codec.digest.HmacUtils;
+import org.opennetworking.crowd.poster.WebhookSigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HMAC-SHA256 signing cost by payload size: a single event is a few hundred bytes, a batch
+ * tens of kilobytes.
+ * <p>
+ * {@code legacy} builds a new Mac per payload (HmacUtils); {@code reused} is the poster's
+ * {@link WebhookSigner}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SigningBenchmark {
+    private static final String SECRET = "benchmark-secret";
+
+    @Param({"256", "4096", "65536"})
+    public int payloadBytes;
+
+    private byte[] payload;
+    private WebhookSigner signer;
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        signer = new WebhookSigner(SECRET);
+    }
+
+    @Benchmark
+    public String legacy() {
+        return HmacUtils.hmacSha256Hex(SECRET.getBytes(StandardCharsets.UTF_8), payload);
+    }
+
+    @Benchmark
+    public String reused() {
+        return signer.sign(payload, payload.length);
+    }
+}
@@ -0,0 +1,177 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.metrics.Histogram;
+import org.opennetworking.crowd.metrics.HistogramSummary;
+import org.opennetworking.crowd.poster.OnfEventPosterImpl;
+import org.opennetworking.crowd.poster.PosterSettings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+import static org.opennetworking.crowd.poster.OnfEventPosterImpl.BATCH_SIZE_HEADER;
+
+/**
+ * Sends events through the poster to an in-process receiver that answers slowly, and reports
+ * delivery throughput, the requests the receiver had open at once and the threads used, as
+ * JSON. Run it once per transport to compare them.
+ * <p>
+ * The receiver reads each request straight away and answers it after a delay from a
+ * scheduler, so it can hold any number of requests open without a thread each. Responses it
+ * is told to fail are 503s, which the poster retries. Arguments are name=value pairs
+ * (defaults in parentheses):
+ * <pre>
+ * events          events to send (10000)
+ * latency         receiver response time, a {@link Latency} spec (fixed:500)
+ * transport       blocking or nio, i.e. ONF_WEBHOOK_TRANSPORT (blocking)
+ * timeoutSeconds  how long to wait for every event to be delivered (600)
+ * out             also write the report to this file
+ * ONF_WEBHOOK_... any poster setting, e.g. ONF_WEBHOOK_WORKERS=64 or ONF_WEBHOOK_MAX_IN_FLIGHT=2000
+ * </pre>
+ */
+public class SlowReceiverLoadTest {
+    private final Map<String, String> args;
+    private final Latency latency;
+    private final HttpServer receiver;
+    private final ScheduledThreadPoolExecutor responders;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger peakOpen = new AtomicInteger();
+    private final Histogram responseDelay = new Histogram();
+
+    SlowReceiverLoadTest(Map<String, String> args) throws IOException {
+        this.args = args;
+        latency = Latency.parse(args.getOrDefault("latency", "fixed:500"));
+        responders = new ScheduledThreadPoolExecutor(4, new ThreadFactoryBuilder()
+                .setNameFormat("receiver-%d")
+                .setDaemon(true)
+                .build());
+        responders.prestartAllCoreThreads(); // so they are not counted as the poster's
+        receiver = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+        receiver.createContext("/", this::receive);
+        receiver.start();
+    }
+
+    private void receive(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            ByteStreams.exhaust(body);
+        }
+        requests.incrementAndGet();
+        peakOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+        String batch = exchange.getRequestHeaders().getFirst(BATCH_SIZE_HEADER);
+        long events = batch != null ? Long.parseLong(batch) : 1;
+        long delay = latency.nextNanos();
+        boolean fail = latency.fails();
+        responseDelay.record(delay);
+        responders.schedule(() -> {
+            open.decrementAndGet();
+            try {
+                exchange.sendResponseHeaders(fail ? 503 : 200, -1);
+                if (!fail) {
+                    delivered.addAndGet(events);
+                }
+            } catch (IOException e) {
+                // the poster gave up on the request
+            } finally {
+                exchange.close();
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private static WebhookEvent event(long n) {
+        WebhookEvent event = new WebhookEvent();
+        event.type = USER_ADDED_GROUP;
+        event.user = new WebhookUser("load-user-" + n, "load-user-" + n + "@opennetworking.org", "Load User",
+                                     null, ImmutableList.of("onf-members", "onf-tst"));
+        event.groupName = "onf-tst";
+        return event;
+    }
+
+    Map<String, Object> run() throws IOException {
+        int events = Integer.parseInt(args.getOrDefault("events", "10000"));
+        long timeout = TimeUnit.SECONDS.toNanos(Long.parseLong(args.getOrDefault("timeoutSeconds", "600")));
+
+        Map<String, String> settings = Maps.newHashMap();
+        settings.put("ONF_WEBHOOK_URL", "http://127.0.0.1:" + receiver.getAddress().getPort() + "/");
+        settings.put("ONF_WEBHOOK_SECRET", "load-test-secret");
+        settings.put("ONF_WEBHOOK_DATA_DIR", Files.createTempDirectory("onf-webhook-load").toString());
+        settings.put("ONF_WEBHOOK_TRANSPORT", args.getOrDefault("transport", "blocking"));
+        args.forEach((name, value) -> {
+            if (name.startsWith("ONF_WEBHOOK_")) {
+                settings.put(name, value);
+            }
+        });
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        OnfEventPosterImpl poster = new OnfEventPosterImpl(new PosterSettings(settings::get));
+
+        long start = System.nanoTime();
+        for (long n = 0; n < events; n++) {
+            poster.send(event(n));
+        }
+        double sendSeconds = (System.nanoTime() - start) / 1e9;
+        int peakThreads = 0;
+        while (delivered.get() < events && System.nanoTime() - start < timeout) {
+            peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Map<String, Object> report = Maps.newLinkedHashMap();
+        report.put("arguments", args);
+        report.put("events", events);
+        report.put("delivered", delivered.get());
+        report.put("seconds", seconds);
+        report.put("eventsPerSecond", delivered.get() / seconds);
+        report.put("sendSeconds", sendSeconds);
+        report.put("requests", requests.get());
+        report.put("peakOpenRequests", peakOpen.get());
+        report.put("receiverDelayMillis", HistogramSummary.ofNanos(responseDelay));
+        report.put("posterThreads", peakThreads - threadsBefore);
+        report.put("retries", poster.getRetryCount());
+        report.put("deadLetters", poster.getDeadLetterCount());
+
+        poster.close();
+        receiver.stop(0);
+        responders.shutdownNow();
+        return report;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = Maps.newLinkedHashMap();
+        for (String arg : argv) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                System.err.println("Arguments are name=value pairs; see the SlowReceiverLoadTest javadoc");
+                System.exit(2);
+            }
+            args.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        String report = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create()
+                                         .toJson(new SlowReceiverLoadTest(args).run());
+        System.out.println(report);
+        if (args.containsKey("out")) {
+            Files.write(Paths.get(args.get("out")), report.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
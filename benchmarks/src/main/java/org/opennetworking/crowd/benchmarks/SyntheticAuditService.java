@@ -0,0 +1,89 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.atlassian.crowd.audit.AuditLogAuthorType;
+import com.atlassian.crowd.audit.AuditLogChangeset;
+import com.atlassian.crowd.audit.AuditLogEntityType;
+import com.atlassian.crowd.audit.AuditLogEventSource;
+import com.atlassian.crowd.audit.AuditLogEventType;
+import com.atlassian.crowd.audit.query.AuditLogQuery;
+import com.atlassian.crowd.model.audit.AuditLogChangesetEntity;
+import com.atlassian.crowd.model.audit.AuditLogEntityEntity;
+import com.atlassian.crowd.model.audit.AuditLogEntryEntity;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import ut.org.opennetworking.crowd.MockAuditService;
+
+import java.util.List;
+
+import static org.opennetworking.crowd.api.WebhookUser.EMAIL_ATTRIBUTE;
+import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
+
+/**
+ * An audit log in which every user already has a history of the given length, with simulated
+ * latency and failures.
+ * <p>
+ * The history (alternating GitHub ID and email changes) is built on every search, as Crowd
+ * would read it from its database, after anything saved since. Searches are counted
+ * and wait for a delay drawn from {@link #setLatency}; a share of them throw.
+ */
+public class SyntheticAuditService extends MockAuditService {
+    private final int historySize;
+    private final CallCounts calls = new CallCounts();
+    private volatile Latency latency = Latency.NONE;
+
+    public SyntheticAuditService(int historySize) {
+        this.historySize = historySize;
+    }
+
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    public CallCounts getCalls() {
+        return calls;
+    }
+
+    static AuditLogChangesetEntity changeset(String username, long timestamp, AuditLogEntryEntity entry) {
+        AuditLogChangesetEntity changeset = new AuditLogChangesetEntity();
+        changeset.setAuthorType(AuditLogAuthorType.PLUGIN);
+        changeset.setAuthorName("onf-event-handler");
+        changeset.setTimestamp(timestamp);
+        changeset.setSource(AuditLogEventSource.MANUAL);
+        changeset.setEventType(AuditLogEventType.USER_UPDATED);
+        changeset.setEntries(ImmutableSet.of(entry));
+        AuditLogEntityEntity entity = new AuditLogEntityEntity();
+        entity.setEntityType(AuditLogEntityType.USER);
+        entity.setEntityName(username);
+        entity.setEntityId((long) username.hashCode());
+        changeset.setEntities(ImmutableSet.of(entity));
+        return changeset;
+    }
+
+    @Override
+    public synchronized void saveAudit(AuditLogChangeset changeset) {
+        calls.increment("saveAudit");
+        super.saveAudit(changeset);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <RESULT> List<RESULT> searchAuditLog(AuditLogQuery<RESULT> query) {
+        calls.increment("searchAuditLog");
+        if (latency.await()) {
+            throw new IllegalStateException("Injected audit log failure");
+        }
+        // Most recent first, as Crowd returns them
+        List<RESULT> results;
+        synchronized (this) {
+            results = Lists.newArrayList(Lists.reverse(super.searchAuditLog(query)));
+        }
+        query.getUsers().forEach(user -> {
+            for (int i = historySize - 1; i >= 0; i--) {
+                String attribute = i % 2 == 0 ? GITHUB_ID_ATTRIBUTE : EMAIL_ATTRIBUTE;
+                String value = user.getName() + (i % 2 == 0 ? "-gh-" : "@example.com-") + i;
+                results.add((RESULT) changeset(user.getName(), i, new AuditLogEntryEntity(attribute, "", value)));
+            }
+        });
+        return results;
+    }
+}
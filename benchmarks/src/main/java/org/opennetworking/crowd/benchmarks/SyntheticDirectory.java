@@ -0,0 +1,439 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.atlassian.crowd.exception.DirectoryNotFoundException;
+import com.atlassian.crowd.exception.GroupNotFoundException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.group.GroupTemplate;
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.atlassian.crowd.model.user.UserWithAttributes;
+import com.atlassian.crowd.search.Entity;
+import com.atlassian.crowd.search.query.entity.EntityQuery;
+import com.atlassian.crowd.search.query.membership.MembershipQuery;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+import ut.org.opennetworking.crowd.MockDirectoryManager;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.LongFunction;
+
+import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
+
+/**
+ * A directory of any size, made up as it is queried, with simulated latency and failures.
+ * <p>
+ * The tree has a root group, width child groups under each group down to depth levels, and
+ * usersPerGroup users directly in each group at the bottom level; names encode their place in
+ * the tree (group-0-3-1, user-42), so users, groups and search pages are computed rather than
+ * stored and millions of users take no memory. Users are returned freshly built on every call,
+ * as a real directory would.
+ * <p>
+ * Every DirectoryManager call is counted and waits for a delay drawn from {@link #setLatency};
+ * a share of calls fail with OperationFailedException. Groups and memberships can be added on
+ * top of the tree (e.g. the tree's root nested in a new group), but not inside it; add them
+ * before the directory is used concurrently.
+ */
+public class SyntheticDirectory extends MockDirectoryManager {
+    public static final long DIRECTORY_ID = 1L;
+    public static final String ROOT = "group-0";
+    private static final String USER_PREFIX = "user-";
+
+    private final int depth;
+    private final int width;
+    private final int usersPerGroup;
+    private final long[] powers; // width^k for k up to depth
+    private final long userCount;
+    private final CallCounts calls = new CallCounts();
+    private volatile Latency latency = Latency.NONE;
+
+    // Memberships added on top of the generated tree; the parents are always added groups
+    private final SetMultimap<String, String> addedChildUsers = HashMultimap.create();
+    private final SetMultimap<String, String> addedChildGroups = HashMultimap.create();
+    private final SetMultimap<String, String> addedUserParents = HashMultimap.create();
+    private final SetMultimap<String, String> addedGroupParents = HashMultimap.create();
+
+    /**
+     * Names in a fixed order, produced on demand so pages can be cut from very long lists.
+     */
+    private interface Names {
+        long size();
+
+        String get(long index);
+    }
+
+    public SyntheticDirectory(int depth, int width, int usersPerGroup) {
+        if (depth < 0 || width < 1 || usersPerGroup < 0) {
+            throw new IllegalArgumentException("Need depth >= 0, width >= 1 and usersPerGroup >= 0");
+        }
+        this.depth = depth;
+        this.width = width;
+        this.usersPerGroup = usersPerGroup;
+        powers = new long[depth + 1];
+        powers[0] = 1;
+        for (int k = 1; k <= depth; k++) {
+            powers[k] = Math.multiplyExact(powers[k - 1], width);
+        }
+        userCount = Math.multiplyExact(powers[depth], usersPerGroup);
+    }
+
+    public static SyntheticDirectory tree(int depth, int width, int usersPerGroup) {
+        return new SyntheticDirectory(depth, width, usersPerGroup);
+    }
+
+    public long getUserCount() {
+        return userCount;
+    }
+
+    public long getGroupCount() {
+        long groups = 0;
+        for (long power : powers) {
+            groups += power;
+        }
+        return groups;
+    }
+
+    /**
+     * The bottom-level group a generated user is in; not counted as a call.
+     */
+    public String getLeafGroup(String username) {
+        long index = userIndex(username);
+        if (index < 0) {
+            throw new IllegalArgumentException("Not a generated user: " + username);
+        }
+        return group(depth, index / usersPerGroup);
+    }
+
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    public CallCounts getCalls() {
+        return calls;
+    }
+
+    /**
+     * Counts the call, waits for its simulated latency and fails it if it drew a failure.
+     */
+    private void call(String method) throws OperationFailedException {
+        calls.increment(method);
+        if (latency.await()) {
+            throw new OperationFailedException("Injected failure in " + method);
+        }
+    }
+
+    // Generated names
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * The child indexes from the root down to the group, or null if it is not a generated group.
+     */
+    private int[] path(String group) {
+        String name = key(group);
+        if (!name.startsWith(ROOT)) {
+            return null;
+        }
+        String rest = name.substring(ROOT.length());
+        if (rest.isEmpty()) {
+            return new int[0];
+        }
+        if (rest.charAt(0) != '-') {
+            return null;
+        }
+        String[] digits = rest.substring(1).split("-", -1);
+        if (digits.length > depth) {
+            return null;
+        }
+        int[] path = new int[digits.length];
+        for (int i = 0; i < digits.length; i++) {
+            try {
+                path[i] = Integer.parseInt(digits[i]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (path[i] < 0 || path[i] >= width || !String.valueOf(path[i]).equals(digits[i])) {
+                return null;
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Position of the group among the groups of its level.
+     */
+    private long index(int[] path) {
+        long index = 0;
+        for (int digit : path) {
+            index = index * width + digit;
+        }
+        return index;
+    }
+
+    private String group(int level, long index) {
+        int[] digits = new int[level];
+        for (int k = level - 1; k >= 0; k--) {
+            digits[k] = (int) (index % width);
+            index /= width;
+        }
+        StringBuilder name = new StringBuilder(ROOT);
+        for (int digit : digits) {
+            name.append('-').append(digit);
+        }
+        return name.toString();
+    }
+
+    public static String userName(long index) {
+        return USER_PREFIX + index;
+    }
+
+    /**
+     * The user's index, or -1 if it is not a generated user.
+     */
+    private long userIndex(String username) {
+        String name = key(username);
+        if (!name.startsWith(USER_PREFIX)) {
+            return -1;
+        }
+        String digits = name.substring(USER_PREFIX.length());
+        try {
+            long index = Long.parseLong(digits);
+            return index >= 0 && index < userCount && String.valueOf(index).equals(digits) ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private UserTemplateWithAttributes user(long index) {
+        String username = userName(index);
+        UserTemplateWithAttributes user = UserTemplateWithAttributes.toUserWithNoAttributes(
+                ImmutableUser.builder(DIRECTORY_ID, username)
+                             .displayName("User " + index)
+                             .emailAddress(username + "@example.com")
+                             .build());
+        user.setAttribute(GITHUB_ID_ATTRIBUTE, username + "-gh");
+        return user;
+    }
+
+    // Lazy name lists
+
+    private static Names range(long from, long to, LongFunction<String> name) {
+        return new Names() {
+            @Override
+            public long size() {
+                return to - from;
+            }
+
+            @Override
+            public String get(long index) {
+                return name.apply(from + index);
+            }
+        };
+    }
+
+    private static Names of(Collection<String> names) {
+        List<String> list = ImmutableList.copyOf(names);
+        return range(0, list.size(), i -> list.get((int) i));
+    }
+
+    private static Names concat(List<Names> parts) {
+        return new Names() {
+            @Override
+            public long size() {
+                return parts.stream().mapToLong(Names::size).sum();
+            }
+
+            @Override
+            public String get(long index) {
+                for (Names part : parts) {
+                    if (index < part.size()) {
+                        return part.get(index);
+                    }
+                    index -= part.size();
+                }
+                throw new IndexOutOfBoundsException();
+            }
+        };
+    }
+
+    private static List<String> page(Names names, int startIndex, int maxResults) {
+        long size = names.size();
+        long from = Math.min(startIndex, size);
+        long to = maxResults < 0 ? size : Math.min(size, from + maxResults);
+        List<String> page = Lists.newArrayListWithCapacity((int) (to - from));
+        for (long i = from; i < to; i++) {
+            page.add(names.get(i));
+        }
+        return page;
+    }
+
+    // Relationships
+
+    private void children(String group, boolean users, boolean nested, List<Names> parts, Set<String> visited) {
+        if (!visited.add(key(group))) {
+            return;
+        }
+        int[] path = path(group);
+        if (path != null) {
+            int level = path.length;
+            long index = index(path);
+            if (users && (nested || level == depth)) {
+                long leaves = powers[depth - level];
+                parts.add(range(index * leaves * usersPerGroup, (index + 1) * leaves * usersPerGroup,
+                                SyntheticDirectory::userName));
+            } else if (!users) {
+                for (int k = 1; k <= (nested ? depth - level : Math.min(1, depth - level)); k++) {
+                    int childLevel = level + k;
+                    parts.add(range(index * powers[k], (index + 1) * powers[k], i -> group(childLevel, i)));
+                }
+            }
+            return; // nothing is added inside the generated tree
+        }
+        parts.add(of((users ? addedChildUsers : addedChildGroups).get(key(group))));
+        if (nested) {
+            // Child groups were listed above; add what is below them
+            for (String child : addedChildGroups.get(key(group))) {
+                children(child, users, true, parts, visited);
+            }
+        }
+    }
+
+    private List<String> parents(String name, boolean user, boolean nested) {
+        Set<String> result = Sets.newLinkedHashSet();
+        Deque<String> pending = new ArrayDeque<>();
+        directParents(name, user).forEach(parent -> {
+            if (result.add(parent)) {
+                pending.add(parent);
+            }
+        });
+        while (nested && !pending.isEmpty()) {
+            for (String parent : directParents(pending.pop(), false)) {
+                if (result.add(parent)) {
+                    pending.add(parent);
+                }
+            }
+        }
+        return ImmutableList.copyOf(result);
+    }
+
+    private List<String> directParents(String name, boolean user) {
+        List<String> parents = Lists.newArrayList();
+        if (user) {
+            if (userIndex(name) >= 0) {
+                parents.add(getLeafGroup(name));
+            }
+        } else {
+            int[] path = path(name);
+            if (path != null && path.length > 0) {
+                parents.add(group(path.length - 1, index(path) / width));
+            }
+        }
+        parents.addAll((user ? addedUserParents : addedGroupParents).get(key(name)));
+        return parents;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> search(MembershipQuery<T> query, boolean nested) {
+        boolean matchUser = query.getEntityToMatch().getEntityType() == Entity.USER;
+        boolean returnUsers = query.getEntityToReturn().getEntityType() == Entity.USER;
+        String name = query.getEntityNameToMatch();
+        if (!query.isFindChildren()) {
+            List<String> parents = parents(name, matchUser, nested);
+            return (List<T>) page(of(parents), query.getStartIndex(), query.getMaxResults());
+        }
+        List<Names> parts = Lists.newArrayList();
+        children(name, returnUsers, nested, parts, Sets.newHashSet());
+        return (List<T>) page(concat(parts), query.getStartIndex(), query.getMaxResults());
+    }
+
+    // DirectoryManager
+
+    @Override
+    public UserWithAttributes findUserWithAttributesByName(long directoryId, String username)
+            throws DirectoryNotFoundException, UserNotFoundException, OperationFailedException {
+        call("findUserWithAttributesByName");
+        long index = userIndex(username);
+        if (index >= 0) {
+            return user(index);
+        }
+        UserWithAttributes user = super.findUserWithAttributesByName(directoryId, username);
+        if (user == null) {
+            throw new UserNotFoundException(username);
+        }
+        return user;
+    }
+
+    @Override
+    public User findUserByName(long directoryId, String username)
+            throws DirectoryNotFoundException, UserNotFoundException, OperationFailedException {
+        call("findUserByName");
+        long index = userIndex(username);
+        return index >= 0 ? user(index) : super.findUserByName(directoryId, username);
+    }
+
+    @Override
+    public Group findGroupByName(long directoryId, String groupName)
+            throws GroupNotFoundException, DirectoryNotFoundException, OperationFailedException {
+        call("findGroupByName");
+        return path(groupName) != null ? new GroupTemplate(key(groupName), directoryId) :
+                super.findGroupByName(directoryId, groupName);
+    }
+
+    @Override
+    public <T> List<T> searchDirectGroupRelationships(long directoryId, MembershipQuery<T> query)
+            throws DirectoryNotFoundException, OperationFailedException {
+        call("searchDirectGroupRelationships");
+        return search(query, false);
+    }
+
+    @Override
+    public <T> List<T> searchNestedGroupRelationships(long directoryId, MembershipQuery<T> query)
+            throws DirectoryNotFoundException, OperationFailedException {
+        call("searchNestedGroupRelationships");
+        return search(query, true);
+    }
+
+    /**
+     * Generated usernames, in index order.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> List<T> searchUsers(long directoryId, EntityQuery<T> query)
+            throws DirectoryNotFoundException, OperationFailedException {
+        call("searchUsers");
+        return (List<T>) page(range(0, userCount, SyntheticDirectory::userName),
+                              query.getStartIndex(), query.getMaxResults());
+    }
+
+    @Override
+    public void addUserToGroup(long directoryId, String username, String groupName) {
+        checkAddedGroup(groupName);
+        addedChildUsers.put(key(groupName), username);
+        addedUserParents.put(key(username), groupName);
+    }
+
+    @Override
+    public void addGroupToGroup(long directoryId, String childGroup, String parentGroup) {
+        checkAddedGroup(parentGroup);
+        addedChildGroups.put(key(parentGroup), childGroup);
+        addedGroupParents.put(key(childGroup), parentGroup);
+    }
+
+    private void checkAddedGroup(String groupName) {
+        if (path(groupName) != null) {
+            throw new UnsupportedOperationException("Generated group " + groupName + " cannot have members added");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.opennetworking.crowd.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.poster.GzipCompressor;
+import org.opennetworking.crowd.poster.PayloadBuffer;
+import org.opennetworking.crowd.poster.PayloadWriter;
+import org.opennetworking.crowd.poster.Subscriber.Compression;
+import org.opennetworking.crowd.poster.WebhookCborWriter;
+import org.opennetworking.crowd.poster.WebhookJsonWriter;
+import org.opennetworking.crowd.poster.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+
+/**
+ * Encode (and gzip) time per event for each wire format, for a user in groups groups.
+ * <p>
+ * Payload sizes do not need a benchmark run; {@link #main} prints the bytes on the wire for
+ * the same events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+    private static final int[] GROUP_COUNTS = {3, 100, 500};
+
+    @Param({"3", "100", "500"})
+    public int groups;
+
+    @Param({"JSON", "CBOR"})
+    public WireFormat format;
+
+    @Param({"NONE", "GZIP"})
+    public Compression compression;
+
+    private WebhookEvent event;
+    private PayloadWriter writer;
+    private GzipCompressor compressor;
+    private final PayloadBuffer payload = new PayloadBuffer();
+    private final PayloadBuffer gzipped = new PayloadBuffer();
+
+    @Setup
+    public void setup() {
+        event = event(groups);
+        writer = writer(format);
+        compressor = compression == Compression.GZIP ? new GzipCompressor(Deflater.DEFAULT_COMPRESSION) : null;
+    }
+
+    private static PayloadWriter writer(WireFormat format) {
+        return format == WireFormat.CBOR ? new WebhookCborWriter() : new WebhookJsonWriter();
+    }
+
+    static WebhookEvent event(int groups) {
+        List<String> names = IntStream.range(0, groups)
+                                      .mapToObj(i -> "onf-nested-group-" + i)
+                                      .collect(Collectors.toList());
+        WebhookEvent event = new WebhookEvent();
+        event.type = USER_ADDED_GROUP;
+        event.user = new WebhookUser("test-user", "test@opennetworking.org", "Test User", "test-github",
+                                     ImmutableList.copyOf(names));
+        event.groupName = names.get(0);
+        return event;
+    }
+
+    @Benchmark
+    public int encode() {
+        payload.reset();
+        writer.write(event, payload);
+        if (compressor == null) {
+            return payload.length();
+        }
+        compressor.compress(payload, gzipped);
+        return gzipped.length();
+    }
+
+    /**
+     * Prints the body size of each format, plain and gzipped, for each group count.
+     */
+    public static void main(String[] args) {
+        GzipCompressor compressor = new GzipCompressor(Deflater.DEFAULT_COMPRESSION);
+        PayloadBuffer gzipped = new PayloadBuffer();
+        System.out.printf("%8s %10s %10s %10s %10s%n", "groups", "JSON", "JSON+gzip", "CBOR", "CBOR+gzip");
+        for (int groups : GROUP_COUNTS) {
+            WebhookEvent event = event(groups);
+            System.out.printf("%8d", groups);
+            for (WireFormat format : WireFormat.values()) {
+                PayloadBuffer payload = new PayloadBuffer();
+                writer(format).write(event, payload);
+                compressor.compress(payload, gzipped);
+                System.out.printf(" %10d %10d", payload.length(), gzipped.length());
+            }
+            System.out.println();
+        }
+    }
+}
@@ -1,5 +1,34 @@
 package org.opennetworking.crowd.api;
 
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+
+import java.util.List;
+import java.util.function.Consumer;
+
 public interface OnfEventPoster {
     void send(WebhookEvent event);
+
+    /**
+     * Sends events that belong together, e.g. from one bulk deletion, off the caller's thread
+     * where delivery is asynchronous. They share requests only where batching is on
+     * (ONF_WEBHOOK_BATCH_SIZE > 1), since the receiver has to accept batches.
+     */
+    default void sendAll(List<WebhookEvent> events) {
+        events.forEach(this::send);
+    }
+
+    /**
+     * Whether events of this type need the user's nested groups. When not, the user may be
+     * sent with groups left null, which saves looking them up.
+     */
+    default boolean wantsGroups(EventType type) {
+        return true;
+    }
+
+    /**
+     * Registers a handler for events that a receiver will never get: dead-lettered, or dropped
+     * from a full queue. It may be called on any thread.
+     */
+    default void onUndelivered(Consumer<WebhookEvent> handler) {
+    }
 }
@@ -28,6 +28,21 @@ public class WebhookUser {
         }
     }
 
+    public WebhookUser(String username, String email, String name, String githubId, List<String> groups) {
+        this.username = username;
+        this.email = email;
+        this.name = name;
+        this.githubId = githubId;
+        this.groups = groups;
+    }
+
+    /**
+     * A deleted user, known only by username.
+     */
+    public static WebhookUser deleted(String username) {
+        return new WebhookUser(username, null, null, null, null);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,169 @@
+package org.opennetworking.crowd.listener;
+
+import com.atlassian.crowd.audit.AuditLogChangeset;
+import com.atlassian.crowd.audit.AuditLogEntity;
+import com.atlassian.crowd.audit.AuditLogEntry;
+import com.atlassian.crowd.audit.query.AuditLogQuery;
+import com.atlassian.crowd.audit.query.AuditLogQueryBuilder;
+import com.atlassian.crowd.audit.query.AuditLogQueryEntityRestriction;
+import com.atlassian.crowd.manager.audit.AuditService;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Timer;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Last known audit log entry per user and attribute.
+ * <p>
+ * A user's audit history is read once, the first time one of their attributes is looked up,
+ * and the most recent entry for each attribute is kept. Entries the plugin writes itself
+ * (see {@link #record}) are added as they are saved, so later lookups of attributes only the
+ * plugin audits, such as the GitHub ID, do not query the audit log. Callers invalidate a user
+ * when Crowd writes to their audit history (e.g. email changes and deletion).
+ */
+public class AuditIndex {
+    private static final int MAX_USERS = 10000;
+    private static final int USERS_PER_QUERY = 100;
+    private static final long MAX_AGE_MINUTES = 60;
+
+    private final AuditService auditService;
+    private final Cache<String, UserHistory> users = CacheBuilder.newBuilder()
+                                                                 .maximumSize(MAX_USERS)
+                                                                 .expireAfterWrite(MAX_AGE_MINUTES, TimeUnit.MINUTES)
+                                                                 .build();
+    private final LongAdder loads = new LongAdder();
+
+    private static final class UserHistory {
+        volatile Long entityId;
+        final Map<String, AuditLogEntry> lastEntries = Maps.newConcurrentMap();
+    }
+
+    public AuditIndex(AuditService auditService) {
+        this.auditService = auditService;
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the most recent audit log entry for the user's attribute.
+     */
+    public Optional<AuditLogEntry> getLastEntry(String username, String attribute) {
+        return Optional.ofNullable(history(username).lastEntries.get(attribute));
+    }
+
+    /**
+     * Returns the user's audit log entity ID, if they have any history.
+     */
+    public Optional<Long> getEntityId(String username) {
+        return Optional.ofNullable(history(username).entityId);
+    }
+
+    /**
+     * Records an entry the plugin has saved to the audit log.
+     */
+    public void record(String username, Long entityId, AuditLogEntry entry) {
+        UserHistory history = users.getIfPresent(key(username));
+        if (history != null) {
+            history.lastEntries.put(entry.getPropertyName(), entry);
+            if (entityId != null) {
+                history.entityId = entityId;
+            }
+        }
+    }
+
+    /**
+     * Forgets the user, so their history is read again on the next lookup.
+     */
+    public void invalidate(String username) {
+        users.invalidate(key(username));
+    }
+
+    /**
+     * Number of audit log queries made.
+     */
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    /**
+     * Reads the history of all the users that are not indexed yet, a hundred users per audit
+     * log query.
+     */
+    public void preload(Collection<String> usernames) {
+        List<String> missing = usernames.stream()
+                                        .filter(username -> users.getIfPresent(key(username)) == null)
+                                        .distinct()
+                                        .collect(Collectors.toList());
+        for (List<String> chunk : Lists.partition(missing, USERS_PER_QUERY)) {
+            load(chunk).forEach(users::put);
+        }
+    }
+
+    private UserHistory history(String username) {
+        UserHistory history = users.getIfPresent(key(username));
+        if (history == null) {
+            history = load(ImmutableList.of(username)).get(key(username));
+            users.put(key(username), history);
+        }
+        return history;
+    }
+
+    private Map<String, UserHistory> load(List<String> usernames) {
+        loads.increment();
+        AuditLogQuery<AuditLogChangeset> query = AuditLogQueryBuilder.queryFor(AuditLogChangeset.class)
+                .setUsers(usernames.stream()
+                                   .map(AuditLogQueryEntityRestriction::name)
+                                   .collect(Collectors.toList()))
+                .build();
+        long start = System.nanoTime();
+        List<AuditLogChangeset> changesets = auditService.searchAuditLog(query);
+        WebhookMetrics.get().time(Timer.AUDIT_QUERY, start);
+
+        Map<String, UserHistory> histories = Maps.newHashMap();
+        usernames.forEach(username -> histories.put(key(username), new UserHistory()));
+        // Changesets come back most recent first; keep the first entry seen for each attribute
+        for (AuditLogChangeset changeset : changesets) {
+            if (usernames.size() == 1) {
+                // Everything returned is about this user
+                String username = usernames.get(0);
+                add(histories.get(key(username)), changeset, changeset.getEntity()
+                        .filter(e -> Objects.equals(e.getEntityName(), username))
+                        .map(AuditLogEntity::getEntityId)
+                        .orElse(null));
+                continue;
+            }
+            for (AuditLogEntity entity : changeset.getEntities()) {
+                UserHistory history = entity.getEntityName() != null ?
+                        histories.get(key(entity.getEntityName())) : null;
+                if (history != null) {
+                    add(history, changeset, entity.getEntityId());
+                }
+            }
+        }
+        return histories;
+    }
+
+    private static void add(UserHistory history, AuditLogChangeset changeset, Long entityId) {
+        for (AuditLogEntry entry : changeset.getEntries()) {
+            history.lastEntries.putIfAbsent(entry.getPropertyName(), entry);
+        }
+        if (history.entityId == null) {
+            history.entityId = entityId;
+        }
+    }
+}
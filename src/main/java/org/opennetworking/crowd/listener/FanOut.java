@@ -0,0 +1,213 @@
+package org.opennetworking.crowd.listener;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Failure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Spreads per-user work for one Crowd event (e.g. everyone in a group that was just nested)
+ * over a fixed set of lanes, each served by its own thread.
+ * <p>
+ * Users are assigned to lanes by a hash of their username, so all work for a given user
+ * runs in submission order, even across events. The listener handles every event about a
+ * user on their lane, not only membership changes. Each lane has a bounded queue; when it is
+ * full the submitting (Crowd event) thread waits. With no threads, work runs on the caller.
+ */
+public class FanOut {
+    private static final Logger logger = LoggerFactory.getLogger(FanOut.class);
+
+    private final ThreadPoolExecutor[] lanes;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public FanOut(int threads, int queueCapacity) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("onf-webhook-fanout-%d")
+                .setDaemon(true)
+                .build();
+        lanes = new ThreadPoolExecutor[Math.max(threads, 0)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                              new LinkedBlockingQueue<>(queueCapacity), threadFactory,
+                                              (task, executor) -> {
+                                                  if (executor.isShutdown()) {
+                                                      throw new RejectedExecutionException("Fan-out is closed");
+                                                  }
+                                                  try {
+                                                      executor.getQueue().put(task); // wait for room
+                                                  } catch (InterruptedException e) {
+                                                      Thread.currentThread().interrupt();
+                                                      throw new RejectedExecutionException(e);
+                                                  }
+                                              });
+        }
+    }
+
+    /**
+     * Tracks the work submitted for one Crowd event and logs a summary when all of it is done.
+     */
+    public final class Operation {
+        private final String description;
+        private final long startedAt = System.currentTimeMillis();
+        private final AtomicInteger pending = new AtomicInteger(1); // released by done()
+        private final LongAdder users = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        private Operation(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Runs task for each user, on the user's lane.
+         */
+        public void submit(Collection<String> usernames, Consumer<String> task) {
+            if (lanes.length == 0) {
+                usernames.forEach(username -> run(username, task));
+                return;
+            }
+            List<List<String>> chunks = Lists.newArrayListWithCapacity(lanes.length);
+            for (int i = 0; i < lanes.length; i++) {
+                chunks.add(Lists.newArrayList());
+            }
+            usernames.forEach(username -> chunks.get(lane(username)).add(username));
+            for (int i = 0; i < lanes.length; i++) {
+                List<String> chunk = chunks.get(i);
+                if (chunk.isEmpty()) {
+                    continue;
+                }
+                pending.incrementAndGet();
+                try {
+                    lanes[i].execute(() -> {
+                        chunk.forEach(username -> run(username, task));
+                        release();
+                    });
+                } catch (RejectedExecutionException e) {
+                    logger.error("ONF Webhook fan-out rejected {} users for {}", chunk.size(), description);
+                    errors.add(chunk.size());
+                    failed.add(chunk.size());
+                    for (int j = 0; j < chunk.size(); j++) {
+                        WebhookMetrics.get().failure(Failure.FAN_OUT);
+                    }
+                    release();
+                }
+            }
+        }
+
+        /**
+         * Marks the end of submission.
+         */
+        public void done() {
+            release();
+        }
+
+        private void run(String username, Consumer<String> task) {
+            users.increment();
+            try {
+                task.accept(username);
+                completed.increment();
+            } catch (RuntimeException e) {
+                errors.increment();
+                failed.increment();
+                WebhookMetrics.get().failure(Failure.FAN_OUT);
+                logger.error("ONF Webhook fan-out failed for user {} ({})", username, description, e);
+            }
+        }
+
+        private void release() {
+            if (pending.decrementAndGet() == 0) {
+                WebhookMetrics.get().fanOut(users.sum());
+                String message = "ONF Webhook fan-out for {} finished: {} users, {} failed in {} ms";
+                Object[] args = {description, users.sum(), errors.sum(), System.currentTimeMillis() - startedAt};
+                if (users.sum() > 1) {
+                    logger.info(message, args);
+                } else {
+                    logger.debug(message, args);
+                }
+            }
+        }
+    }
+
+    public Operation start(String description) {
+        return new Operation(description);
+    }
+
+    /**
+     * Waits for the work already queued for these users to finish, so that the caller can go on
+     * to handle them itself, in order.
+     */
+    public void awaitUsers(Collection<String> usernames) throws InterruptedException {
+        if (lanes.length == 0) {
+            return;
+        }
+        boolean[] used = new boolean[lanes.length];
+        usernames.forEach(username -> used[lane(username)] = true);
+        int count = 0;
+        for (boolean u : used) {
+            count += u ? 1 : 0;
+        }
+        CountDownLatch drained = new CountDownLatch(count);
+        for (int i = 0; i < lanes.length; i++) {
+            if (!used[i]) {
+                continue;
+            }
+            try {
+                lanes[i].execute(drained::countDown);
+            } catch (RejectedExecutionException e) {
+                drained.countDown(); // closed
+            }
+        }
+        drained.await();
+    }
+
+    private int lane(String username) {
+        return Math.floorMod(username.toLowerCase(Locale.ENGLISH).hashCode(), lanes.length);
+    }
+
+    /**
+     * Number of users processed successfully since start.
+     */
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public int getQueuedCount() {
+        int queued = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queued += lane.getQueue().size();
+        }
+        return queued;
+    }
+
+    /**
+     * Finishes queued work, waiting up to timeoutMillis.
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package org.opennetworking.crowd.listener;
+
+import com.atlassian.crowd.exception.DirectoryNotFoundException;
+import com.atlassian.crowd.exception.GroupNotFoundException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.manager.directory.DirectoryManager;
+import com.atlassian.crowd.model.membership.MembershipType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Timer;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory view of the nested group hierarchy of each directory.
+ * <p>
+ * For every group that has been looked up the cache keeps its direct parents, the child
+ * groups seen so far, the transitive set of ancestors and, for groups that fit in a single
+ * page of search results, the nested user members. Entries are loaded from the
+ * DirectoryManager on first use and then kept up to date from the membership events the
+ * listener receives, so repeated lookups do not go back to the directory.
+ * <p>
+ * Changes that do not raise Crowd events (e.g. some LDAP synchronisations) are picked up
+ * when a directory's entries are dropped, at most maxStalenessMillis after they were first
+ * loaded. A maxStalenessMillis of 0 disables caching.
+ */
+public class GroupHierarchyCache {
+    private final DirectoryManager directoryManager;
+    private final MembershipPager pager;
+    private final long maxStalenessMillis;
+    private final LongSupplier clock;
+    private final ConcurrentMap<Long, Hierarchy> hierarchies = Maps.newConcurrentMap();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public GroupHierarchyCache(DirectoryManager directoryManager, MembershipPager pager, long maxStalenessMillis) {
+        this(directoryManager, pager, maxStalenessMillis, System::currentTimeMillis);
+    }
+
+    public GroupHierarchyCache(DirectoryManager directoryManager, MembershipPager pager, long maxStalenessMillis,
+                               LongSupplier clock) {
+        this.directoryManager = directoryManager;
+        this.pager = pager;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.clock = clock;
+    }
+
+    private static final class Node {
+        final String key;
+        final String name;
+        Set<String> parents; // keys of the direct parent groups; null until loaded
+        final Set<String> children = Sets.newHashSet(); // keys of child groups whose parents are loaded
+        Set<String> groupAndAncestors; // null until computed
+        List<String> nestedUsers; // null until loaded, or when there are more than a page
+
+        Node(String key, String name) {
+            this.key = key;
+            this.name = name;
+        }
+    }
+
+    private static final class Hierarchy {
+        final long loadedAt;
+        final Map<String, Node> nodes = Maps.newHashMap();
+        long nestedUsersVersion; // bumped whenever nested users are invalidated
+
+        Hierarchy(long loadedAt) {
+            this.loadedAt = loadedAt;
+        }
+
+        Node node(String name) {
+            return nodes.computeIfAbsent(key(name), key -> new Node(key, name));
+        }
+    }
+
+    private static String key(String groupName) {
+        return groupName.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the group (by its canonical name) and all groups it is nested in.
+     */
+    public Set<String> getGroupAndAncestors(long directoryId, String groupName)
+            throws DirectoryNotFoundException, GroupNotFoundException, OperationFailedException {
+        Hierarchy hierarchy = hierarchy(directoryId);
+        synchronized (hierarchy) {
+            Node node = hierarchy.nodes.get(key(groupName));
+            if (node != null && node.groupAndAncestors != null) {
+                hits.increment();
+                return node.groupAndAncestors;
+            }
+            misses.increment();
+            if (node == null) {
+                long start = System.nanoTime();
+                node = hierarchy.node(directoryManager.findGroupByName(directoryId, groupName).getName());
+                WebhookMetrics.get().time(Timer.DIRECTORY_LOOKUP, start);
+            }
+            node.groupAndAncestors = computeGroupAndAncestors(directoryId, hierarchy, node);
+            return node.groupAndAncestors;
+        }
+    }
+
+    /**
+     * Passes the users that are members of the group, directly or through nested groups, to
+     * consumer a page at a time.
+     */
+    public void forEachNestedUser(long directoryId, String groupName, Consumer<List<String>> consumer)
+            throws DirectoryNotFoundException, OperationFailedException {
+        Hierarchy hierarchy = hierarchy(directoryId);
+        long version;
+        synchronized (hierarchy) {
+            Node node = hierarchy.nodes.get(key(groupName));
+            if (node != null && node.nestedUsers != null) {
+                hits.increment();
+                if (!node.nestedUsers.isEmpty()) {
+                    consumer.accept(node.nestedUsers);
+                }
+                return;
+            }
+            version = hierarchy.nestedUsersVersion;
+        }
+        misses.increment();
+        // Large groups are streamed without holding the hierarchy's lock
+        List<List<String>> pages = Lists.newArrayListWithCapacity(1);
+        pager.forEachNestedUser(directoryId, groupName, page -> {
+            if (pages.size() < 2) {
+                pages.add(page);
+            }
+            consumer.accept(page);
+        });
+        if (pages.size() < 2) {
+            synchronized (hierarchy) {
+                if (hierarchy.nestedUsersVersion == version) { // not changed while streaming
+                    hierarchy.node(groupName).nestedUsers = pages.isEmpty() ?
+                            ImmutableList.of() : ImmutableList.copyOf(pages.get(0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a GroupMembershipsCreatedEvent.
+     */
+    public void membershipsCreated(long directoryId, String groupName, MembershipType type,
+                                   Collection<String> entityNames) {
+        Hierarchy hierarchy = cachedHierarchy(directoryId);
+        if (hierarchy == null) {
+            return;
+        }
+        synchronized (hierarchy) {
+            if (type == MembershipType.GROUP_GROUP) {
+                Node parent = hierarchy.node(groupName);
+                for (String childName : entityNames) {
+                    Node child = hierarchy.nodes.get(key(childName));
+                    if (child != null && child.parents != null) {
+                        child.parents.add(parent.key);
+                        parent.children.add(child.key);
+                    }
+                    invalidateAncestors(hierarchy, childName);
+                }
+            }
+            invalidateNestedUsers(hierarchy, groupName);
+        }
+    }
+
+    /**
+     * Applies a GroupMembershipDeletedEvent.
+     */
+    public void membershipDeleted(long directoryId, String groupName, MembershipType type, String entityName) {
+        Hierarchy hierarchy = cachedHierarchy(directoryId);
+        if (hierarchy == null) {
+            return;
+        }
+        synchronized (hierarchy) {
+            if (type == MembershipType.GROUP_GROUP) {
+                Node parent = hierarchy.nodes.get(key(groupName));
+                Node child = hierarchy.nodes.get(key(entityName));
+                if (child != null && child.parents != null) {
+                    child.parents.remove(key(groupName));
+                }
+                if (parent != null) {
+                    parent.children.remove(key(entityName));
+                }
+                invalidateAncestors(hierarchy, entityName);
+            }
+            invalidateNestedUsers(hierarchy, groupName);
+        }
+    }
+
+    /**
+     * Drops everything cached for the directory, e.g. when a group is deleted.
+     */
+    public void invalidate(long directoryId) {
+        if (hierarchies.remove(directoryId) != null) {
+            invalidations.increment();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    /**
+     * Upper bound on how old a cached entry can be.
+     */
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    /**
+     * Age of the oldest entry currently cached, or 0 when the cache is empty.
+     */
+    public long getOldestEntryAgeMillis() {
+        long now = clock.getAsLong();
+        return hierarchies.values().stream()
+                          .mapToLong(hierarchy -> now - hierarchy.loadedAt)
+                          .max()
+                          .orElse(0);
+    }
+
+    private Hierarchy hierarchy(long directoryId) {
+        Hierarchy hierarchy = cachedHierarchy(directoryId);
+        if (hierarchy != null) {
+            return hierarchy;
+        }
+        Hierarchy fresh = new Hierarchy(clock.getAsLong());
+        if (maxStalenessMillis <= 0) {
+            return fresh; // caching disabled; used for this lookup only
+        }
+        Hierarchy existing = hierarchies.putIfAbsent(directoryId, fresh);
+        return existing != null ? existing : fresh;
+    }
+
+    private Hierarchy cachedHierarchy(long directoryId) {
+        Hierarchy hierarchy = hierarchies.get(directoryId);
+        if (hierarchy != null && clock.getAsLong() - hierarchy.loadedAt >= maxStalenessMillis) {
+            if (hierarchies.remove(directoryId, hierarchy)) {
+                invalidations.increment();
+            }
+            return null;
+        }
+        return hierarchy;
+    }
+
+    private Set<String> computeGroupAndAncestors(long directoryId, Hierarchy hierarchy, Node node)
+            throws DirectoryNotFoundException, OperationFailedException {
+        Set<String> result = Sets.newLinkedHashSet();
+        result.add(node.name);
+        Set<String> visited = Sets.newHashSet(node.key);
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            for (String parentKey : parents(directoryId, hierarchy, pending.pop())) {
+                if (!visited.add(parentKey)) {
+                    continue; // already seen, or a cycle
+                }
+                Node parent = hierarchy.nodes.get(parentKey);
+                if (parent.groupAndAncestors != null) {
+                    result.addAll(parent.groupAndAncestors);
+                    parent.groupAndAncestors.forEach(name -> visited.add(key(name)));
+                } else {
+                    result.add(parent.name);
+                    pending.push(parent);
+                }
+            }
+        }
+        return ImmutableSet.copyOf(result);
+    }
+
+    private Set<String> parents(long directoryId, Hierarchy hierarchy, Node node)
+            throws DirectoryNotFoundException, OperationFailedException {
+        if (node.parents == null) {
+            List<String> names = pager.getDirectParentGroups(directoryId, node.name);
+            Set<String> parents = Sets.newHashSet();
+            for (String name : names) {
+                Node parent = hierarchy.node(name);
+                parent.children.add(node.key);
+                parents.add(parent.key);
+            }
+            node.parents = parents;
+        }
+        return node.parents;
+    }
+
+    /**
+     * Forgets the ancestors of the group and of every group below it.
+     */
+    private void invalidateAncestors(Hierarchy hierarchy, String groupName) {
+        Deque<String> pending = new ArrayDeque<>();
+        Set<String> visited = Sets.newHashSet(key(groupName));
+        pending.push(key(groupName));
+        while (!pending.isEmpty()) {
+            Node node = hierarchy.nodes.get(pending.pop());
+            if (node == null) {
+                continue;
+            }
+            node.groupAndAncestors = null;
+            for (String child : node.children) {
+                if (visited.add(child)) {
+                    pending.push(child);
+                }
+            }
+        }
+        invalidations.increment();
+    }
+
+    /**
+     * Forgets the nested users of the group and of every group above it.
+     */
+    private void invalidateNestedUsers(Hierarchy hierarchy, String groupName) {
+        hierarchy.nestedUsersVersion++;
+        Node node = hierarchy.nodes.get(key(groupName));
+        if (node != null && node.groupAndAncestors != null) {
+            for (String ancestor : node.groupAndAncestors) {
+                Node ancestorNode = hierarchy.nodes.get(key(ancestor));
+                if (ancestorNode != null) {
+                    ancestorNode.nestedUsers = null;
+                }
+            }
+        } else {
+            // The ancestors are not known, so any cached group could be one of them
+            hierarchy.nodes.values().forEach(n -> n.nestedUsers = null);
+        }
+        invalidations.increment();
+    }
+}
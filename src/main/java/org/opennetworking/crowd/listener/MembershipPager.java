@@ -0,0 +1,105 @@
+package org.opennetworking.crowd.listener;
+
+import com.atlassian.crowd.exception.DirectoryNotFoundException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.manager.directory.DirectoryManager;
+import com.atlassian.crowd.search.EntityDescriptor;
+import com.atlassian.crowd.search.builder.QueryBuilder;
+import com.atlassian.crowd.search.query.membership.MembershipQuery;
+import com.google.common.collect.ImmutableList;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Timer;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Runs membership searches one page at a time, so results are not capped and large groups
+ * do not have to be held in memory.
+ * <p>
+ * Each page is a separate query; memberships that change while a search is being paged
+ * through may be missed or seen twice.
+ */
+public class MembershipPager {
+    private final DirectoryManager directoryManager;
+    private final int pageSize;
+
+    /**
+     * Builds the query for one page.
+     */
+    private interface PageQuery {
+        MembershipQuery<String> page(int startIndex, int maxResults);
+    }
+
+    public MembershipPager(DirectoryManager directoryManager, int pageSize) {
+        this.directoryManager = directoryManager;
+        this.pageSize = Math.max(pageSize, 1);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Passes the users in the group or its nested groups to consumer, a page at a time.
+     */
+    public void forEachNestedUser(long directoryId, String groupName, Consumer<List<String>> consumer)
+            throws DirectoryNotFoundException, OperationFailedException {
+        forEachPage(directoryId, true, (start, max) ->
+                QueryBuilder.queryFor(String.class, EntityDescriptor.user())
+                        .childrenOf(EntityDescriptor.group())
+                        .withName(groupName)
+                        .startingAt(start)
+                        .returningAtMost(max), consumer);
+    }
+
+    /**
+     * Returns the groups the group is a direct member of.
+     */
+    public List<String> getDirectParentGroups(long directoryId, String groupName)
+            throws DirectoryNotFoundException, OperationFailedException {
+        return searchAll(directoryId, false, (start, max) ->
+                QueryBuilder.queryFor(String.class, EntityDescriptor.group())
+                        .parentsOf(EntityDescriptor.group())
+                        .withName(groupName)
+                        .startingAt(start)
+                        .returningAtMost(max));
+    }
+
+    /**
+     * Returns the groups the user is a member of, directly or through nested groups.
+     */
+    public List<String> getNestedGroupsOfUser(long directoryId, String username)
+            throws DirectoryNotFoundException, OperationFailedException {
+        return searchAll(directoryId, true, (start, max) ->
+                QueryBuilder.queryFor(String.class, EntityDescriptor.group())
+                        .parentsOf(EntityDescriptor.user())
+                        .withName(username)
+                        .startingAt(start)
+                        .returningAtMost(max));
+    }
+
+    private List<String> searchAll(long directoryId, boolean nested, PageQuery query)
+            throws DirectoryNotFoundException, OperationFailedException {
+        ImmutableList.Builder<String> results = ImmutableList.builder();
+        forEachPage(directoryId, nested, query, results::addAll);
+        return results.build();
+    }
+
+    private void forEachPage(long directoryId, boolean nested, PageQuery query, Consumer<List<String>> consumer)
+            throws DirectoryNotFoundException, OperationFailedException {
+        List<String> page;
+        int start = 0;
+        do {
+            MembershipQuery<String> pageQuery = query.page(start, pageSize);
+            long startNanos = System.nanoTime();
+            page = nested ? directoryManager.searchNestedGroupRelationships(directoryId, pageQuery) :
+                    directoryManager.searchDirectGroupRelationships(directoryId, pageQuery);
+            WebhookMetrics.get().time(Timer.DIRECTORY_LOOKUP, startNanos);
+            if (!page.isEmpty()) {
+                consumer.accept(page);
+            }
+            start += page.size();
+        } while (page.size() == pageSize);
+    }
+}
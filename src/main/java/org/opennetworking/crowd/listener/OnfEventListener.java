@@ -1,9 +1,8 @@
 package org.opennetworking.crowd.listener;
 
 import com.atlassian.crowd.audit.*;
-import com.atlassian.crowd.audit.query.AuditLogQuery;
-import com.atlassian.crowd.audit.query.AuditLogQueryBuilder;
-import com.atlassian.crowd.audit.query.AuditLogQueryEntityRestriction;
+import com.atlassian.crowd.embedded.api.Directory;
+import com.atlassian.crowd.event.group.GroupDeletedEvent;
 import com.atlassian.crowd.event.group.GroupMembershipDeletedEvent;
 import com.atlassian.crowd.event.group.GroupMembershipsCreatedEvent;
 import com.atlassian.crowd.event.user.*;
@@ -17,21 +16,30 @@ import com.atlassian.crowd.model.audit.AuditLogChangesetEntity;
 import com.atlassian.crowd.model.audit.AuditLogEntityEntity;
 import com.atlassian.crowd.model.audit.AuditLogEntryEntity;
 import com.atlassian.crowd.model.membership.MembershipType;
-import com.atlassian.crowd.search.EntityDescriptor;
-import com.atlassian.crowd.search.builder.QueryBuilder;
 import com.atlassian.event.api.EventListener;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.opennetworking.crowd.api.OnfEventPoster;
 import org.opennetworking.crowd.api.WebhookEvent;
 import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Failure;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Timer;
+import org.opennetworking.crowd.poster.PosterSettings;
+import org.opennetworking.crowd.reconcile.Reconciler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
@@ -43,7 +51,13 @@ public class OnfEventListener {
     private static final Logger logger = LoggerFactory.getLogger(OnfEventListener.class);
 
 
-    public static final int MAX_RESULTS = 1000;
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    private static final long DEFAULT_GROUP_CACHE_MAX_STALENESS_MILLIS = 10 * 60 * 1000;
+    private static final long DEFAULT_USER_CACHE_TTL_MILLIS = 30 * 1000;
+    private static final int DEFAULT_FANOUT_THREADS = 4;
+    private static final int DEFAULT_FANOUT_QUEUE_CAPACITY = 1000;
+    private static final long FANOUT_CLOSE_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int DEFAULT_STATE_STORE_CAPACITY = 1 << 20;
 
 //    @ComponentImport
     private final OnfEventPoster onfEventPoster;
@@ -54,28 +68,157 @@ public class OnfEventListener {
     @ComponentImport
     private final AuditService auditService;
 
+    private final MembershipPager pager;
+    private final GroupHierarchyCache groupCache;
+    private final WebhookUserCache userCache;
+    private final FanOut fanOut;
+    private final AuditIndex auditIndex;
+    private final UserStateStore stateStore; // null when every event is sent
+    private final WebhookMetrics metrics = WebhookMetrics.get();
+
     @Inject
     public OnfEventListener(final OnfEventPoster onfEventPoster,
                             final DirectoryManager directoryManager,
-                            final AuditService auditService)
+                            final AuditService auditService,
+                            final Reconciler reconciler)
+    {
+        this(onfEventPoster, directoryManager, auditService, PosterSettings.fromEnv());
+        // Reconciliation leaves out what was already sent live
+        reconciler.setStateStore(stateStore);
+    }
+
+    public OnfEventListener(final OnfEventPoster onfEventPoster,
+                            final DirectoryManager directoryManager,
+                            final AuditService auditService,
+                            final PosterSettings settings)
+    {
+        this(onfEventPoster, directoryManager, auditService,
+             new MembershipPager(directoryManager, settings.getInt("ONF_WEBHOOK_PAGE_SIZE", DEFAULT_PAGE_SIZE)),
+             settings);
+    }
+
+    private OnfEventListener(final OnfEventPoster onfEventPoster,
+                             final DirectoryManager directoryManager,
+                             final AuditService auditService,
+                             final MembershipPager pager,
+                             final PosterSettings settings)
+    {
+        this(onfEventPoster, directoryManager, auditService, pager,
+             new GroupHierarchyCache(directoryManager, pager, settings.getLong(
+                     "ONF_WEBHOOK_GROUP_CACHE_MAX_STALENESS_MILLIS", DEFAULT_GROUP_CACHE_MAX_STALENESS_MILLIS)),
+             new WebhookUserCache(settings.getLong("ONF_WEBHOOK_USER_CACHE_TTL_MILLIS", DEFAULT_USER_CACHE_TTL_MILLIS)),
+             // ONF_WEBHOOK_FANOUT_THREADS=0 handles membership changes on the Crowd event thread
+             new FanOut(settings.getInt("ONF_WEBHOOK_FANOUT_THREADS", DEFAULT_FANOUT_THREADS),
+                        settings.getInt("ONF_WEBHOOK_FANOUT_QUEUE_CAPACITY", DEFAULT_FANOUT_QUEUE_CAPACITY)),
+             openStateStore(settings));
+    }
+
+    private static UserStateStore openStateStore(PosterSettings settings) {
+        if (!settings.getBoolean("ONF_WEBHOOK_STATE_STORE", false)) {
+            return null;
+        }
+        File path = new File(settings.getDataDir(), "user-state.map");
+        try {
+            return new UserStateStore(path, settings.getInt("ONF_WEBHOOK_STATE_STORE_CAPACITY",
+                                                            DEFAULT_STATE_STORE_CAPACITY));
+        } catch (IOException e) {
+            logger.error("Unable to open ONF Webhook user state in " + path + "; sending every event", e);
+            return null;
+        }
+    }
+
+    public OnfEventListener(final OnfEventPoster onfEventPoster,
+                            final DirectoryManager directoryManager,
+                            final AuditService auditService,
+                            final MembershipPager pager,
+                            final GroupHierarchyCache groupCache,
+                            final WebhookUserCache userCache,
+                            final FanOut fanOut)
+    {
+        this(onfEventPoster, directoryManager, auditService, pager, groupCache, userCache, fanOut, null);
+    }
+
+    /**
+     * @param stateStore what receivers were last sent, for dropping events that change nothing;
+     *                   null to send every event
+     */
+    public OnfEventListener(final OnfEventPoster onfEventPoster,
+                            final DirectoryManager directoryManager,
+                            final AuditService auditService,
+                            final MembershipPager pager,
+                            final GroupHierarchyCache groupCache,
+                            final WebhookUserCache userCache,
+                            final FanOut fanOut,
+                            final UserStateStore stateStore)
     {
         this.onfEventPoster = onfEventPoster;
         this.directoryManager = directoryManager;
         this.auditService = auditService;
+        this.pager = pager;
+        this.groupCache = groupCache;
+        this.userCache = userCache;
+        this.fanOut = fanOut;
+        this.auditIndex = new AuditIndex(auditService);
+        this.stateStore = stateStore;
+        if (stateStore != null) {
+            onfEventPoster.onUndelivered(this::undelivered);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        fanOut.close(FANOUT_CLOSE_TIMEOUT_MILLIS);
+        if (stateStore != null) {
+            stateStore.close();
+        }
+    }
+
+    public GroupHierarchyCache getGroupCache() {
+        return groupCache;
+    }
+
+    public WebhookUserCache getUserCache() {
+        return userCache;
+    }
+
+    public FanOut getFanOut() {
+        return fanOut;
+    }
+
+    public AuditIndex getAuditIndex() {
+        return auditIndex;
+    }
+
+    public UserStateStore getStateStore() {
+        return stateStore;
     }
 
     @EventListener
     public void userCreated(UserCreatedEvent event) {
+        onUserLane("user created", event.getUser().getName(), () -> handleUserCreated(event));
+    }
+
+    private void handleUserCreated(UserCreatedEvent event) {
         /*
           Actions:
            - Validate email address
            - Check group membership (in case one was auto-added)
          */
-        WebhookUser user = getUser(event.getDirectoryId(), event.getUser().getName());
+        userCache.invalidate(event.getDirectoryId(), event.getUser().getName());
+        // The state store is seeded with the new user's groups
+        WebhookUser user = getUser(event.getDirectoryId(), event.getUser().getName(),
+                                   onfEventPoster.wantsGroups(USER_ADDED) || stateStore != null);
         WebhookEvent webhookEvent = new WebhookEvent();
         webhookEvent.type = USER_ADDED;
         webhookEvent.user = user;
         this.sendEvent(webhookEvent);
+        if (stateStore != null && user != null) {
+            long directoryId = event.getDirectoryId();
+            stateStore.forget(directoryId, user.username); // a new user may reuse an old name
+            stateStore.record(directoryId, user.username, UserStateStore.EMAIL, user.email);
+            stateStore.record(directoryId, user.username, UserStateStore.GITHUB_ID, user.githubId);
+            user.groups.forEach(group -> stateStore.recordMembership(directoryId, user.username, group, true));
+        }
     }
 
     @EventListener
@@ -84,29 +227,66 @@ public class OnfEventListener {
           Actions:
            - Remove users from external groups / teams
          */
-        event.getUsernames().forEach(username -> {
+        final Collection<String> usernames = event.getUsernames();
+        // The deletions are sent together from here, after the users' earlier events
+        try {
+            fanOut.awaitUsers(usernames);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted waiting for ONF Webhook fan-out before deleting {} users", usernames.size());
+        }
+        userCache.invalidate(event.getDirectoryId(), usernames);
+        usernames.forEach(auditIndex::invalidate); // Crowd has audited the deletions
+        auditIndex.preload(usernames);
+
+        // Work out all the audit entries and webhook events before writing anything
+        final Map<String, AuditLogEntryEntity> auditEntries = Maps.newLinkedHashMap();
+        final List<WebhookEvent> webhookEvents = Lists.newArrayListWithCapacity(usernames.size());
+        usernames.forEach(username -> {
             WebhookEvent webhookEvent = new WebhookEvent();
             webhookEvent.type = USER_DELETED;
-            AuditLogEntry entry = createAuditEntry(
-                username, GITHUB_ID_ATTRIBUTE, "", event.getTimestamp());
-            System.out.println(entry);
-            if (entry != null && !isNullOrEmpty(entry.getOldValue())) {
-                webhookEvent.oldGithubId = entry.getOldValue();
+            webhookEvent.user = WebhookUser.deleted(username); // for keeping the user's events in order
+            AuditLogEntryEntity entry = newAuditEntry(username, GITHUB_ID_ATTRIBUTE, "");
+            if (entry != null) {
+                auditEntries.put(username, entry);
+                if (!isNullOrEmpty(entry.getOldValue())) {
+                    webhookEvent.oldGithubId = entry.getOldValue();
+                }
             }  // else, no old Github ID
             // TODO(bocon): fix email audit log
             getAuditEntry(username, EMAIL_ATTRIBUTE).ifPresent(e ->
                     webhookEvent.oldEmail = e.getOldValue()); // user deleted will be most recent in audit log
-            this.sendEvent(webhookEvent);
+            webhookEvents.add(webhookEvent);
         });
+
+        auditEntries.forEach((username, entry) -> saveAuditEntry(username, entry, event.getTimestamp()));
+        this.onfEventPoster.sendAll(webhookEvents);
+        webhookEvents.forEach(e -> metrics.sent(e.type));
+        usernames.forEach(auditIndex::invalidate);
+        if (stateStore != null) {
+            usernames.forEach(username -> stateStore.forget(event.getDirectoryId(), username));
+        }
     }
 
     @EventListener
     public void userEmailUpdated(UserEmailChangedEvent event) {
+        onUserLane("email updated", event.getUser().getName(), () -> handleUserEmailUpdated(event));
+    }
+
+    private void handleUserEmailUpdated(UserEmailChangedEvent event) {
         /*
           Actions:
            - Validate email address
          */
-        WebhookUser user = getUser(event.getDirectoryId(), event.getUser().getName());
+        userCache.invalidate(event.getDirectoryId(), event.getUser().getName());
+        auditIndex.invalidate(event.getUser().getName()); // Crowd has audited the change
+        if (stateStore != null && stateStore.isSame(event.getDirectoryId(), event.getUser().getName(),
+                                                    UserStateStore.EMAIL, event.getUser().getEmailAddress())) {
+            metrics.suppressed(USER_UPDATED_EMAIL);
+            return; // receivers already have this email
+        }
+        WebhookUser user = getUser(event.getDirectoryId(), event.getUser().getName(),
+                                   onfEventPoster.wantsGroups(USER_UPDATED_EMAIL));
         WebhookEvent webhookEvent = new WebhookEvent();
         webhookEvent.type = USER_UPDATED_EMAIL;
         webhookEvent.user = user;
@@ -114,10 +294,15 @@ public class OnfEventListener {
         getAuditEntry(event.getUser().getName(), EMAIL_ATTRIBUTE).ifPresent(entry ->
                 webhookEvent.oldEmail = entry.getOldValue());
         this.sendEvent(webhookEvent);
+        record(event.getDirectoryId(), user.username, UserStateStore.EMAIL, user.email);
     }
 
     @EventListener
     public void userAttributeStored(UserAttributeStoredEvent event) {
+        onUserLane("attributes stored", event.getUser().getName(), () -> handleUserAttributeStored(event));
+    }
+
+    private void handleUserAttributeStored(UserAttributeStoredEvent event) {
         /*
           GitHub user could have been added; if so, it will be in the event
 
@@ -126,19 +311,27 @@ public class OnfEventListener {
              if the user is a member of the right Crowd group
          */
         // Note: event.getAttributeValues(key) only contains updated attributes
+        userCache.invalidate(event.getDirectoryId(), event.getUser().getName());
         if (event.getAttributeNames().contains(GITHUB_ID_ATTRIBUTE)) {
-            WebhookUser user = getUser(event.getDirectoryId(), event.getUser().getName());
+            final String username = event.getUser().getName();
             // TODO grabbing the first value for now; we don't support multiple Github IDs
             // In some cases, it seems like getAttributeValues returns an empty collection; not sure why?
-            String newValue = event.getAttributeValues(GITHUB_ID_ATTRIBUTE).stream().findFirst()
-                                   .orElseGet(() -> {
-                                       logger.warn("Event missing Github ID -- user: {} / github id: {}",
-                                                   user.name, user.githubId);
-                                       return ""; // return empty string for now
-                                   });
-            AuditLogEntry entry = createAuditEntry(event.getUser().getName(), GITHUB_ID_ATTRIBUTE,
-                                                   newValue, event.getTimestamp());
+            Optional<String> eventValue = event.getAttributeValues(GITHUB_ID_ATTRIBUTE).stream().findFirst();
+            if (stateStore != null && eventValue.isPresent() &&
+                    stateStore.isSame(event.getDirectoryId(), username, UserStateStore.GITHUB_ID, eventValue.get())) {
+                metrics.suppressed(USER_UPDATED_GITHUB);
+                return; // receivers already have this Github ID
+            }
+            WebhookUser user = getUser(event.getDirectoryId(), username,
+                                       onfEventPoster.wantsGroups(USER_ADDED_GITHUB) ||
+                                               onfEventPoster.wantsGroups(USER_UPDATED_GITHUB));
+            String newValue = eventValue.orElseGet(() -> {
+                logger.warn("Event missing Github ID -- user: {} / github id: {}", user.name, user.githubId);
+                return ""; // return empty string for now
+            });
+            AuditLogEntry entry = createAuditEntry(username, GITHUB_ID_ATTRIBUTE, newValue, event.getTimestamp());
             if (entry == null) {
+                record(event.getDirectoryId(), username, UserStateStore.GITHUB_ID, newValue);
                 return;  // Github ID was not updated
             }
             boolean isUpdated = !isNullOrEmpty(entry.getOldValue());
@@ -150,21 +343,34 @@ public class OnfEventListener {
             }
             webhookEvent.newGithubId = entry.getNewValue();
             this.sendEvent(webhookEvent);
+            record(event.getDirectoryId(), username, UserStateStore.GITHUB_ID, newValue);
         }
     }
 
     @EventListener
     public void userAttributeDeleted(UserAttributeDeletedEvent event) {
+        onUserLane("attribute deleted", event.getUser().getName(), () -> handleUserAttributeDeleted(event));
+    }
+
+    private void handleUserAttributeDeleted(UserAttributeDeletedEvent event) {
         /*
           GitHub user could have been deleted; if so, it will be in the event
 
           Actions:
            - Remove the GitHub ID from Github Teams
          */
+        userCache.invalidate(event.getDirectoryId(), event.getUser().getName());
         if (event.getAttributeName().equals(GITHUB_ID_ATTRIBUTE)) {
-            WebhookUser user = getUser(event.getDirectoryId(), event.getUser().getName());
-            AuditLogEntry entry = createAuditEntry(
-                    event.getUser().getName(), GITHUB_ID_ATTRIBUTE, "", event.getTimestamp());
+            final String username = event.getUser().getName();
+            if (stateStore != null &&
+                    stateStore.isSame(event.getDirectoryId(), username, UserStateStore.GITHUB_ID, null)) {
+                metrics.suppressed(USER_DELETED_GITHUB);
+                return; // receivers already know there is no Github ID
+            }
+            WebhookUser user = getUser(event.getDirectoryId(), username,
+                                       onfEventPoster.wantsGroups(USER_DELETED_GITHUB));
+            AuditLogEntry entry = createAuditEntry(username, GITHUB_ID_ATTRIBUTE, "", event.getTimestamp());
+            record(event.getDirectoryId(), username, UserStateStore.GITHUB_ID, null);
             if (entry == null || isNullOrEmpty(entry.getOldValue())) {
                 return;  // no old Github ID
             }
@@ -185,32 +391,45 @@ public class OnfEventListener {
            - add the user to the appropriate external teams
          */
         final Long directoryId = event.getDirectoryId();
+        groupCache.membershipsCreated(directoryId, event.getGroupName(), event.getMembershipType(),
+                                      event.getEntityNames());
         final Set<String> groupAndParents = getGroupAndParents(directoryId, event.getGroupName());
 
-        final Collection<String> users;
+        // Generate an event for each user that has been directly or indirectly added the group and its parents
+        FanOut.Operation operation = fanOut.start("added to " + event.getGroupName());
         if (event.getMembershipType() == MembershipType.GROUP_USER) {
-            users = event.getEntityNames();
+            sendAddedToGroups(operation, directoryId, event.getEntityNames(), groupAndParents);
         } else if (event.getMembershipType() == MembershipType.GROUP_GROUP) {
-            // Collect the users from each newly added group
-            users = event.getEntityNames().stream()
-                    .flatMap(groupName -> 
-                        Objects.requireNonNull(getNestedGroupUsers(directoryId, groupName)).stream())
-                    .collect(Collectors.toSet());
-        } else {
-            users = ImmutableList.of();
+            // Users from each newly added group, a page at a time; users in more than one of
+            // the added groups are only reported once
+            final Set<String> seen = event.getEntityNames().size() > 1 ? Sets.newHashSet() : null;
+            event.getEntityNames().forEach(groupName ->
+                forEachNestedGroupUser(directoryId, groupName, page ->
+                    sendAddedToGroups(operation, directoryId,
+                                      seen == null ? page : page.stream().filter(seen::add).collect(Collectors.toList()),
+                                      groupAndParents)));
         }
+        operation.done();
+    }
 
-        // Generate an event for each user that has been directly or indirectly added the group and its parents
-        users.forEach(username ->
-            groupAndParents.forEach(groupName -> {
-                WebhookUser user = this.getUser(directoryId, username);
+    private void sendAddedToGroups(FanOut.Operation operation, long directoryId, Collection<String> users,
+                                   Set<String> groupAndParents) {
+        operation.submit(users, username -> {
+            Set<String> groups = unsentMemberships(directoryId, username, groupAndParents, true);
+            if (groups.isEmpty()) {
+                return; // receivers already have every membership
+            }
+            WebhookUser user = onfEventPoster.wantsGroups(USER_ADDED_GROUP) ?
+                    getUserWithNewGroups(directoryId, username) : getUser(directoryId, username, false);
+            groups.forEach(groupName -> {
                 WebhookEvent webhookEvent = new WebhookEvent();
                 webhookEvent.type = USER_ADDED_GROUP;
                 webhookEvent.user = user;
                 webhookEvent.groupName = groupName;
                 this.sendEvent(webhookEvent);
-            })
-        );
+                recordMembership(directoryId, username, groupName, true);
+            });
+        });
     }
 
     @EventListener
@@ -222,22 +441,31 @@ public class OnfEventListener {
            - remove the user to the appropriate external teams
          */
         final Long directoryId = event.getDirectoryId();
+        groupCache.membershipDeleted(directoryId, event.getGroupName(), event.getMembershipType(),
+                                     event.getEntityName());
         final Set<String> groupAndParents = this.getGroupAndParents(directoryId, event.getGroupName());
 
-
-        final List<String> users;
+        FanOut.Operation operation = fanOut.start("removed from " + event.getGroupName());
         if (event.getMembershipType() == MembershipType.GROUP_USER) {
-            users = ImmutableList.of(event.getEntityName());
+            sendRemovedFromGroups(operation, directoryId, ImmutableList.of(event.getEntityName()), groupAndParents);
         } else if (event.getMembershipType() == MembershipType.GROUP_GROUP) {
-            // Collect the users from each newly removed group
-            users = getNestedGroupUsers(directoryId, event.getEntityName());
-        } else {
-            users = ImmutableList.of();
+            // Users from the removed group, a page at a time
+            forEachNestedGroupUser(directoryId, event.getEntityName(), page ->
+                    sendRemovedFromGroups(operation, directoryId, page, groupAndParents));
         }
+        operation.done();
+    }
 
-        users.forEach(username ->
-            groupAndParents.forEach(groupName -> {
-                WebhookUser user = this.getUser(directoryId, username);
+    private void sendRemovedFromGroups(FanOut.Operation operation, long directoryId, List<String> users,
+                                       Set<String> groupAndParents) {
+        operation.submit(users, username -> {
+            Set<String> groups = unsentMemberships(directoryId, username, groupAndParents, false);
+            if (groups.isEmpty()) {
+                return; // receivers already know the user left every group
+            }
+            // The user's groups tell whether they are still in a group another way
+            WebhookUser user = getUserWithNewGroups(directoryId, username);
+            groups.forEach(groupName -> {
                 if (user.groups.contains(groupName)) {
                     // user is still a number of the group through another group / nested group
                     return; // skip this event
@@ -247,99 +475,191 @@ public class OnfEventListener {
                 webhookEvent.user = user;
                 webhookEvent.groupName = groupName;
                 this.sendEvent(webhookEvent);
-            })
-        );
+                recordMembership(directoryId, username, groupName, false);
+            });
+        });
+    }
+
+    /**
+     * Handles an event about one user on the user's fan-out lane, after the membership changes
+     * already queued for them, so that each user's events are sent in order.
+     */
+    private void onUserLane(String description, String username, Runnable handler) {
+        FanOut.Operation operation = fanOut.start(description + " for " + username);
+        operation.submit(ImmutableList.of(username), u -> handler.run());
+        operation.done();
+    }
+
+    /**
+     * The groups whose membership receivers have not been told about yet.
+     */
+    private Set<String> unsentMemberships(long directoryId, String username, Set<String> groups, boolean member) {
+        if (stateStore == null) {
+            return groups;
+        }
+        Set<String> unsent = groups.stream()
+                                   .filter(group -> !stateStore.isSameMembership(directoryId, username, group, member))
+                                   .collect(Collectors.toCollection(LinkedHashSet::new));
+        for (int i = unsent.size(); i < groups.size(); i++) {
+            metrics.suppressed(member ? USER_ADDED_GROUP : USER_DELETED_GROUP);
+        }
+        return unsent;
+    }
+
+    private void record(long directoryId, String username, String field, String value) {
+        if (stateStore != null) {
+            stateStore.record(directoryId, username, field, value);
+        }
+    }
+
+    private void recordMembership(long directoryId, String username, String groupName, boolean member) {
+        if (stateStore != null) {
+            stateStore.recordMembership(directoryId, username, groupName, member);
+        }
+    }
+
+    /**
+     * Forgets what was recorded about the user of an event that receivers will not get, so that
+     * the same change is sent again when it is made again.
+     */
+    private void undelivered(WebhookEvent event) {
+        if (event.user == null || event.user.username == null) {
+            return;
+        }
+        // Events do not say which directory they came from
+        List<Directory> directories = directoryManager.findAllDirectories();
+        if (directories != null) {
+            directories.forEach(directory -> stateStore.forget(directory.getId(), event.user.username));
+        }
+    }
+
+    @EventListener
+    public void groupDeleted(GroupDeletedEvent event) {
+        // Memberships of a deleted group go without individual events
+        groupCache.invalidate(event.getDirectoryId());
+        if (stateStore != null) {
+            // A group created with the same name starts without members
+            stateStore.forgetGroup(event.getDirectoryId(), event.getGroupName());
+        }
     }
 
-    private WebhookUser getUser(long directoryId, String username) {
+    /**
+     * The user, from the cache when it has what is needed. Nested groups are only looked up
+     * when withGroups is set; users loaded without them have null groups.
+     */
+    private WebhookUser getUser(long directoryId, String username, boolean withGroups) {
+        WebhookUser user = userCache.get(directoryId, username);
+        if (user == null || (withGroups && user.groups == null)) {
+            user = loadUser(directoryId, username, user, withGroups);
+            if (user != null) {
+                userCache.put(directoryId, username, user);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * The user with their groups looked up again, after a membership change. The rest of the
+     * user comes from the cache when it is there.
+     */
+    private WebhookUser getUserWithNewGroups(long directoryId, String username) {
+        WebhookUser user = loadUser(directoryId, username, userCache.get(directoryId, username), true);
+        if (user != null) {
+            userCache.put(directoryId, username, user);
+        }
+        return user;
+    }
+
+    /**
+     * @param cached the user as cached, or null to look the user up
+     */
+    private WebhookUser loadUser(long directoryId, String username, WebhookUser cached, boolean withGroups) {
         WebhookUser user = null;
         try {
-            user = new WebhookUser(directoryManager.findUserWithAttributesByName(directoryId, username));
-            user.groups = directoryManager.searchNestedGroupRelationships(directoryId,
-                    QueryBuilder.queryFor(String.class, EntityDescriptor.group())
-                            .parentsOf(EntityDescriptor.user())
-                            .withName(username)
-                            .returningAtMost(MAX_RESULTS));
+            if (cached != null) {
+                // Cached users are shared, so the groups go on a copy
+                user = new WebhookUser(cached.username, cached.email, cached.name, cached.githubId,
+                                       ImmutableList.of());
+            } else {
+                long start = System.nanoTime();
+                user = new WebhookUser(directoryManager.findUserWithAttributesByName(directoryId, username));
+                metrics.time(Timer.DIRECTORY_LOOKUP, start);
+            }
+            if (withGroups) {
+                user.groups = pager.getNestedGroupsOfUser(directoryId, username);
+            } else {
+                user.groups = null; // not looked up, and not sent
+            }
         } catch (DirectoryNotFoundException e) {
+            metrics.failure(Failure.DIRECTORY_NOT_FOUND);
             logger.error("Crowd directory not found", e);
         } catch (UserNotFoundException e) {
+            metrics.failure(Failure.USER_NOT_FOUND);
             logger.error("User not found: {}", username);
         } catch (OperationFailedException e) {
+            metrics.failure(Failure.DIRECTORY_OPERATION_FAILED);
             logger.error("Get user operations failed", e);
         }
         return user;
     }
 
     private Set<String> getGroupAndParents(long directoryId, String groupName) {
-        Set<String> groups = Sets.newHashSet();
         try {
-            groups.add(directoryManager.findGroupByName(directoryId, groupName).getName());
-            groups.addAll(directoryManager.searchNestedGroupRelationships(directoryId,
-                    QueryBuilder.queryFor(String.class, EntityDescriptor.group())
-                            .parentsOf(EntityDescriptor.group())
-                            .withName(groupName)
-                            .returningAtMost(MAX_RESULTS)));
+            return groupCache.getGroupAndAncestors(directoryId, groupName);
         } catch (DirectoryNotFoundException e) {
+            metrics.failure(Failure.DIRECTORY_NOT_FOUND);
             logger.error("Crowd directory not found", e);
         } catch (GroupNotFoundException e) {
+            metrics.failure(Failure.GROUP_NOT_FOUND);
             logger.error("Group not found: {}", groupName);
         } catch (OperationFailedException e) {
+            metrics.failure(Failure.DIRECTORY_OPERATION_FAILED);
             logger.error("Get group operations failed", e);
         }
-        return groups;
+        return ImmutableSet.of();
     }
 
-    private List<String> getNestedGroupUsers(long directoryId, String groupName) {
+    private void forEachNestedGroupUser(long directoryId, String groupName, Consumer<List<String>> consumer) {
         try {
-            return directoryManager.searchNestedGroupRelationships(directoryId,
-                    QueryBuilder.queryFor(String.class, EntityDescriptor.user())
-                            .childrenOf(EntityDescriptor.group())
-                            .withName(groupName)
-                            .returningAtMost(MAX_RESULTS));
+            groupCache.forEachNestedUser(directoryId, groupName, consumer);
         } catch (DirectoryNotFoundException e) {
+            metrics.failure(Failure.DIRECTORY_NOT_FOUND);
             logger.error("Crowd directory not found", e);
         } catch (OperationFailedException e) {
+            metrics.failure(Failure.DIRECTORY_OPERATION_FAILED);
             logger.error("Get group operations failed", e);
         }
-        return ImmutableList.of();
     }
 
     private void sendEvent(WebhookEvent event) {
         onfEventPoster.send(event);
+        metrics.sent(event.type);
     }
 
-    private Optional<? extends AuditLogEntry> getAuditEntry(String username, String attribute) {
-        return getAuditEntry(getAuditChangesets(username), attribute);
-    }
-
-    private List<AuditLogChangeset> getAuditChangesets(String username) {
-        AuditLogQuery<AuditLogChangeset> query = AuditLogQueryBuilder.queryFor(AuditLogChangeset.class)
-                .setUsers(ImmutableList.of(AuditLogQueryEntityRestriction.name(username)))
-//              .setProjection(AuditLogChangesetProjection.ENTITY_USER)
-                .build();
-
-        // Find the most recent entry for the given attribute
-        return this.auditService.searchAuditLog(query);
+    private Optional<AuditLogEntry> getAuditEntry(String username, String attribute) {
+        return auditIndex.getLastEntry(username, attribute);
     }
 
-    private Optional<? extends AuditLogEntry> getAuditEntry(List<AuditLogChangeset> changes, String attribute) {
-        // Find the most recent entry for the given attribute
-        return changes.stream()
-                .flatMap(cs -> cs.getEntries().stream())
-                .filter(e -> e.getPropertyName().equals(attribute))
-                .findFirst();
+    private AuditLogEntry createAuditEntry(String username, String attribute, String newValue, Long timestamp) {
+        AuditLogEntryEntity entry = newAuditEntry(username, attribute, newValue);
+        if (entry != null) {
+            saveAuditEntry(username, entry, timestamp);
+        }
+        return entry;
     }
 
-    private AuditLogEntry createAuditEntry(String username, String attribute, String newValue, Long timestamp) {
-        List<AuditLogChangeset> changesets = getAuditChangesets(username);
-        Optional<? extends AuditLogEntry> lastEntry = getAuditEntry(changesets, attribute);
+    private AuditLogEntryEntity newAuditEntry(String username, String attribute, String newValue) {
+        Optional<AuditLogEntry> lastEntry = getAuditEntry(username, attribute);
         String oldValue = lastEntry.isPresent() ? lastEntry.get().getNewValue() : "";
 
         if (oldValue.equals(newValue)) {
             // Old and new Github ID are identical; no need to create an audit log entry.
             return null;
         }
+        return new AuditLogEntryEntity(attribute, oldValue, newValue);
+    }
 
+    private void saveAuditEntry(String username, AuditLogEntryEntity entry, Long timestamp) {
         AuditLogChangesetEntity changeset = new AuditLogChangesetEntity();
         changeset.setAuthorType(AuditLogAuthorType.PLUGIN);
         changeset.setAuthorName("onf-event-handler");
@@ -348,25 +668,17 @@ public class OnfEventListener {
         changeset.setSource(AuditLogEventSource.MANUAL);
         changeset.setEventType(AuditLogEventType.USER_UPDATED);
 
-        AuditLogEntryEntity entry = new AuditLogEntryEntity(attribute, oldValue, newValue);
         changeset.setEntries(ImmutableSet.of(entry));
 
         AuditLogEntityEntity entity = new AuditLogEntityEntity();
         entity.setEntityType(AuditLogEntityType.USER);
         entity.setEntityName(username);
         // Fill in the entity ID for Crowd UI
-        changesets.stream()
-                .map(AuditLogChangeset::getEntity)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .filter(e -> Objects.equals(e.getEntityName(), username))
-                .map(AuditLogEntity::getEntityId)
-                .filter(Objects::nonNull)
-                .findFirst()
-                .ifPresent(entity::setEntityId);
+        Optional<Long> entityId = auditIndex.getEntityId(username);
+        entityId.ifPresent(entity::setEntityId);
         changeset.setEntities(ImmutableSet.of(entity));
 
         this.auditService.saveAudit(changeset);
-        return entry;
+        auditIndex.record(username, entityId.orElse(null), entry);
     }
-}
\ No newline at end of file
+}
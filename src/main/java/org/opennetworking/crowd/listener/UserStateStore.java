@@ -0,0 +1,231 @@
+package org.opennetworking.crowd.listener;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+/**
+ * What receivers were last sent about each user, for telling whether an event changes anything.
+ * <p>
+ * Each fact (a user's email, GitHub ID or membership of one group) is kept as a 64-bit hash of
+ * its key and a 64-bit hash of its value, in an open-addressing table in a memory-mapped file,
+ * so lookups take no heap and no trip to Crowd, and the table survives restarts. Deleting a user
+ * (or a group) starts a new generation of their keys rather than finding the old ones, which stay
+ * behind unused until the file is removed.
+ * <p>
+ * The file is [magic][capacity][size] followed by capacity slots of [key hash][value hash]; a key
+ * hash of 0 marks an empty slot. The table doubles when it is 70% full.
+ */
+public class UserStateStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(UserStateStore.class);
+    private static final int MAGIC = 0x4f4e4655; // "ONFU"
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_BYTES = 16;
+    private static final int MAX_CAPACITY = 1 << 26; // slots, i.e. a 1 GiB file
+    private static final long EMPTY = 0;
+    private static final long UNKNOWN = 0; // value of a fact never recorded
+    private static final long ABSENT = 1; // value of a fact recorded as not set
+    private static final String GENERATION = "\0generation";
+
+    public static final String EMAIL = "email";
+    public static final String GITHUB_ID = "github";
+
+    private final File path;
+    private MappedByteBuffer table;
+    private int capacity;
+    private int size;
+
+    public UserStateStore(File path, int initialCapacity) throws IOException {
+        File parent = path.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create user state directory " + parent);
+        }
+        this.path = path;
+        if (path.length() >= HEADER_BYTES) {
+            table = map(path, -1);
+            int stored = table.getInt(4);
+            if (table.getInt(0) == MAGIC && Integer.bitCount(stored) == 1 &&
+                    path.length() == HEADER_BYTES + (long) stored * SLOT_BYTES) {
+                capacity = stored;
+                size = table.getInt(8);
+                logger.info("ONF Webhook user state opened in {} with {} entries", path, size);
+                return;
+            }
+            logger.warn("Ignoring unreadable ONF Webhook user state in {}", path);
+        }
+        capacity = Integer.highestOneBit(Math.max(Math.min(initialCapacity, MAX_CAPACITY), 16) - 1) << 1;
+        table = create(path, capacity);
+    }
+
+    private static MappedByteBuffer map(File path, int capacity) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            long length = capacity < 0 ? file.length() : HEADER_BYTES + (long) capacity * SLOT_BYTES;
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    private static MappedByteBuffer create(File path, int capacity) throws IOException {
+        Files.deleteIfExists(path.toPath());
+        MappedByteBuffer table = map(path, capacity); // a new file reads as zeros, i.e. empty
+        table.putInt(0, MAGIC);
+        table.putInt(4, capacity);
+        table.putInt(8, 0);
+        return table;
+    }
+
+    /**
+     * Hash of a value as stored; null stands for a value that is not set.
+     */
+    static long valueHash(String value) {
+        if (value == null || value.isEmpty()) {
+            return ABSENT;
+        }
+        long hash = Hashing.murmur3_128().hashString(value, StandardCharsets.UTF_8).asLong();
+        return hash == UNKNOWN || hash == ABSENT ? hash + 2 : hash;
+    }
+
+    private static long keyHash(String key) {
+        long hash = Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private long userKey(long directoryId, String username, String field) {
+        String user = directoryId + "\0" + username.toLowerCase(Locale.ENGLISH);
+        long generation = get(keyHash(user + GENERATION));
+        return keyHash(user + "\0" + generation + "\0" + field);
+    }
+
+    private String group(long directoryId, String groupName) {
+        String group = "group\0" + groupName.toLowerCase(Locale.ENGLISH);
+        long generation = get(keyHash(directoryId + "\0" + group + GENERATION));
+        return generation == UNKNOWN ? group : group + "\0" + generation;
+    }
+
+    /**
+     * Whether receivers were last told that the user's field has this value (null for none).
+     */
+    public synchronized boolean isSame(long directoryId, String username, String field, String value) {
+        return get(userKey(directoryId, username, field)) == valueHash(value);
+    }
+
+    /**
+     * Whether receivers were last told the user is in the group, or last told they are not.
+     */
+    public synchronized boolean isSameMembership(long directoryId, String username, String groupName,
+                                                 boolean member) {
+        return isSame(directoryId, username, group(directoryId, groupName), member ? groupName : null);
+    }
+
+    public synchronized void record(long directoryId, String username, String field, String value) {
+        put(userKey(directoryId, username, field), valueHash(value));
+    }
+
+    public synchronized void recordMembership(long directoryId, String username, String groupName, boolean member) {
+        record(directoryId, username, group(directoryId, groupName), member ? groupName : null);
+    }
+
+    /**
+     * Forgets everything recorded about the user.
+     */
+    public synchronized void forget(long directoryId, String username) {
+        long generation = keyHash(directoryId + "\0" + username.toLowerCase(Locale.ENGLISH) + GENERATION);
+        put(generation, get(generation) + 1);
+    }
+
+    /**
+     * Forgets every user's membership of the group, e.g. when it is deleted.
+     */
+    public synchronized void forgetGroup(long directoryId, String groupName) {
+        long generation = keyHash(directoryId + "\0group\0" + groupName.toLowerCase(Locale.ENGLISH) + GENERATION);
+        put(generation, get(generation) + 1);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private long get(long key) {
+        int mask = capacity - 1;
+        for (int slot = (int) key & mask; ; slot = (slot + 1) & mask) {
+            long stored = table.getLong(offset(slot));
+            if (stored == key) {
+                return table.getLong(offset(slot) + Long.BYTES);
+            }
+            if (stored == EMPTY) {
+                return UNKNOWN;
+            }
+        }
+    }
+
+    private void put(long key, long value) {
+        int mask = capacity - 1;
+        for (int slot = (int) key & mask; ; slot = (slot + 1) & mask) {
+            long stored = table.getLong(offset(slot));
+            if (stored == key) {
+                table.putLong(offset(slot) + Long.BYTES, value);
+                return;
+            }
+            if (stored == EMPTY) {
+                if (size >= capacity - 1) {
+                    return; // full; lookups rely on an empty slot, so the fact stays unknown
+                }
+                table.putLong(offset(slot) + Long.BYTES, value);
+                table.putLong(offset(slot), key);
+                table.putInt(8, ++size);
+                if (size > capacity / 10 * 7) {
+                    grow();
+                }
+                return;
+            }
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    /**
+     * Rehashes into a table twice the size, written beside the old one and moved over it.
+     */
+    private void grow() {
+        if (capacity >= MAX_CAPACITY) {
+            logger.warn("ONF Webhook user state in {} is full; remove it to start again", path);
+            return;
+        }
+        File tmp = new File(path.getPath() + ".tmp");
+        try {
+            MappedByteBuffer old = table;
+            int oldCapacity = capacity;
+            table = create(tmp, capacity * 2);
+            capacity *= 2;
+            size = 0;
+            for (int slot = 0; slot < oldCapacity; slot++) {
+                long key = old.getLong(offset(slot));
+                if (key != EMPTY) {
+                    put(key, old.getLong(offset(slot) + Long.BYTES));
+                }
+            }
+            table.force();
+            Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("ONF Webhook user state in {} grown to {} slots", path, capacity);
+        } catch (IOException e) {
+            // The new table stays usable in memory even if it could not replace the old file
+            logger.error("Unable to grow ONF Webhook user state in " + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        table.force();
+    }
+}
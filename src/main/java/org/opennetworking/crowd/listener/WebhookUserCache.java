@@ -0,0 +1,69 @@
+package org.opennetworking.crowd.listener;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.opennetworking.crowd.api.WebhookUser;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of resolved users (attributes and nested groups), keyed by directory
+ * and username.
+ * <p>
+ * The listener invalidates a user whenever it handles a user or attribute event for them, and
+ * replaces them with a copy carrying their new groups on membership events, so the TTL only
+ * bounds how long changes made without an event go unnoticed. Cached users are shared between
+ * webhook events and must not be modified. A TTL of 0 disables the cache.
+ */
+public class WebhookUserCache {
+    private static final int MAX_USERS = 10000;
+
+    private final Cache<String, WebhookUser> users;
+
+    public WebhookUserCache(long ttlMillis) {
+        this(ttlMillis, Ticker.systemTicker());
+    }
+
+    public WebhookUserCache(long ttlMillis, Ticker ticker) {
+        users = CacheBuilder.newBuilder()
+                            .expireAfterWrite(Math.max(ttlMillis, 0), TimeUnit.MILLISECONDS)
+                            .maximumSize(ttlMillis > 0 ? MAX_USERS : 0)
+                            .ticker(ticker)
+                            .recordStats()
+                            .build();
+    }
+
+    private static String key(long directoryId, String username) {
+        return directoryId + ":" + username.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns the cached user, or null.
+     */
+    public WebhookUser get(long directoryId, String username) {
+        return users.getIfPresent(key(directoryId, username));
+    }
+
+    public void put(long directoryId, String username, WebhookUser user) {
+        users.put(key(directoryId, username), user);
+    }
+
+    public void invalidate(long directoryId, String username) {
+        users.invalidate(key(directoryId, username));
+    }
+
+    public void invalidate(long directoryId, Collection<String> usernames) {
+        usernames.forEach(username -> invalidate(directoryId, username));
+    }
+
+    public long getHitCount() {
+        return users.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return users.stats().missCount();
+    }
+}
@@ -0,0 +1,66 @@
+package org.opennetworking.crowd.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A point-in-time reading of a {@link Histogram}.
+ */
+public class HistogramSummary {
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p90;
+    private final double p99;
+    private final double max;
+
+    @ConstructorProperties({"count", "mean", "p50", "p90", "p99", "max"})
+    public HistogramSummary(long count, double mean, double p50, double p90, double p99, double max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public static HistogramSummary of(Histogram histogram) {
+        return new HistogramSummary(histogram.getCount(), histogram.getMean(), histogram.getPercentile(0.5),
+                                    histogram.getPercentile(0.9), histogram.getPercentile(0.99), histogram.getMax());
+    }
+
+    /**
+     * Reads a histogram of nanoseconds in milliseconds.
+     */
+    public static HistogramSummary ofNanos(Histogram histogram) {
+        return new HistogramSummary(histogram.getCount(),
+                                    WebhookMetrics.millis(histogram.getMean()),
+                                    WebhookMetrics.millis(histogram.getPercentile(0.5)),
+                                    WebhookMetrics.millis(histogram.getPercentile(0.9)),
+                                    WebhookMetrics.millis(histogram.getPercentile(0.99)),
+                                    WebhookMetrics.millis(histogram.getMax()));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getP50() {
+        return p50;
+    }
+
+    public double getP90() {
+        return p90;
+    }
+
+    public double getP99() {
+        return p99;
+    }
+
+    public double getMax() {
+        return max;
+    }
+}
@@ -0,0 +1,230 @@
+package org.opennetworking.crowd.metrics;
+
+import com.google.common.collect.Maps;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, latency histograms and gauges for the listener and the poster.
+ * <p>
+ * Recording only touches LongAdders and atomic counters, so it is safe and cheap on the Crowd
+ * event thread. One instance is shared by the whole plugin ({@link #get()}); it is read over
+ * JMX ({@link WebhookMetricsMXBean}) and REST.
+ */
+public class WebhookMetrics {
+    private static final WebhookMetrics INSTANCE = new WebhookMetrics();
+
+    /**
+     * Timed operations.
+     */
+    public enum Timer {
+        DIRECTORY_LOOKUP, // one DirectoryManager call
+        AUDIT_QUERY, // one audit log search
+        SERIALIZATION, // writing one payload
+        COMPRESSION, // gzipping one payload
+        HTTP_POST, // one request to a receiver
+    }
+
+    /**
+     * Why something went wrong.
+     */
+    public enum Failure {
+        DIRECTORY_NOT_FOUND,
+        USER_NOT_FOUND,
+        GROUP_NOT_FOUND,
+        DIRECTORY_OPERATION_FAILED,
+        CONNECT, // the receiver could not be reached
+        TIMEOUT,
+        IO,
+        HTTP_CLIENT_ERROR, // 4xx
+        HTTP_SERVER_ERROR, // 5xx
+        CIRCUIT_OPEN, // held back while the receiver's circuit was open
+        OUTBOX, // could not be persisted
+        FAN_OUT, // per-user work that threw or was rejected
+    }
+
+    private final LongAdder[] sent = adders(EventType.values().length);
+    private final LongAdder[] suppressed = adders(EventType.values().length);
+    private final LongAdder[] delivered = adders(EventType.values().length);
+    private final LongAdder[] deadLettered = adders(EventType.values().length);
+    private final LongAdder[] failures = adders(Failure.values().length);
+    private final Histogram[] timers = new Histogram[Timer.values().length];
+    private final Histogram fanOutUsers = new Histogram();
+    private final LongAdder inFlight = new LongAdder();
+    private final ConcurrentMap<String, LongSupplier> gauges = Maps.newConcurrentMap();
+
+    public WebhookMetrics() {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Histogram();
+        }
+    }
+
+    public static WebhookMetrics get() {
+        return INSTANCE;
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * An event handed to the poster by the listener.
+     */
+    public void sent(EventType type) {
+        if (type != null) {
+            sent[type.ordinal()].increment();
+        }
+    }
+
+    /**
+     * An event the listener did not send because receivers already had its change.
+     */
+    public void suppressed(EventType type) {
+        suppressed[type.ordinal()].increment();
+    }
+
+    public void delivered(EventType type) {
+        if (type != null) {
+            delivered[type.ordinal()].increment();
+        }
+    }
+
+    public void deadLettered(EventType type) {
+        if (type != null) {
+            deadLettered[type.ordinal()].increment();
+        }
+    }
+
+    public void failure(Failure cause) {
+        failures[cause.ordinal()].increment();
+    }
+
+    /**
+     * Records the time since startNanos, a System.nanoTime() reading.
+     */
+    public void time(Timer timer, long startNanos) {
+        timers[timer.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Users affected by one membership change.
+     */
+    public void fanOut(long users) {
+        fanOutUsers.record(users);
+    }
+
+    public void requestStarted() {
+        inFlight.increment();
+    }
+
+    public void requestFinished() {
+        inFlight.decrement();
+    }
+
+    /**
+     * Adds a gauge that is read when metrics are reported; replaces one of the same name.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    public long getSentCount(EventType type) {
+        return sent[type.ordinal()].sum();
+    }
+
+    public long getSuppressedCount(EventType type) {
+        return suppressed[type.ordinal()].sum();
+    }
+
+    public long getFailureCount(Failure cause) {
+        return failures[cause.ordinal()].sum();
+    }
+
+    public Histogram getTimer(Timer timer) {
+        return timers[timer.ordinal()];
+    }
+
+    public Histogram getFanOutUsers() {
+        return fanOutUsers;
+    }
+
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    Map<String, Long> sentCounts() {
+        return byType(sent);
+    }
+
+    Map<String, Long> suppressedCounts() {
+        return byType(suppressed);
+    }
+
+    Map<String, Long> deliveredCounts() {
+        return byType(delivered);
+    }
+
+    Map<String, Long> deadLetteredCounts() {
+        return byType(deadLettered);
+    }
+
+    Map<String, Long> failureCounts() {
+        Map<String, Long> counts = Maps.newLinkedHashMap();
+        for (Failure cause : Failure.values()) {
+            counts.put(cause.name(), failures[cause.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    Map<String, Long> gaugeValues() {
+        Map<String, Long> values = Maps.newTreeMap();
+        values.put("inFlight", inFlight.sum());
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] adders) {
+        Map<String, Long> counts = Maps.newLinkedHashMap();
+        for (EventType type : EventType.values()) {
+            counts.put(type.name(), adders[type.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    /**
+     * Everything, as nested maps ready to be written as JSON; latencies are in milliseconds.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = Maps.newLinkedHashMap();
+        snapshot.put("sent", sentCounts());
+        snapshot.put("suppressed", suppressedCounts());
+        snapshot.put("delivered", deliveredCounts());
+        snapshot.put("deadLettered", deadLetteredCounts());
+        snapshot.put("failures", failureCounts());
+        snapshot.put("gauges", gaugeValues());
+        Map<String, Object> latencies = Maps.newLinkedHashMap();
+        for (Timer timer : Timer.values()) {
+            latencies.put(timer.name(), HistogramSummary.ofNanos(getTimer(timer)));
+        }
+        snapshot.put("latencyMillis", latencies);
+        snapshot.put("fanOutUsers", HistogramSummary.of(fanOutUsers));
+        return snapshot;
+    }
+
+    static double millis(double nanos) {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
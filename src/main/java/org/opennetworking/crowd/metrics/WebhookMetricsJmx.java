@@ -0,0 +1,115 @@
+package org.opennetworking.crowd.metrics;
+
+import org.opennetworking.crowd.metrics.WebhookMetrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * Publishes {@link WebhookMetrics} on the platform MBean server.
+ */
+public class WebhookMetricsJmx implements WebhookMetricsMXBean, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WebhookMetricsJmx.class);
+    public static final String OBJECT_NAME = "org.opennetworking.crowd:type=WebhookMetrics";
+
+    private final WebhookMetrics metrics;
+    private ObjectName name;
+
+    public WebhookMetricsJmx(WebhookMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Registers the bean, replacing one left behind by an earlier copy of the plugin.
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            name = objectName;
+        } catch (JMException e) {
+            logger.warn("Unable to register ONF Webhook metrics with JMX", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                logger.debug("Unable to unregister ONF Webhook metrics", e);
+            }
+            name = null;
+        }
+    }
+
+    @Override
+    public Map<String, Long> getSentEvents() {
+        return metrics.sentCounts();
+    }
+
+    @Override
+    public Map<String, Long> getSuppressedEvents() {
+        return metrics.suppressedCounts();
+    }
+
+    @Override
+    public Map<String, Long> getDeliveredEvents() {
+        return metrics.deliveredCounts();
+    }
+
+    @Override
+    public Map<String, Long> getDeadLetteredEvents() {
+        return metrics.deadLetteredCounts();
+    }
+
+    @Override
+    public Map<String, Long> getFailures() {
+        return metrics.failureCounts();
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        return metrics.gaugeValues();
+    }
+
+    @Override
+    public HistogramSummary getDirectoryLookupLatency() {
+        return HistogramSummary.ofNanos(metrics.getTimer(Timer.DIRECTORY_LOOKUP));
+    }
+
+    @Override
+    public HistogramSummary getAuditQueryLatency() {
+        return HistogramSummary.ofNanos(metrics.getTimer(Timer.AUDIT_QUERY));
+    }
+
+    @Override
+    public HistogramSummary getSerializationLatency() {
+        return HistogramSummary.ofNanos(metrics.getTimer(Timer.SERIALIZATION));
+    }
+
+    @Override
+    public HistogramSummary getCompressionLatency() {
+        return HistogramSummary.ofNanos(metrics.getTimer(Timer.COMPRESSION));
+    }
+
+    @Override
+    public HistogramSummary getHttpPostLatency() {
+        return HistogramSummary.ofNanos(metrics.getTimer(Timer.HTTP_POST));
+    }
+
+    @Override
+    public HistogramSummary getFanOutUsers() {
+        return HistogramSummary.of(metrics.getFanOutUsers());
+    }
+}
@@ -0,0 +1,33 @@
+package org.opennetworking.crowd.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link WebhookMetrics}, registered as org.opennetworking.crowd:type=WebhookMetrics.
+ * Latencies are in milliseconds.
+ */
+public interface WebhookMetricsMXBean {
+    Map<String, Long> getSentEvents();
+
+    Map<String, Long> getSuppressedEvents();
+
+    Map<String, Long> getDeliveredEvents();
+
+    Map<String, Long> getDeadLetteredEvents();
+
+    Map<String, Long> getFailures();
+
+    Map<String, Long> getGauges();
+
+    HistogramSummary getDirectoryLookupLatency();
+
+    HistogramSummary getAuditQueryLatency();
+
+    HistogramSummary getSerializationLatency();
+
+    HistogramSummary getCompressionLatency();
+
+    HistogramSummary getHttpPostLatency();
+
+    HistogramSummary getFanOutUsers();
+}
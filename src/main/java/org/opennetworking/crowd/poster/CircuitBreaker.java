@@ -0,0 +1,131 @@
+package org.opennetworking.crowd.poster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Stops posting to a receiver that keeps failing.
+ * <p>
+ * After failureThreshold consecutive failures the breaker opens and requests are refused for
+ * openMillis. The next request after that is let through as a probe (half-open): if it
+ * succeeds the breaker closes, otherwise it opens again for another openMillis.
+ */
+public class CircuitBreaker {
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    private final String target;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final LongSupplier clock;
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt; // when the breaker last went from CLOSED to OPEN
+    private long retryAt; // when an OPEN breaker lets a probe through
+    private boolean probeInFlight;
+    private long openCount;
+    private long timeInOpenMillis; // completed open periods
+
+    public CircuitBreaker(String target, int failureThreshold, long openMillis) {
+        this(target, failureThreshold, openMillis, System::currentTimeMillis);
+    }
+
+    public CircuitBreaker(String target, int failureThreshold, long openMillis, LongSupplier clock) {
+        this.target = target;
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.openMillis = openMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns whether a request may be sent now. A true result while the breaker is not
+     * closed makes the caller the probe; it must report the outcome.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (clock.getAsLong() < retryAt) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                probeInFlight = true;
+                logger.info("ONF Webhook circuit to {} half-open; probing", target);
+                return true;
+            default:
+                if (probeInFlight) {
+                    return false;
+                }
+                probeInFlight = true;
+                return true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        if (state != State.CLOSED) {
+            timeInOpenMillis += clock.getAsLong() - openedAt;
+            state = State.CLOSED;
+            logger.info("ONF Webhook circuit to {} closed", target);
+        }
+    }
+
+    public synchronized void recordFailure() {
+        probeInFlight = false;
+        consecutiveFailures++;
+        long now = clock.getAsLong();
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            openedAt = now;
+            openCount++;
+            logger.warn("ONF Webhook circuit to {} opened after {} failures", target, consecutiveFailures);
+        } else if (state != State.HALF_OPEN) {
+            return;
+        }
+        state = State.OPEN;
+        retryAt = now + openMillis;
+    }
+
+    /**
+     * How long until an open breaker lets a probe through; 0 if requests may be sent now.
+     */
+    public synchronized long getMillisUntilRetry() {
+        return state == State.OPEN ? Math.max(retryAt - clock.getAsLong(), 0) : 0;
+    }
+
+    /**
+     * Whether {@link #allowRequest} would refuse a request now: the breaker is open, or a
+     * probe is in flight.
+     */
+    public synchronized boolean isRefusing() {
+        return state == State.OPEN ? clock.getAsLong() < retryAt : state == State.HALF_OPEN && probeInFlight;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Number of times the breaker has opened.
+     */
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Total time the breaker has not been closed, including the current period.
+     */
+    public synchronized long getTimeInOpenMillis() {
+        return timeInOpenMillis + (state != State.CLOSED ? clock.getAsLong() - openedAt : 0);
+    }
+}
@@ -0,0 +1,41 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.base.MoreObjects;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+
+/**
+ * An event a subscriber gave up on, as kept in its {@link DeadLetterStore}.
+ */
+public class DeadLetter {
+    public final long id;
+    public final long timestamp; // epoch millis when the event was given up on
+    public final EventType type;
+    public final String username; // null for events without a user
+    public final int responseCode; // last response, or -1 if the receiver could not be reached
+    public final int attempts;
+    public final String reason;
+
+    public DeadLetter(long id, long timestamp, EventType type, String username, int responseCode, int attempts,
+                      String reason) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.type = type;
+        this.username = username;
+        this.responseCode = responseCode;
+        this.attempts = attempts;
+        this.reason = reason;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("id", id)
+                .add("timestamp", timestamp)
+                .add("type", type)
+                .add("username", username)
+                .add("responseCode", responseCode)
+                .add("attempts", attempts)
+                .add("reason", reason)
+                .toString();
+    }
+}
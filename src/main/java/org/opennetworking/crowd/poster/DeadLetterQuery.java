@@ -0,0 +1,64 @@
+package org.opennetworking.crowd.poster;
+
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+
+import java.util.Locale;
+
+/**
+ * Selects dead letters by event type, user and time, oldest first. Unset criteria match
+ * everything.
+ */
+public class DeadLetterQuery {
+    EventType type;
+    String username; // lower case
+    long from = Long.MIN_VALUE; // inclusive
+    long to = Long.MAX_VALUE; // exclusive
+    long afterId = 0;
+    int limit = Integer.MAX_VALUE;
+
+    public DeadLetterQuery type(EventType type) {
+        this.type = type;
+        return this;
+    }
+
+    public DeadLetterQuery user(String username) {
+        this.username = username != null ? username.toLowerCase(Locale.ENGLISH) : null;
+        return this;
+    }
+
+    /**
+     * Dead letters from timestamp (epoch millis) on.
+     */
+    public DeadLetterQuery from(long timestamp) {
+        this.from = timestamp;
+        return this;
+    }
+
+    /**
+     * Dead letters before timestamp (epoch millis).
+     */
+    public DeadLetterQuery to(long timestamp) {
+        this.to = timestamp;
+        return this;
+    }
+
+    /**
+     * Dead letters with a greater id, for paging.
+     */
+    public DeadLetterQuery after(long id) {
+        this.afterId = id;
+        return this;
+    }
+
+    public DeadLetterQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    boolean matches(DeadLetter letter) {
+        return letter.id > afterId &&
+                (type == null || letter.type == type) &&
+                (username == null || letter.username != null && username.equals(letter.username.toLowerCase(Locale.ENGLISH))) &&
+                letter.timestamp >= from && letter.timestamp < to;
+    }
+}
@@ -0,0 +1,339 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.SortedSetMultimap;
+import com.google.common.collect.TreeMultimap;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.zip.CRC32;
+
+/**
+ * Durable store of events a subscriber gave up on, indexed by event type, user and time.
+ * <p>
+ * Records are appended to a single file as [length (int)][CRC32 (int)][body]. A dead letter's
+ * body is [kind][id][timestamp][response code][attempts][type][username][reason][payload
+ * length][payload], with the event's JSON as the payload; removing a dead letter appends a
+ * [kind][id] record. The index is rebuilt by scanning the file on open, and payloads are read
+ * from disk only when an event is fetched. Once removals outnumber the dead letters left, the
+ * file is rewritten without them, starting with a [kind][next id] record so ids are never reused.
+ */
+public class DeadLetterStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterStore.class);
+    private static final byte LETTER = 1;
+    private static final byte REMOVED = 2;
+    private static final byte NEXT_ID = 3;
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+    private static final int MIN_COMPACT_RECORDS = 1000;
+
+    private final File path;
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile file;
+    private long nextId = 1;
+    private int removedRecords;
+
+    // All guarded by this
+    private final NavigableMap<Long, Entry> entries = Maps.newTreeMap(); // by id
+    private final SortedSetMultimap<EventType, Long> byType = TreeMultimap.create();
+    private final SortedSetMultimap<String, Long> byUser = TreeMultimap.create();
+    private final TreeMultimap<Long, Long> byTime = TreeMultimap.create();
+
+    private static final class Entry {
+        final DeadLetter letter;
+        long bodyOffset;
+        final int bodyLength;
+        final int payloadLength; // the payload ends the body
+
+        Entry(DeadLetter letter, long bodyOffset, int bodyLength, int payloadLength) {
+            this.letter = letter;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.payloadLength = payloadLength;
+        }
+
+        long payloadOffset() {
+            return bodyOffset + bodyLength - payloadLength;
+        }
+    }
+
+    public DeadLetterStore(File path) throws IOException {
+        File parent = path.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create dead letter directory " + parent);
+        }
+        this.path = path;
+        file = new RandomAccessFile(path, "rw");
+        load();
+        logger.info("ONF Webhook dead letter store opened in {} with {} events", path, entries.size());
+    }
+
+    private static String userKey(String username) {
+        return username.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Reads the index back, dropping a torn or corrupt final record.
+     */
+    private void load() throws IOException {
+        long position = 0;
+        file.seek(0);
+        try {
+            while (position + HEADER_BYTES <= file.length()) {
+                int length = file.readInt();
+                int checksum = file.readInt();
+                if (length <= 0 || position + HEADER_BYTES + length > file.length()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                file.readFully(body);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(body, position + HEADER_BYTES);
+                position += HEADER_BYTES + length;
+            }
+        } catch (EOFException e) {
+            // torn header; truncated below
+        }
+        if (position < file.length()) {
+            logger.warn("Dropping {} bytes of incomplete ONF Webhook dead letters", file.length() - position);
+            file.setLength(position);
+        }
+    }
+
+    private void apply(byte[] body, long bodyOffset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte kind = in.readByte();
+        if (kind == NEXT_ID) {
+            nextId = Math.max(nextId, in.readLong());
+            return;
+        }
+        long id = in.readLong();
+        nextId = Math.max(nextId, id + 1);
+        if (kind == REMOVED) {
+            unindex(id);
+            removedRecords++;
+            return;
+        }
+        long timestamp = in.readLong();
+        int responseCode = in.readInt();
+        int attempts = in.readInt();
+        EventType type;
+        try {
+            type = EventType.valueOf(in.readUTF());
+        } catch (IllegalArgumentException e) {
+            type = null; // no longer a known event type
+        }
+        String username = in.readUTF();
+        String reason = in.readUTF();
+        int payloadLength = in.readInt();
+        index(new Entry(new DeadLetter(id, timestamp, type, username.isEmpty() ? null : username,
+                                       responseCode, attempts, reason), bodyOffset, body.length, payloadLength));
+    }
+
+    private void index(Entry entry) {
+        DeadLetter letter = entry.letter;
+        entries.put(letter.id, entry);
+        if (letter.type != null) {
+            byType.put(letter.type, letter.id);
+        }
+        if (letter.username != null) {
+            byUser.put(userKey(letter.username), letter.id);
+        }
+        byTime.put(letter.timestamp, letter.id);
+    }
+
+    private void unindex(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        DeadLetter letter = entry.letter;
+        if (letter.type != null) {
+            byType.remove(letter.type, id);
+        }
+        if (letter.username != null) {
+            byUser.remove(userKey(letter.username), id);
+        }
+        byTime.remove(letter.timestamp, id);
+    }
+
+    /**
+     * Stores an event's JSON payload and returns its dead letter.
+     */
+    public synchronized DeadLetter add(EventType type, String username, byte[] payload, int payloadLength,
+                                       int responseCode, int attempts, String reason) throws IOException {
+        DeadLetter letter = new DeadLetter(nextId++, System.currentTimeMillis(), type, username,
+                                           responseCode, attempts, reason);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + payloadLength);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(LETTER);
+        out.writeLong(letter.id);
+        out.writeLong(letter.timestamp);
+        out.writeInt(responseCode);
+        out.writeInt(attempts);
+        out.writeUTF(type != null ? type.name() : "");
+        out.writeUTF(username != null ? username : "");
+        out.writeUTF(reason != null ? reason : "");
+        out.writeInt(payloadLength);
+        out.write(payload, 0, payloadLength);
+        long bodyOffset = append(bytes.toByteArray());
+        index(new Entry(letter, bodyOffset, bytes.size(), payloadLength));
+        return letter;
+    }
+
+    /**
+     * Returns the matching dead letters, oldest first.
+     */
+    public synchronized List<DeadLetter> find(DeadLetterQuery query) {
+        // Walk the smallest index that applies and check the other criteria on each entry
+        Collection<Long> candidates;
+        if (query.username != null) {
+            candidates = byUser.get(query.username).tailSet(query.afterId + 1);
+        } else if (query.type != null) {
+            candidates = byType.get(query.type).tailSet(query.afterId + 1);
+        } else if (query.from != Long.MIN_VALUE || query.to != Long.MAX_VALUE) {
+            List<Long> ids = Lists.newArrayList();
+            byTime.asMap().subMap(query.from, query.to).values().forEach(ids::addAll);
+            Collections.sort(ids);
+            candidates = ids;
+        } else {
+            candidates = entries.tailMap(query.afterId, false).keySet();
+        }
+        List<DeadLetter> results = Lists.newArrayList();
+        for (Long id : candidates) {
+            if (results.size() >= query.limit) {
+                break;
+            }
+            DeadLetter letter = entries.get(id).letter;
+            if (query.matches(letter)) {
+                results.add(letter);
+            }
+        }
+        return results;
+    }
+
+    public synchronized DeadLetter get(long id) {
+        Entry entry = entries.get(id);
+        return entry != null ? entry.letter : null;
+    }
+
+    /**
+     * Reads the event JSON of a dead letter, or returns null if there is no such dead letter.
+     */
+    public synchronized byte[] readPayload(long id) throws IOException {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        byte[] payload = new byte[entry.payloadLength];
+        file.seek(entry.payloadOffset());
+        file.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Forgets a dead letter, e.g. once it has been redriven.
+     *
+     * @return false if there was no such dead letter
+     */
+    public synchronized boolean remove(long id) throws IOException {
+        if (!entries.containsKey(id)) {
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 + Long.BYTES);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVED);
+        out.writeLong(id);
+        append(bytes.toByteArray());
+        unindex(id);
+        removedRecords++;
+        if (entries.isEmpty()) {
+            file.setLength(0);
+            append(nextIdRecord());
+            removedRecords = 0;
+        } else if (removedRecords > MIN_COMPACT_RECORDS && removedRecords > entries.size()) {
+            compact();
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private byte[] nextIdRecord() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 + Long.BYTES);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(NEXT_ID);
+        out.writeLong(nextId);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Appends a record and returns the offset of its body.
+     */
+    private long append(byte[] body) throws IOException {
+        crc.reset();
+        crc.update(body);
+        long start = file.length();
+        file.seek(start);
+        file.writeInt(body.length);
+        file.writeInt((int) crc.getValue());
+        file.write(body);
+        return start + HEADER_BYTES;
+    }
+
+    /**
+     * Rewrites the file with only the dead letters that are left.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(path.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            byte[] header = nextIdRecord();
+            crc.reset();
+            crc.update(header);
+            out.writeInt(header.length);
+            out.writeInt((int) crc.getValue());
+            out.write(header);
+            for (Entry entry : entries.values()) {
+                byte[] record = new byte[HEADER_BYTES + entry.bodyLength];
+                file.seek(entry.bodyOffset - HEADER_BYTES);
+                file.readFully(record);
+                entry.bodyOffset = out.getFilePointer() + HEADER_BYTES;
+                out.write(record);
+            }
+            out.getFD().sync();
+        }
+        file.close();
+        Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        file = new RandomAccessFile(path, "rw");
+        removedRecords = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.getFD().sync();
+        file.close();
+    }
+}
@@ -0,0 +1,183 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Delivers each user's events strictly in order while different users' events go out in
+ * parallel; used instead of a {@link DeliveryQueue} when ordered delivery is wanted.
+ * <p>
+ * Events are assigned to one of a fixed number of lanes by a hash of the username, as in
+ * FanOut. A lane sends one event at a time: the sink is called for the next event only once
+ * {@link #next} says the previous one is done (delivered, rejected or given up on). An event
+ * waiting for a retry, or for the receiver's circuit to close, holds up its own lane and no
+ * other; it is sent again with {@link #resend}. Sinks run on a shared pool of workers, so there
+ * can be many more lanes than threads when posts complete asynchronously.
+ * <p>
+ * Each lane holds at most laneCapacity waiting events; when it is full the caller waits.
+ */
+public class DeliveryLanes implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryLanes.class);
+
+    private final Lane[] lanes;
+    private final int laneCapacity;
+    private final Consumer<PendingEvent> sink;
+    private final ExecutorService workers;
+    private volatile boolean running = true;
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    private static final class Lane {
+        final Deque<PendingEvent> waiting = Queues.newArrayDeque();
+        boolean busy; // an event is in flight or waiting for a retry
+    }
+
+    public DeliveryLanes(int laneCount, int laneCapacity, int workerCount, Consumer<PendingEvent> sink) {
+        lanes = new Lane[Math.max(laneCount, 1)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        this.laneCapacity = Math.max(laneCapacity, 1);
+        this.sink = sink;
+        workers = Executors.newFixedThreadPool(Math.max(workerCount, 1), new ThreadFactoryBuilder()
+                .setNameFormat("onf-webhook-lane-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    private Lane lane(PendingEvent pending) {
+        String username = pending.event.user != null ? pending.event.user.username : null;
+        return username == null ? lanes[0] :
+                lanes[Math.floorMod(username.toLowerCase(Locale.ENGLISH).hashCode(), lanes.length)];
+    }
+
+    public void offer(PendingEvent pending) {
+        Lane lane = lane(pending);
+        synchronized (lane) {
+            while (running && lane.waiting.size() >= laneCapacity) {
+                try {
+                    lane.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted while queueing ONF Webhook event; it stays in the outbox: {}", pending.event);
+                    return;
+                }
+            }
+            if (lane.busy) {
+                lane.waiting.add(pending);
+                return;
+            }
+            lane.busy = true;
+        }
+        start(pending);
+    }
+
+    /**
+     * Called once the event at the head of its lane is done with; starts the lane's next event.
+     */
+    public void next(PendingEvent done) {
+        Lane lane = lane(done);
+        PendingEvent next;
+        synchronized (lane) {
+            next = lane.waiting.poll();
+            if (next == null) {
+                lane.busy = false;
+                return;
+            }
+            lane.notifyAll();
+        }
+        start(next);
+    }
+
+    /**
+     * Sends the event at the head of its lane again, e.g. after a retry delay.
+     */
+    public void resend(PendingEvent pending) {
+        execute(pending);
+    }
+
+    private void start(PendingEvent pending) {
+        long latencyMillis = System.currentTimeMillis() - pending.enqueuedAt;
+        delivered.increment();
+        totalLatencyMillis.add(latencyMillis);
+        maxLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+        execute(pending);
+    }
+
+    private void execute(PendingEvent pending) {
+        try {
+            workers.execute(() -> {
+                try {
+                    sink.accept(pending);
+                } catch (RuntimeException e) {
+                    // Not left holding up the lane; the event stays in the outbox
+                    logger.error("ONF Webhook delivery failed for " + pending.event, e);
+                    next(pending);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed; the event stays in the outbox
+        }
+    }
+
+    /**
+     * Number of events waiting behind the event at the head of each lane.
+     */
+    public int depth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                depth += lane.waiting.size();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Mean time from enqueue to the first delivery attempt, in milliseconds.
+     */
+    public double meanLatencyMillis() {
+        long count = delivered.sum();
+        return count == 0 ? 0 : (double) totalLatencyMillis.sum() / count;
+    }
+
+    public long maxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Lane lane : lanes) {
+            synchronized (lane) {
+                lane.notifyAll();
+            }
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int waiting = depth();
+        if (waiting > 0) {
+            logger.warn("ONF Webhook delivery lanes closed with {} events waiting; they stay in the outbox", waiting);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Bounded in-memory queue that decouples Crowd's event thread from webhook delivery.
+ * <p>
+ * Events are drained by a fixed pool of worker threads and handed to the sink in batches of
+ * up to batchSize events; a worker waits at most batchWindowMillis after the first event of a
+ * batch for the rest to arrive. When the queue is full the configured {@link OverflowPolicy} decides what happens;
+ * events discarded by the policy are passed to the drop handler.
+ * <p>
+ * Events that come back for another attempt are {@link #requeue requeued} ahead of the queue,
+ * without waiting for room, since they were admitted once already. While paused (e.g. the
+ * receiver's circuit is open) the workers take nothing, so waiting events stay in the queue
+ * and new ones overflow as configured.
+ */
+public class DeliveryQueue implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryQueue.class);
+    private static final long POLL_MILLIS = 100;
+
+    public enum OverflowPolicy {
+        /** Block the caller until there is room in the queue */
+        BLOCK,
+        /** Discard the oldest queued event to make room */
+        DROP_OLDEST,
+        /** Write overflowing events to disk and deliver them once the queue drains */
+        SPILL,
+    }
+
+    private final BlockingQueue<PendingEvent> queue;
+    private final Queue<PendingEvent> requeued = Queues.newConcurrentLinkedQueue();
+    private final BooleanSupplier paused;
+    private final OverflowPolicy overflowPolicy;
+    private final SpillFile spillFile;
+    private final int batchSize;
+    private final long batchWindowMillis;
+    private final Consumer<List<PendingEvent>> sink;
+    private final Consumer<PendingEvent> dropHandler;
+    private final ExecutorService workers;
+    private volatile boolean running = true;
+
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder totalLatencyMillis = new LongAdder();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    public DeliveryQueue(int capacity, int workerCount, int batchSize, long batchWindowMillis,
+                         OverflowPolicy overflowPolicy, File spillPath,
+                         Consumer<List<PendingEvent>> sink, Consumer<PendingEvent> dropHandler) throws IOException {
+        this(capacity, workerCount, batchSize, batchWindowMillis, overflowPolicy, spillPath, sink, dropHandler,
+             () -> false);
+    }
+
+    /**
+     * @param paused whether the workers should stop taking events for now
+     */
+    public DeliveryQueue(int capacity, int workerCount, int batchSize, long batchWindowMillis,
+                         OverflowPolicy overflowPolicy, File spillPath,
+                         Consumer<List<PendingEvent>> sink, Consumer<PendingEvent> dropHandler,
+                         BooleanSupplier paused) throws IOException {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.paused = paused;
+        this.batchSize = Math.max(batchSize, 1);
+        this.batchWindowMillis = batchWindowMillis;
+        this.overflowPolicy = overflowPolicy;
+        this.spillFile = overflowPolicy == OverflowPolicy.SPILL ? new SpillFile(spillPath) : null;
+        this.sink = sink;
+        this.dropHandler = dropHandler;
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder()
+                .setNameFormat("onf-webhook-delivery-%d")
+                .setDaemon(true)
+                .build());
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::drain);
+        }
+    }
+
+    public void offer(PendingEvent pending) {
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(pending);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    logger.warn("Interrupted while queueing ONF Webhook event; dropping {}", pending.event);
+                    drop(pending);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(pending)) {
+                    PendingEvent oldest = queue.poll();
+                    if (oldest != null) {
+                        logger.warn("ONF Webhook queue full; dropping {}", oldest.event);
+                        drop(oldest);
+                    }
+                }
+                break;
+            case SPILL:
+                // Once anything is on disk, keep spilling so events stay in order. Locked with
+                // unspill() so an event can't slip in between spilled events being read and queued.
+                synchronized (this) {
+                    if (spillFile.size() > 0 || !queue.offer(pending)) {
+                        try {
+                            spillFile.append(pending);
+                        } catch (IOException e) {
+                            logger.error("Unable to spill ONF Webhook event; dropping " + pending.event, e);
+                            drop(pending);
+                        }
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Puts an event back at the front of the queue for another attempt; never blocks.
+     */
+    public void requeue(PendingEvent pending) {
+        requeued.add(pending);
+    }
+
+    private void drain() {
+        while (running || !queue.isEmpty() || !requeued.isEmpty()) {
+            if (paused.getAsBoolean()) {
+                if (!running) {
+                    return; // the rest stay in the outbox
+                }
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            PendingEvent pending = requeued.poll();
+            if (pending == null) {
+                pending = queue.poll();
+            }
+            if (pending == null) {
+                unspill();
+                try {
+                    pending = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (pending == null) {
+                    continue;
+                }
+            }
+            List<PendingEvent> batch = Lists.newArrayList(pending);
+            fillBatch(batch);
+            try {
+                sink.accept(batch);
+            } catch (RuntimeException e) {
+                logger.error("ONF Webhook delivery failed", e);
+            }
+            long now = System.currentTimeMillis();
+            batch.forEach(p -> recordLatency(now - p.enqueuedAt));
+        }
+    }
+
+    private void fillBatch(List<PendingEvent> batch) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+        while (batch.size() < batchSize) {
+            PendingEvent next;
+            try {
+                next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void drop(PendingEvent pending) {
+        dropped.increment();
+        dropHandler.accept(pending);
+    }
+
+    private synchronized void unspill() {
+        if (spillFile == null || spillFile.size() == 0 || !running) {
+            return;
+        }
+        try {
+            for (PendingEvent pending : spillFile.read(queue.remainingCapacity())) {
+                queue.put(pending);
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read spilled ONF Webhook events", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void recordLatency(long latencyMillis) {
+        delivered.increment();
+        totalLatencyMillis.add(latencyMillis);
+        maxLatencyMillis.accumulateAndGet(latencyMillis, Math::max);
+    }
+
+    /**
+     * Number of events waiting for delivery, including those spilled to disk.
+     */
+    public int depth() {
+        return requeued.size() + queue.size() + (spillFile != null ? spillFile.size() : 0);
+    }
+
+    public long deliveredCount() {
+        return delivered.sum();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Mean time from enqueue to delivery attempt, in milliseconds.
+     */
+    public double meanLatencyMillis() {
+        long count = delivered.sum();
+        return count == 0 ? 0 : (double) totalLatencyMillis.sum() / count;
+    }
+
+    public long maxLatencyMillis() {
+        return maxLatencyMillis.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("ONF Webhook delivery did not finish; {} events left in queue", queue.size());
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close ONF Webhook spill file", e);
+            }
+        }
+    }
+}
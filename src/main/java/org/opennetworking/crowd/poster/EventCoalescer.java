@@ -0,0 +1,223 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Holds each user's events for a short window and collapses the redundant ones before they
+ * are handed on for delivery.
+ * <p>
+ * The window starts with the first event for a user; when it closes all of that user's
+ * remaining events are passed downstream in the order they were sent. Within the window:
+ * <ul>
+ * <li>a repeat of an event (same type and group) replaces the earlier one, keeping the
+ * earlier old email / GitHub ID, and an update that ends where it started is dropped</li>
+ * <li>USER_DELETED_GROUP cancels a pending USER_ADDED_GROUP for the same group</li>
+ * </ul>
+ * Only the latest pending event about the same group, GitHub ID or email is considered, and
+ * never one from before the user was added or deleted, so related events keep their order.
+ * Events without a username cannot be matched to a window, so everything
+ * pending is flushed before they are passed on. Collapsed events go to the discard handler.
+ */
+public class EventCoalescer implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(EventCoalescer.class);
+
+    private final long windowMillis;
+    private final Consumer<PendingEvent> downstream;
+    private final Consumer<PendingEvent> discardHandler;
+    private final ScheduledExecutorService timer;
+    private final Map<String, List<PendingEvent>> pending = Maps.newLinkedHashMap(); // guarded by this
+    // Held while passing events downstream so they leave in the order they were collected
+    private final Object emitLock = new Object();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    public EventCoalescer(long windowMillis, Consumer<PendingEvent> downstream,
+                          Consumer<PendingEvent> discardHandler) {
+        this.windowMillis = windowMillis;
+        this.downstream = downstream;
+        this.discardHandler = discardHandler;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("onf-webhook-coalescer-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    private static String key(WebhookEvent event) {
+        return event.user != null && event.user.username != null ?
+                event.user.username.toLowerCase(Locale.ENGLISH) : null;
+    }
+
+    public void offer(PendingEvent next) {
+        String key = key(next.event);
+        if (key == null) {
+            synchronized (emitLock) {
+                List<PendingEvent> events = takeAll();
+                events.add(next);
+                emit(events);
+            }
+            return;
+        }
+        synchronized (this) {
+            List<PendingEvent> events = pending.get(key);
+            if (events == null) {
+                events = Lists.newArrayList();
+                pending.put(key, events);
+                List<PendingEvent> window = events;
+                timer.schedule(() -> flush(key, window), windowMillis, TimeUnit.MILLISECONDS);
+            }
+            add(events, next);
+        }
+    }
+
+    private void add(List<PendingEvent> events, PendingEvent next) {
+        // Only the most recent pending event about the same group, GitHub ID or email is
+        // considered, and nothing is moved across the user being added or deleted
+        for (ListIterator<PendingEvent> it = events.listIterator(events.size()); it.hasPrevious(); ) {
+            PendingEvent earlier = it.previous();
+            if (isBarrier(earlier.event.type) || isBarrier(next.event.type)) {
+                break;
+            }
+            if (!related(earlier.event, next.event)) {
+                continue;
+            }
+            if (earlier.event.type == EventType.USER_ADDED_GROUP && next.event.type == EventType.USER_DELETED_GROUP) {
+                it.remove();
+                discard(earlier);
+                discard(next);
+                return;
+            }
+            if (earlier.event.type == next.event.type) {
+                discard(earlier);
+                WebhookEvent merged = merge(earlier.event, next.event);
+                if (merged == null) {
+                    it.remove();
+                    discard(next);
+                } else {
+                    // Nothing related came in between, so it can keep the earlier event's place
+                    it.set(new PendingEvent(merged, next.seq, earlier.enqueuedAt));
+                }
+                return;
+            }
+            break;
+        }
+        events.add(next);
+    }
+
+    private static boolean isBarrier(EventType type) {
+        return type == EventType.USER_ADDED || type == EventType.USER_DELETED;
+    }
+
+    /**
+     * Whether two events are about the same group, or both about the user's GitHub ID or email.
+     */
+    private static boolean related(WebhookEvent a, WebhookEvent b) {
+        if (a.groupName != null || b.groupName != null) {
+            return Objects.equals(a.groupName, b.groupName);
+        }
+        return topic(a.type) == topic(b.type);
+    }
+
+    private static EventType topic(EventType type) {
+        switch (type) {
+            case USER_ADDED_GITHUB:
+            case USER_UPDATED_GITHUB:
+            case USER_DELETED_GITHUB:
+                return EventType.USER_UPDATED_GITHUB;
+            default:
+                return type;
+        }
+    }
+
+    /**
+     * Combines two events of the same kind, or returns null if together they change nothing.
+     */
+    private static WebhookEvent merge(WebhookEvent first, WebhookEvent last) {
+        WebhookEvent merged = new WebhookEvent();
+        merged.type = last.type;
+        merged.user = last.user;
+        merged.groupName = last.groupName;
+        merged.oldGithubId = first.oldGithubId;
+        merged.newGithubId = last.newGithubId;
+        merged.oldEmail = first.oldEmail;
+        merged.newEmail = last.newEmail;
+        if (merged.type == EventType.USER_UPDATED_EMAIL && Objects.equals(merged.oldEmail, merged.newEmail) ||
+                merged.type == EventType.USER_UPDATED_GITHUB &&
+                        Objects.equals(merged.oldGithubId, merged.newGithubId)) {
+            return null;
+        }
+        return merged;
+    }
+
+    private void discard(PendingEvent event) {
+        coalesced.increment();
+        discardHandler.accept(event);
+    }
+
+    private void flush(String key, List<PendingEvent> window) {
+        synchronized (emitLock) {
+            synchronized (this) {
+                if (pending.get(key) != window) { // already flushed
+                    return;
+                }
+                pending.remove(key);
+            }
+            emit(window);
+        }
+    }
+
+    /**
+     * Passes everything pending downstream now.
+     */
+    public void flush() {
+        synchronized (emitLock) {
+            emit(takeAll());
+        }
+    }
+
+    private synchronized List<PendingEvent> takeAll() {
+        List<PendingEvent> events = Lists.newArrayList();
+        pending.values().forEach(events::addAll);
+        pending.clear();
+        return events;
+    }
+
+    private void emit(List<PendingEvent> events) {
+        for (PendingEvent event : events) {
+            try {
+                downstream.accept(event);
+            } catch (RuntimeException e) {
+                logger.error("ONF Webhook coalescer failed to pass on " + event.event, e);
+            }
+        }
+    }
+
+    /**
+     * Number of events dropped or merged into another event.
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        flush();
+    }
+}
@@ -0,0 +1,197 @@
+package org.opennetworking.crowd.poster;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Reads an HTTP/1.x response incrementally, as bytes arrive, keeping the status code and
+ * discarding the body.
+ * <p>
+ * Bodies may be delimited by Content-Length, chunked encoding or the end of the connection;
+ * interim (1xx) responses are skipped.
+ */
+final class HttpResponseParser {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private enum State {
+        STATUS_LINE,
+        HEADERS,
+        BODY,
+        CHUNK_SIZE,
+        CHUNK_DATA,
+        CHUNK_END, // the line break after a chunk's data
+        TRAILERS,
+        UNTIL_CLOSE,
+        DONE,
+    }
+
+    private final StringBuilder line = new StringBuilder();
+    private State state;
+    private int status;
+    private boolean keepAlive;
+    private boolean chunked;
+    private long contentLength;
+    private long remaining;
+
+    HttpResponseParser() {
+        reset();
+    }
+
+    void reset() {
+        state = State.STATUS_LINE;
+        line.setLength(0);
+        status = 0;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    /**
+     * Whether the connection can be used for another request.
+     */
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Consumes bytes up to the end of the response.
+     *
+     * @return whether the response is complete
+     */
+    boolean feed(ByteBuffer in) throws IOException {
+        while (in.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case BODY:
+                case CHUNK_DATA:
+                    int skipped = (int) Math.min(remaining, in.remaining());
+                    in.position(in.position() + skipped);
+                    remaining -= skipped;
+                    if (remaining == 0) {
+                        state = state == State.BODY ? State.DONE : State.CHUNK_END;
+                    }
+                    break;
+                case UNTIL_CLOSE:
+                    in.position(in.limit());
+                    break;
+                default:
+                    byte b = in.get();
+                    if (b == '\n') {
+                        int length = line.length();
+                        if (length > 0 && line.charAt(length - 1) == '\r') {
+                            line.setLength(length - 1);
+                        }
+                        String text = line.toString();
+                        line.setLength(0);
+                        endLine(text);
+                    } else if (line.length() < MAX_LINE_LENGTH) {
+                        line.append((char) (b & 0xff));
+                    } else {
+                        throw new IOException("HTTP response line too long");
+                    }
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Called when the connection ends; returns whether that completes the response.
+     */
+    boolean finishOnClose() {
+        if (state == State.UNTIL_CLOSE) {
+            state = State.DONE;
+            return true;
+        }
+        return false;
+    }
+
+    private void endLine(String text) throws IOException {
+        switch (state) {
+            case STATUS_LINE:
+                if (!text.isEmpty()) {
+                    readStatusLine(text);
+                }
+                break;
+            case HEADERS:
+                if (text.isEmpty()) {
+                    endHeaders();
+                } else {
+                    readHeader(text);
+                }
+                break;
+            case CHUNK_SIZE:
+                int extension = text.indexOf(';');
+                remaining = parseLong(extension >= 0 ? text.substring(0, extension) : text, 16);
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                break;
+            case CHUNK_END:
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (text.isEmpty()) {
+                    state = State.DONE;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // e.g. HTTP/1.1 200 OK
+    private void readStatusLine(String text) throws IOException {
+        int space = text.indexOf(' ');
+        if (!text.startsWith("HTTP/") || space < 0 || text.length() < space + 4) {
+            throw new IOException("Malformed HTTP status line: " + text);
+        }
+        status = (int) parseLong(text.substring(space + 1, space + 4), 10);
+        keepAlive = !text.startsWith("HTTP/1.0");
+        chunked = false;
+        contentLength = -1;
+        state = State.HEADERS;
+    }
+
+    private void readHeader(String text) throws IOException {
+        int colon = text.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = text.substring(0, colon).trim();
+        String value = text.substring(colon + 1).trim().toLowerCase(Locale.ENGLISH);
+        if (name.equalsIgnoreCase("Content-Length")) {
+            contentLength = parseLong(value, 10);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            chunked = value.contains("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+            if (value.contains("close")) {
+                keepAlive = false;
+            } else if (value.contains("keep-alive")) {
+                keepAlive = true;
+            }
+        }
+    }
+
+    private void endHeaders() {
+        if (status < 200) {
+            state = State.STATUS_LINE; // interim response; the real one follows
+        } else if (status == 204 || status == 304) {
+            state = State.DONE;
+        } else if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = remaining == 0 ? State.DONE : State.BODY;
+        } else {
+            keepAlive = false;
+            state = State.UNTIL_CLOSE;
+        }
+    }
+
+    private static long parseLong(String text, int radix) throws IOException {
+        try {
+            return Long.parseLong(text.trim(), radix);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed HTTP response: " + text);
+        }
+    }
+}
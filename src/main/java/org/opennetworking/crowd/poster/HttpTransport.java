@@ -0,0 +1,120 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Posts request bodies over persistent HTTP connections.
+ * <p>
+ * Connections are pooled by the JDK's keep-alive cache: the response is always read to the
+ * end and the connection is never disconnected after a successful exchange, so the socket
+ * (and TLS session) is reused by the next request to the same target. Idle connections are
+ * closed by the cache once the receiver's Keep-Alive timeout expires (5 seconds when the
+ * receiver does not send one). Connections that fail are disconnected so they are not reused.
+ * <p>
+ * At most maxConnections requests are in flight per target (scheme, host and port); further
+ * callers wait for a connection to be released. This does not size the pool: the keep-alive
+ * cache holds at most http.maxConnections idle sockets per target (default 5) and closes the
+ * rest, so a higher maxConnections needs that JVM system property raised to match.
+ * <p>
+ * {@link #send} runs on the caller's thread and returns a completed future.
+ */
+public class HttpTransport implements WebhookTransport {
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxConnections;
+    private final ConcurrentMap<String, Semaphore> connections = Maps.newConcurrentMap();
+    private final ThreadLocal<byte[]> drainBuffer = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    public HttpTransport(int connectTimeoutMillis, int readTimeoutMillis, int maxConnections) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxConnections = maxConnections;
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(URL url, Map<String, String> headers, byte[] body, int length) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        try {
+            result.complete(post(url, headers, body, length));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Posts the first length bytes of body to url.
+     *
+     * @return the HTTP response code
+     */
+    public int post(URL url, Map<String, String> headers, byte[] body, int length) throws IOException {
+        Semaphore permits = connections.computeIfAbsent(
+                url.getProtocol() + "://" + url.getHost() + ":" + url.getPort(),
+                target -> new Semaphore(maxConnections));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + url);
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setRequestMethod("POST");
+            connection.setUseCaches(false);
+            connection.setDoOutput(true);
+            // Sends Content-Length and writes straight to the socket instead of buffering a copy
+            connection.setFixedLengthStreamingMode(length);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body, 0, length);
+            }
+            int responseCode = connection.getResponseCode();
+            // Consume the response so the connection goes back to the keep-alive cache
+            drain(responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                          connection.getErrorStream() : connection.getInputStream());
+            return responseCode;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            throw e;
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public void close() {
+        // idle connections are left to the keep-alive cache
+    }
+
+    private void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = drainBuffer.get();
+        try {
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,630 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Posts request bodies over non-blocking connections, so a few selector threads can keep
+ * thousands of requests in flight to slow receivers.
+ * <p>
+ * Each selector thread owns its connections: it connects, writes requests (through an
+ * SSLEngine for https), reads responses with {@link HttpResponseParser} and enforces the
+ * connect and read timeouts. Connections are kept alive and reused per target (scheme, host
+ * and port) by the thread that opened them, and closed after IDLE_MILLIS unused; a request
+ * that finds its reused connection already closed by the receiver is retried once on a new one.
+ * <p>
+ * At most maxInFlight requests are in flight per target; {@link #send} blocks the caller until
+ * one finishes, which holds back the delivery queue. Futures are completed on a callback
+ * thread, never on a selector thread, so callbacks may block or send again. System proxy
+ * settings are not used.
+ */
+public class NioTransport implements WebhookTransport {
+    private static final Logger logger = LoggerFactory.getLogger(NioTransport.class);
+    private static final long IDLE_MILLIS = 5000;
+    private static final long TICK_MILLIS = 100;
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxInFlight;
+    private final SSLContext sslContext;
+    private final ConcurrentMap<String, Semaphore> inFlight = Maps.newConcurrentMap();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final IoLoop[] loops;
+    private final ExecutorService callbacks;
+    private volatile boolean closed;
+
+    public NioTransport(int connectTimeoutMillis, int readTimeoutMillis, int maxInFlight, int selectorThreads)
+            throws IOException {
+        this(connectTimeoutMillis, readTimeoutMillis, maxInFlight, selectorThreads, defaultSslContext());
+    }
+
+    public NioTransport(int connectTimeoutMillis, int readTimeoutMillis, int maxInFlight, int selectorThreads,
+                        SSLContext sslContext) throws IOException {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxInFlight = maxInFlight;
+        this.sslContext = sslContext;
+        callbacks = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("onf-webhook-nio-callback-%d").setDaemon(true).build());
+        ThreadFactory threads = new ThreadFactoryBuilder().setNameFormat("onf-webhook-nio-%d").setDaemon(true).build();
+        loops = new IoLoop[Math.max(1, selectorThreads)];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop(threads);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    private static SSLContext defaultSslContext() throws IOException {
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No default TLS context", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Integer> send(URL url, Map<String, String> headers, byte[] body, int length) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        String scheme = url.getProtocol();
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            result.completeExceptionally(new MalformedURLException("Unsupported protocol " + scheme));
+            return result;
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        // Resolve on the caller's thread so lookups never stall a selector
+        InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+        if (address.isUnresolved()) {
+            result.completeExceptionally(new UnknownHostException(url.getHost()));
+            return result;
+        }
+        String target = scheme + "://" + url.getHost() + ":" + port;
+        Semaphore permits = inFlight.computeIfAbsent(target, t -> new Semaphore(maxInFlight));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(new InterruptedIOException("Interrupted waiting to send to " + url));
+            return result;
+        }
+        Exchange exchange = new Exchange(target, address, scheme.equals("https") ? url.getHost() : null,
+                                         request(url, port, headers, body, length), permits, result);
+        if (closed) {
+            complete(exchange, 0, new IOException("Transport closed"));
+        } else {
+            IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            loop.submit(exchange);
+            if (closed) {
+                loop.failSubmitted(); // raced with close()
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuffer request(URL url, int port, Map<String, String> headers, byte[] body, int length) {
+        StringBuilder head = new StringBuilder(256);
+        String path = url.getFile();
+        head.append("POST ").append(path.isEmpty() ? "/" : path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (port != url.getDefaultPort()) {
+            head.append(':').append(port);
+        }
+        head.append("\r\nContent-Length: ").append(length).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer request = ByteBuffer.allocate(headBytes.length + length);
+        request.put(headBytes).put(body, 0, length).flip();
+        return request;
+    }
+
+    private void complete(Exchange exchange, int responseCode, IOException error) {
+        exchange.permits.release();
+        Runnable callback = () -> {
+            if (error != null) {
+                exchange.result.completeExceptionally(error);
+            } else {
+                exchange.result.complete(responseCode);
+            }
+        };
+        try {
+            callbacks.execute(callback);
+        } catch (RejectedExecutionException e) {
+            callback.run();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (IoLoop loop : loops) {
+            if (loop == null) {
+                continue;
+            }
+            loop.selector.wakeup();
+            try {
+                loop.thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            loop.failSubmitted(); // anything submitted while the loop was stopping
+        }
+        callbacks.shutdown();
+        try {
+            callbacks.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Exchange {
+        final String target;
+        final InetSocketAddress address;
+        final String tlsHost; // null for http
+        final ByteBuffer request;
+        final Semaphore permits;
+        final CompletableFuture<Integer> result;
+        boolean retried;
+
+        Exchange(String target, InetSocketAddress address, String tlsHost, ByteBuffer request,
+                 Semaphore permits, CompletableFuture<Integer> result) {
+            this.target = target;
+            this.address = address;
+            this.tlsHost = tlsHost;
+            this.request = request;
+            this.permits = permits;
+            this.result = result;
+        }
+    }
+
+    /**
+     * A selector thread and the connections it owns; connection state is only touched here.
+     */
+    private class IoLoop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<Exchange> submitted = new ConcurrentLinkedQueue<>();
+        final Map<String, ArrayDeque<Connection>> idle = Maps.newHashMap();
+        final Set<Connection> connections = Sets.newHashSet();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+        IoLoop(ThreadFactory threads) throws IOException {
+            selector = Selector.open();
+            thread = threads.newThread(this);
+        }
+
+        void submit(Exchange exchange) {
+            submitted.add(exchange);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextTick = System.currentTimeMillis() + TICK_MILLIS;
+            try {
+                while (!closed) {
+                    selector.select(TICK_MILLIS);
+                    Exchange exchange;
+                    while ((exchange = submitted.poll()) != null) {
+                        start(exchange);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isValid()) {
+                            ((Connection) key.attachment()).progress();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.currentTimeMillis();
+                    if (now >= nextTick) {
+                        expire(now);
+                        nextTick = now + TICK_MILLIS;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.error("ONF Webhook selector failed", e);
+            } finally {
+                for (Connection connection : Lists.newArrayList(connections)) {
+                    connection.fail(new IOException("Transport closed"), false);
+                }
+                failSubmitted();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.debug("ONF Webhook failed to close selector", e);
+                }
+            }
+        }
+
+        void failSubmitted() {
+            Exchange exchange;
+            while ((exchange = submitted.poll()) != null) {
+                complete(exchange, 0, new IOException("Transport closed"));
+            }
+        }
+
+        void start(Exchange exchange) {
+            Connection connection = null;
+            ArrayDeque<Connection> pool = idle.get(exchange.target);
+            if (pool != null && !exchange.retried) {
+                connection = pool.pollFirst();
+            }
+            if (connection == null) {
+                try {
+                    connection = open(exchange);
+                } catch (IOException e) {
+                    complete(exchange, 0, e);
+                    return;
+                }
+            }
+            connection.start(exchange);
+        }
+
+        Connection open(Exchange exchange) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.connect(exchange.address);
+                SSLEngine engine = null;
+                if (exchange.tlsHost != null) {
+                    engine = sslContext.createSSLEngine(exchange.tlsHost, exchange.address.getPort());
+                    engine.setUseClientMode(true);
+                    SSLParameters parameters = engine.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    engine.setSSLParameters(parameters);
+                }
+                Connection connection = new Connection(this, exchange.target, channel, engine);
+                connections.add(connection);
+                return connection;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        void expire(long now) {
+            for (Connection connection : Lists.newArrayList(connections)) {
+                if (connection.exchange == null) {
+                    if (now - connection.lastActivity > IDLE_MILLIS) {
+                        connection.close();
+                    }
+                } else if (!connection.connected) {
+                    if (connectTimeoutMillis > 0 && now - connection.lastActivity > connectTimeoutMillis) {
+                        connection.fail(new SocketTimeoutException("Connect timed out"), false);
+                    }
+                } else if (readTimeoutMillis > 0 && now - connection.lastActivity > readTimeoutMillis) {
+                    connection.fail(new SocketTimeoutException("Read timed out"), false);
+                }
+            }
+        }
+    }
+
+    private class Connection {
+        final IoLoop loop;
+        final String target;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final SSLEngine engine;
+        final ByteBuffer netIn; // TLS records read, not yet unwrapped
+        final ByteBuffer netOut; // TLS records wrapped, not yet written
+        final ByteBuffer appIn; // response bytes unwrapped
+        final HttpResponseParser parser = new HttpResponseParser();
+        Exchange exchange; // null while idle
+        boolean connected;
+        boolean handshaken;
+        boolean reused;
+        boolean received;
+        int served;
+        long lastActivity = System.currentTimeMillis();
+
+        Connection(IoLoop loop, String target, SocketChannel channel, SSLEngine engine) throws IOException {
+            this.loop = loop;
+            this.target = target;
+            this.channel = channel;
+            this.engine = engine;
+            key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            if (engine != null) {
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut.flip();
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            } else {
+                netIn = netOut = appIn = null;
+            }
+        }
+
+        void start(Exchange exchange) {
+            this.exchange = exchange;
+            reused = served > 0;
+            received = false;
+            parser.reset();
+            touch();
+            progress();
+        }
+
+        void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        void progress() {
+            try {
+                if (!connected) {
+                    if (!channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_CONNECT);
+                        return;
+                    }
+                    connected = true;
+                    touch();
+                    if (engine != null) {
+                        engine.beginHandshake();
+                    }
+                }
+                if (engine != null && !handshaken) {
+                    if (!handshake()) {
+                        return;
+                    }
+                    handshaken = true;
+                }
+                if (exchange == null) {
+                    // Idle connections only become readable when the receiver closes them
+                    close();
+                } else if (write()) {
+                    read();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e), true);
+            }
+        }
+
+        private boolean handshake() throws IOException {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runTasks();
+                        break;
+                    case NEED_WRAP:
+                        if (!flush()) {
+                            return false;
+                        }
+                        netOut.clear();
+                        SSLEngineResult wrapped = engine.wrap(EMPTY, netOut);
+                        netOut.flip();
+                        if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("Connection closed during TLS handshake");
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                        if (!flush()) {
+                            return false;
+                        }
+                        netIn.flip();
+                        SSLEngineResult unwrapped = engine.unwrap(netIn, appIn);
+                        netIn.compact();
+                        if (unwrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("Connection closed during TLS handshake");
+                        }
+                        if (unwrapped.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                            int n = channel.read(netIn);
+                            if (n < 0) {
+                                throw new EOFException("Connection closed during TLS handshake");
+                            }
+                            if (n == 0) {
+                                key.interestOps(SelectionKey.OP_READ);
+                                return false;
+                            }
+                            touch();
+                        }
+                        break;
+                    default:
+                        return flush();
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Writes pending TLS records; false (and waiting for the socket) if some remain.
+         */
+        private boolean flush() throws IOException {
+            if (netOut.hasRemaining() && channel.write(netOut) > 0) {
+                touch();
+            }
+            if (netOut.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            return true;
+        }
+
+        private boolean write() throws IOException {
+            ByteBuffer request = exchange.request;
+            if (engine == null) {
+                if (request.hasRemaining() && channel.write(request) > 0) {
+                    touch();
+                }
+                if (request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                }
+            } else {
+                while (true) {
+                    if (!flush()) {
+                        return false;
+                    }
+                    if (!request.hasRemaining()) {
+                        break;
+                    }
+                    netOut.clear();
+                    SSLEngineResult result = engine.wrap(request, netOut);
+                    netOut.flip();
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS session closed");
+                    }
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+
+        private void read() throws IOException {
+            while (exchange != null) {
+                ByteBuffer in = engine == null ? loop.readBuffer : netIn;
+                if (engine == null) {
+                    in.clear();
+                }
+                int n = channel.read(in);
+                if (n > 0) {
+                    touch();
+                    received = true;
+                }
+                boolean done;
+                if (engine == null) {
+                    in.flip();
+                    done = parser.feed(in);
+                } else {
+                    done = unwrap();
+                }
+                if (done) {
+                    finish(parser.isKeepAlive() && (engine != null || !in.hasRemaining()) && n >= 0);
+                } else if (n < 0) {
+                    if (!parser.finishOnClose()) {
+                        throw new EOFException("Connection closed before the response ended");
+                    }
+                    finish(false);
+                } else if (n == 0) {
+                    return;
+                }
+            }
+        }
+
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            try {
+                while (netIn.hasRemaining()) {
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    appIn.flip();
+                    boolean done = parser.feed(appIn);
+                    appIn.clear();
+                    if (done) {
+                        return true;
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        return parser.finishOnClose();
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        break;
+                    }
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runTasks();
+                    }
+                }
+                return false;
+            } finally {
+                netIn.compact();
+            }
+        }
+
+        private void finish(boolean keepAlive) {
+            Exchange finished = exchange;
+            exchange = null;
+            served++;
+            if (keepAlive && !closed) {
+                touch();
+                loop.idle.computeIfAbsent(target, t -> new ArrayDeque<>()).addFirst(this);
+            } else {
+                close();
+            }
+            complete(finished, parser.getStatus(), null);
+        }
+
+        /**
+         * Closes the connection and fails its request, retrying once on a new connection if a
+         * reused one was closed by the receiver before anything was read.
+         */
+        void fail(IOException error, boolean retry) {
+            Exchange failed = exchange;
+            exchange = null;
+            close();
+            if (failed == null) {
+                return;
+            }
+            if (retry && reused && !received && !failed.retried && !closed) {
+                logger.debug("ONF Webhook retrying on a new connection to {}: {}", target, error.toString());
+                failed.retried = true;
+                failed.request.rewind();
+                loop.start(failed);
+            } else {
+                complete(failed, 0, error);
+            }
+        }
+
+        void close() {
+            loop.connections.remove(this);
+            ArrayDeque<Connection> pool = loop.idle.get(target);
+            if (pool != null) {
+                pool.remove(this);
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("ONF Webhook failed to close connection to {}", target, e);
+            }
+        }
+    }
+}
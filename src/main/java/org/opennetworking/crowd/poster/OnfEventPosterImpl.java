@@ -4,19 +4,26 @@ import com.atlassian.plugin.spring.scanner.annotation.export.ExportAsService;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
-import com.google.gson.Gson;
-import org.apache.commons.codec.digest.HmacUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.opennetworking.crowd.api.OnfEventPoster;
 import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+import org.opennetworking.crowd.metrics.WebhookMetricsJmx;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Named;
-import java.io.DataOutputStream;
-import java.net.ConnectException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.File;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 
@@ -25,9 +32,20 @@ import static com.google.common.base.Strings.isNullOrEmpty;
 public class OnfEventPosterImpl implements OnfEventPoster {
     private final static Logger logger = LoggerFactory.getLogger(OnfEventPosterImpl.class);
     private final static String DEFAULT_TARGET_URL = "http://localhost:5000";
+    private final static String DEFAULT_SUBSCRIBER = "default";
 
-    private String targetUrl;
-    private String webhookSecret;
+    public final static String CONTENT_TYPE = "application/json";
+    // A JSON array of events; receivers opt in to batches by accepting this content type
+    public final static String BATCH_CONTENT_TYPE = "application/vnd.onf.webhook-batch+json";
+    public final static String BATCH_SIZE_HEADER = "Crowd-Webhook-Batch-Size";
+    public final static String SIGNATURE_HEADER = "Crowd-Webhook-Signature";
+
+    private final WebhookJsonWriter jsonWriter = new WebhookJsonWriter();
+    private final PayloadBuffer.Pool buffers = new PayloadBuffer.Pool();
+    private final List<Subscriber> subscribers;
+    private final Set<EventType> groupEventTypes = EnumSet.noneOf(EventType.class);
+    private final WebhookMetrics metrics = WebhookMetrics.get();
+    private final WebhookMetricsJmx jmx = new WebhookMetricsJmx(metrics);
 
     // https://developer.atlassian.com/server/framework/atlassian-sdk/store-and-retrieve-plugin-data/
     @ComponentImport
@@ -42,50 +60,208 @@ public class OnfEventPosterImpl implements OnfEventPoster {
 
     private OnfEventPosterImpl() {
         // TODO perhaps use Crowd configuration for target url and secret instead
-        this(System.getenv("ONF_WEBHOOK_URL"), System.getenv("ONF_WEBHOOK_SECRET"));
+        this(PosterSettings.fromEnv());
     }
 
-    private OnfEventPosterImpl(String targetUrl, String webhookSecret) {
+    /**
+     * A poster configured from the given settings rather than the environment, e.g. for benchmarks.
+     */
+    public OnfEventPosterImpl(PosterSettings settings) {
         pluginSettingsFactory = null;
 
-        this.targetUrl = isNullOrEmpty(targetUrl) ? DEFAULT_TARGET_URL : targetUrl;
-        this.webhookSecret = isNullOrEmpty(webhookSecret) ? null : webhookSecret;
-        if (webhookSecret == null) {
-            logger.warn("No webhook secret is set. Webhooks will be unsigned.");
+        // ONF_WEBHOOK_SUBSCRIBERS=cla,teams reads ONF_WEBHOOK_CLA_URL, ONF_WEBHOOK_CLA_SECRET, ...
+        List<String> names = settings.getList("ONF_WEBHOOK_SUBSCRIBERS");
+        ImmutableList.Builder<Subscriber> builder = ImmutableList.builder();
+        if (names.isEmpty()) {
+            builder.add(new Subscriber(DEFAULT_SUBSCRIBER,
+                                       settings.getString("ONF_WEBHOOK_URL", DEFAULT_TARGET_URL),
+                                       settings.getString("ONF_WEBHOOK_SECRET", null),
+                                       SubscriptionFilter.fromSettings(settings),
+                                       settings, settings.getDataDir()));
+        }
+        for (String name : names) {
+            String prefix = PosterSettings.subscriberPrefix(name);
+            String targetUrl = settings.getString(prefix + "URL", null);
+            if (targetUrl == null) {
+                logger.error("No {}URL is set; ignoring ONF Webhook subscriber {}", prefix, name);
+                continue;
+            }
+            PosterSettings subscriberSettings = settings.forSubscriber(name);
+            builder.add(new Subscriber(name, targetUrl,
+                                       subscriberSettings.getString("ONF_WEBHOOK_SECRET", null),
+                                       SubscriptionFilter.fromSettings(subscriberSettings),
+                                       subscriberSettings, new File(settings.getDataDir(), name)));
         }
+        subscribers = builder.build();
+        subscribers.forEach(Subscriber::replayOutbox);
+        for (EventType type : EventType.values()) {
+            if (subscribers.stream().anyMatch(subscriber -> subscriber.needsGroups(type))) {
+                groupEventTypes.add(type);
+            }
+        }
+
+        metrics.gauge("queued", this::getQueueDepth);
+        metrics.gauge("retrying", this::getPendingRetryCount);
+        metrics.gauge("undelivered", this::getUndeliveredEventCount);
+        metrics.gauge("dropped", this::getDroppedEventCount);
+        metrics.gauge("coalesced", this::getCoalescedEventCount);
+        jmx.register();
     }
 
     public void send(WebhookEvent event) {
-        Gson gson = new Gson();
-        String payload = gson.toJson(event);
-
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) new URL(targetUrl).openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Content-Length", Integer.toString(payload.getBytes().length));
-            if (!isNullOrEmpty(webhookSecret)) {
-                // Add HTTP property with payload signature to prevent webhook spoofing
-                connection.setRequestProperty("Crowd-Webhook-Signature", HmacUtils.hmacSha256Hex("key", payload));
+        List<Subscriber> targets = Lists.newArrayListWithCapacity(subscribers.size());
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.accepts(event)) {
+                targets.add(subscriber);
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        // Persisted for every target, then queued once everything is persisted
+        PendingEvent[] pending = persist(targets, event, System.currentTimeMillis());
+        for (int i = 0; i < targets.size(); i++) {
+            targets.get(i).submit(pending[i]);
+        }
+    }
+
+    @Override
+    public void sendAll(List<WebhookEvent> events) {
+        long now = System.currentTimeMillis();
+        List<List<PendingEvent>> batches = Lists.newArrayListWithCapacity(subscribers.size());
+        subscribers.forEach(subscriber -> batches.add(Lists.newArrayList()));
+        List<Subscriber> targets = Lists.newArrayListWithCapacity(subscribers.size());
+        for (WebhookEvent event : events) {
+            targets.clear();
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.accepts(event)) {
+                    targets.add(subscriber);
+                }
             }
-            connection.setUseCaches(false);
-            connection.setDoOutput(true);
-            DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-            wr.writeBytes(payload);
-            wr.close();
-            int responseCode = connection.getResponseCode();
-            // TODO consider dropping this log message to debug
-            logger.info("ONF Webhook event to {} (response {}): {}", targetUrl, responseCode, payload);
-        } catch (ConnectException e) {
-            logger.warn("ONF Webhook event failed to post to {} - {}: {}",
-                        targetUrl, e.getMessage(), payload);
-        } catch (Exception e) {
-            logger.error("ONF Webhook exception", e);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+            if (targets.isEmpty()) {
+                continue;
             }
+            PendingEvent[] pending = persist(targets, event, now);
+            for (int i = 0; i < targets.size(); i++) {
+                batches.get(subscribers.indexOf(targets.get(i))).add(pending[i]);
+            }
+        }
+        for (int i = 0; i < subscribers.size(); i++) {
+            if (!batches.get(i).isEmpty()) {
+                subscribers.get(i).submitAll(batches.get(i));
+            }
+        }
+    }
+
+    @Override
+    public boolean wantsGroups(EventType type) {
+        return groupEventTypes.contains(type);
+    }
+
+    @Override
+    public void onUndelivered(Consumer<WebhookEvent> handler) {
+        subscribers.forEach(subscriber -> subscriber.onUndelivered(handler));
+    }
+
+    /**
+     * Writes the event to each target's outbox, full to targets that want the user's groups
+     * and without them to the rest. Each form is serialized at most once, and only for outboxes.
+     */
+    private PendingEvent[] persist(List<Subscriber> targets, WebhookEvent event, long now) {
+        PendingEvent[] pending = new PendingEvent[targets.size()];
+        for (boolean full : new boolean[]{true, false}) {
+            WebhookEvent form = null;
+            PayloadBuffer payload = null;
+            try {
+                for (int i = 0; i < targets.size(); i++) {
+                    Subscriber target = targets.get(i);
+                    if (target.wantsGroups(event.type) != full) {
+                        continue;
+                    }
+                    if (form == null) {
+                        form = full ? event : withoutGroups(event);
+                    }
+                    if (payload == null && target.isPersistent()) {
+                        long start = System.nanoTime();
+                        payload = buffers.acquire();
+                        jsonWriter.write(form, payload);
+                        metrics.time(WebhookMetrics.Timer.SERIALIZATION, start);
+                    }
+                    pending[i] = target.persist(form, payload, now);
+                }
+            } finally {
+                if (payload != null) {
+                    buffers.release(payload);
+                }
+            }
+        }
+        return pending;
+    }
+
+    private static WebhookEvent withoutGroups(WebhookEvent event) {
+        if (event.user == null || event.user.groups == null) {
+            return event;
+        }
+        WebhookEvent slim = new WebhookEvent();
+        slim.type = event.type;
+        slim.user = new WebhookUser(event.user.username, event.user.email, event.user.name,
+                                    event.user.githubId, null);
+        slim.groupName = event.groupName;
+        slim.oldGithubId = event.oldGithubId;
+        slim.newGithubId = event.newGithubId;
+        slim.oldEmail = event.oldEmail;
+        slim.newEmail = event.newEmail;
+        return slim;
+    }
+
+    public List<Subscriber> getSubscribers() {
+        return subscribers;
+    }
+
+    private long sum(ToLongFunction<Subscriber> metric) {
+        return subscribers.stream().mapToLong(metric).sum();
+    }
+
+    /**
+     * Number of events waiting to be posted, over all subscribers.
+     */
+    public long getQueueDepth() {
+        return sum(Subscriber::getQueueDepth);
+    }
+
+    public long getRetryCount() {
+        return sum(Subscriber::getRetryCount);
+    }
+
+    public long getPendingRetryCount() {
+        return sum(Subscriber::getPendingRetryCount);
+    }
+
+    public long getDeadLetterCount() {
+        return sum(Subscriber::getDeadLetterCount);
+    }
+
+    public long getDroppedEventCount() {
+        return sum(Subscriber::getDroppedEventCount);
+    }
+
+    public long getCoalescedEventCount() {
+        return sum(Subscriber::getCoalescedEventCount);
+    }
+
+    /**
+     * Number of persisted events that have not been delivered yet, over all subscribers.
+     */
+    public long getUndeliveredEventCount() {
+        return sum(Subscriber::getUndeliveredEventCount);
+    }
+
+    @PreDestroy
+    public void close() {
+        jmx.close();
+        for (String gauge : new String[]{"queued", "retrying", "undelivered", "dropped", "coalesced"}) {
+            metrics.removeGauge(gauge);
         }
+        subscribers.forEach(Subscriber::close);
     }
 }
@@ -0,0 +1,284 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Durable write-ahead log of webhook events that have not been delivered yet.
+ * <p>
+ * Events are appended to memory-mapped segment files as [length (int)][CRC32 (int)][payload]
+ * and identified by a sequence number that starts at 1. Acknowledged events advance a delivery
+ * cursor, which is fsynced in batches; segments that lie entirely behind the synced cursor are
+ * deleted. On restart every event after the cursor is replayed, so delivery is at-least-once.
+ * <p>
+ * Writes to a mapping survive a JVM crash as soon as append returns; segments are forced to
+ * disk on rollover and close.
+ */
+public class Outbox implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(Outbox.class);
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = Integer.BYTES * 2;
+    private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final File dir;
+    private final int segmentSize;
+    private final int syncEvery;
+    private final CRC32 crc = new CRC32();
+
+    private final NavigableMap<Long, Segment> segments = Maps.newTreeMap(); // by base sequence
+    private Segment active;
+    private long nextSeq;
+    private final long replayBound; // events before this were appended by an earlier run
+
+    private final FileChannel cursorChannel;
+    private final NavigableSet<Long> ackedAhead = Sets.newTreeSet(); // acked, but after the cursor
+    private long cursor; // every sequence <= cursor has been acknowledged
+    private long syncedCursor;
+    private int acksSinceSync = 0;
+    private long lastSyncNanos = System.nanoTime();
+
+    private static class Segment {
+        final File file;
+        final long baseSeq;
+        final MappedByteBuffer buffer; // position is the end of the last record
+        int count = 0;
+
+        Segment(File file, long baseSeq, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * @param dir         directory holding the segments and cursor
+     * @param segmentSize size of each segment file in bytes
+     * @param syncEvery   number of acknowledgements between cursor fsyncs
+     */
+    public Outbox(File dir, int segmentSize, int syncEvery) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create outbox directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncEvery = syncEvery;
+
+        cursorChannel = new RandomAccessFile(new File(dir, "cursor"), "rw").getChannel();
+        if (cursorChannel.size() >= Long.BYTES) {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            cursorChannel.read(buffer, 0);
+            buffer.flip();
+            cursor = buffer.getLong();
+        }
+        syncedCursor = cursor;
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        Arrays.sort(files);
+        for (File file : files) {
+            String base = file.getName().substring(SEGMENT_PREFIX.length(),
+                                                   file.getName().length() - SEGMENT_SUFFIX.length());
+            Segment segment = new Segment(file, Long.parseLong(base), map(file, file.length()));
+            scan(segment);
+            segments.put(segment.baseSeq, segment);
+        }
+        if (segments.isEmpty()) {
+            nextSeq = cursor + 1;
+            active = createSegment(nextSeq, segmentSize);
+        } else {
+            active = segments.lastEntry().getValue();
+            nextSeq = Math.max(active.baseSeq + active.count, cursor + 1);
+            if (nextSeq != active.baseSeq + active.count) {
+                active = createSegment(nextSeq, segmentSize);
+            }
+        }
+        replayBound = nextSeq;
+        compact();
+        logger.info("ONF Webhook outbox opened in {} with {} pending events", dir, pending());
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private Segment createSegment(long baseSeq, int size) throws IOException {
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, baseSeq, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, baseSeq, map(file, size));
+        segments.put(baseSeq, segment);
+        return segment;
+    }
+
+    /**
+     * Counts the valid records in a segment and positions its buffer after the last one.
+     * A zero length marks the end of the data; a checksum mismatch marks a torn write.
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining() || checksum(buffer, length) != checksum) {
+                buffer.position(start);
+                break;
+            }
+            buffer.position(buffer.position() + length);
+            segment.count++;
+        }
+    }
+
+    private int checksum(ByteBuffer buffer, int length) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.limit(payload.position() + length);
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Appends an event payload and returns its sequence number.
+     */
+    public long append(byte[] payload) throws IOException {
+        return append(payload, payload.length);
+    }
+
+    /**
+     * Appends the first length bytes of payload and returns the event's sequence number.
+     */
+    public synchronized long append(byte[] payload, int length) throws IOException {
+        int recordSize = HEADER_BYTES + length;
+        if (active.buffer.remaining() < recordSize) {
+            active.buffer.force();
+            active = createSegment(nextSeq, Math.max(segmentSize, recordSize));
+        }
+        crc.reset();
+        crc.update(payload, 0, length);
+        ByteBuffer buffer = active.buffer;
+        int start = buffer.position();
+        // Write the payload before the length so a reader never sees a length without its data
+        buffer.position(start + HEADER_BYTES);
+        buffer.put(payload, 0, length);
+        buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+        buffer.putInt(start, length);
+        active.count++;
+        return nextSeq++;
+    }
+
+    /**
+     * Marks an event as delivered (or deliberately discarded).
+     */
+    public synchronized void ack(long seq) {
+        if (seq <= cursor) {
+            return;
+        }
+        ackedAhead.add(seq);
+        while (ackedAhead.remove(cursor + 1)) {
+            cursor++;
+        }
+        if (++acksSinceSync >= syncEvery || System.nanoTime() - lastSyncNanos > SYNC_INTERVAL_NANOS) {
+            sync();
+        }
+    }
+
+    /**
+     * Passes every event left unacknowledged by an earlier run to the consumer, oldest first.
+     * Events appended since the outbox was opened are not replayed. Segments are read one at
+     * a time, and the consumer is called without holding the outbox, so it may append and
+     * acknowledge.
+     */
+    public void replay(BiConsumer<Long, byte[]> consumer) {
+        long from = 0;
+        while (true) {
+            Map<Long, byte[]> events = Maps.newLinkedHashMap();
+            synchronized (this) {
+                Map.Entry<Long, Segment> entry = segments.ceilingEntry(from);
+                if (entry == null || entry.getKey() >= replayBound) {
+                    return;
+                }
+                Segment segment = entry.getValue();
+                from = segment.baseSeq + 1;
+                ByteBuffer buffer = segment.buffer.duplicate();
+                buffer.flip();
+                for (long seq = segment.baseSeq; seq < replayBound && buffer.remaining() >= HEADER_BYTES; seq++) {
+                    byte[] payload = new byte[buffer.getInt()];
+                    buffer.getInt(); // checksum was verified by scan or written by this process
+                    buffer.get(payload);
+                    if (seq > cursor && !ackedAhead.contains(seq)) {
+                        events.put(seq, payload);
+                    }
+                }
+            }
+            events.forEach(consumer);
+        }
+    }
+
+    /**
+     * Number of appended events that have not been acknowledged.
+     */
+    public synchronized long pending() {
+        return nextSeq - 1 - cursor - ackedAhead.size();
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    private void sync() {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            buffer.putLong(0, cursor);
+            cursorChannel.write(buffer, 0);
+            cursorChannel.force(false);
+            syncedCursor = cursor;
+        } catch (IOException e) {
+            logger.error("Unable to persist ONF Webhook outbox cursor", e);
+        }
+        acksSinceSync = 0;
+        lastSyncNanos = System.nanoTime();
+        compact();
+    }
+
+    /**
+     * Deletes segments whose events have all been acknowledged and synced.
+     * The mappings of deleted files are released when they are garbage collected.
+     */
+    private void compact() {
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            long lastSeq = segments.higherKey(oldest.getKey()) - 1;
+            if (lastSeq > syncedCursor) {
+                break;
+            }
+            segments.remove(oldest.getKey());
+            if (!oldest.getValue().file.delete()) {
+                logger.warn("Unable to delete ONF Webhook outbox segment {}", oldest.getValue().file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        active.buffer.force();
+        cursorChannel.close();
+    }
+}
@@ -0,0 +1,138 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Queues;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.zip.Deflater;
+
+/**
+ * Growable byte buffer that payloads are encoded into.
+ * <p>
+ * Buffers are borrowed from a {@link Pool} and given back after each payload, so steady-state
+ * encoding does not allocate. Pools belong to the poster and its subscribers rather than to
+ * threads, since many payloads are encoded on Crowd's threads, which outlive the plugin.
+ */
+public class PayloadBuffer {
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int MIN_DEFLATE_SPACE = 512;
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+
+    /**
+     * Buffers that are free for reuse; holds as many as were ever in use at once.
+     */
+    public static class Pool {
+        private final Queue<PayloadBuffer> free = Queues.newConcurrentLinkedQueue();
+
+        /**
+         * Returns an empty buffer, which the caller must {@link #release} once done with it.
+         */
+        public PayloadBuffer acquire() {
+            PayloadBuffer buffer = free.poll();
+            if (buffer == null) {
+                return new PayloadBuffer();
+            }
+            buffer.reset();
+            return buffer;
+        }
+
+        public void release(PayloadBuffer buffer) {
+            free.add(buffer);
+        }
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * The backing array; only the first {@link #length()} bytes are valid.
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+    public void write(int b) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) b;
+    }
+
+    public void write(byte[] b, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(b, offset, bytes, length, count);
+        length += count;
+    }
+
+    /**
+     * Appends everything the deflater has left to output; the deflater must have been finished.
+     */
+    void writeDeflated(Deflater deflater) {
+        while (!deflater.finished()) {
+            ensureCapacity(MIN_DEFLATE_SPACE);
+            length += deflater.deflate(bytes, length, bytes.length - length);
+        }
+    }
+
+    /**
+     * Writes a string that is known to be ASCII.
+     */
+    public void writeAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            bytes[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Writes one UTF-16 code unit (or a surrogate pair starting at index) as UTF-8.
+     *
+     * @return the number of chars consumed
+     */
+    int writeUtf8(String s, int index) {
+        char c = s.charAt(index);
+        ensureCapacity(4);
+        if (c < 0x80) {
+            bytes[length++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[length++] = (byte) (0xc0 | (c >> 6));
+            bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && index + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, s.charAt(index + 1));
+            bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            return 2;
+        } else if (Character.isSurrogate(c)) {
+            bytes[length++] = '?'; // unpaired surrogate, as String.getBytes(UTF_8) does
+        } else {
+            bytes[length++] = (byte) (0xe0 | (c >> 12));
+            bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return 1;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,17 @@
+package org.opennetworking.crowd.poster;
+
+import org.opennetworking.crowd.api.WebhookEvent;
+
+import java.util.List;
+
+/**
+ * Encodes webhook events into a {@link PayloadBuffer}.
+ */
+public interface PayloadWriter {
+    void write(WebhookEvent event, PayloadBuffer out);
+
+    /**
+     * Writes the events as one batch payload.
+     */
+    void write(List<WebhookEvent> events, PayloadBuffer out);
+}
@@ -0,0 +1,47 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.base.MoreObjects;
+import org.opennetworking.crowd.api.WebhookEvent;
+
+/**
+ * A webhook event waiting in the delivery queue.
+ */
+public class PendingEvent {
+    public static final long NO_SEQUENCE = -1;
+
+    public final WebhookEvent event;
+    public final long seq; // outbox sequence number, or NO_SEQUENCE
+    public final long enqueuedAt; // epoch millis
+    public final int attempts; // failed delivery attempts so far
+    public final int lastResponseCode; // response to the last failed attempt; -1 if none
+
+    public PendingEvent(WebhookEvent event, long seq, long enqueuedAt) {
+        this(event, seq, enqueuedAt, 0, -1);
+    }
+
+    public PendingEvent(WebhookEvent event, long seq, long enqueuedAt, int attempts, int lastResponseCode) {
+        this.event = event;
+        this.seq = seq;
+        this.enqueuedAt = enqueuedAt;
+        this.attempts = attempts;
+        this.lastResponseCode = lastResponseCode;
+    }
+
+    /**
+     * The same event after one more failed attempt.
+     */
+    public PendingEvent failedAttempt(int responseCode) {
+        return new PendingEvent(event, seq, enqueuedAt, attempts + 1, responseCode);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("event", event)
+                .add("seq", seq)
+                .add("enqueuedAt", enqueuedAt)
+                .add("attempts", attempts)
+                .add("lastResponseCode", lastResponseCode)
+                .toString();
+    }
+}
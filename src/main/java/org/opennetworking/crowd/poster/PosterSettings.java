@@ -0,0 +1,111 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * Typed access to the poster configuration.
+ * <p>
+ * Settings are read from the environment (e.g. ONF_WEBHOOK_WORKERS), the same
+ * place ONF_WEBHOOK_URL and ONF_WEBHOOK_SECRET come from. Missing or malformed
+ * values fall back to the supplied default.
+ */
+public class PosterSettings {
+    private static final Logger logger = LoggerFactory.getLogger(PosterSettings.class);
+
+    private static final String PREFIX = "ONF_WEBHOOK_";
+
+    private final Function<String, String> source;
+
+    public PosterSettings(Function<String, String> source) {
+        this.source = source;
+    }
+
+    public static PosterSettings fromEnv() {
+        return new PosterSettings(System::getenv);
+    }
+
+    /**
+     * Settings for a named subscriber: ONF_WEBHOOK_CLA_WORKERS, for subscriber "cla",
+     * overrides ONF_WEBHOOK_WORKERS.
+     */
+    public PosterSettings forSubscriber(String name) {
+        String prefix = subscriberPrefix(name);
+        return new PosterSettings(key -> {
+            String value = key.startsWith(PREFIX) ? source.apply(prefix + key.substring(PREFIX.length())) : null;
+            return isNullOrEmpty(value) ? source.apply(key) : value;
+        });
+    }
+
+    /**
+     * Prefix of the named subscriber's own settings, e.g. ONF_WEBHOOK_CLA_.
+     */
+    public static String subscriberPrefix(String name) {
+        return PREFIX + name.toUpperCase(Locale.ENGLISH).replace('-', '_') + "_";
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = source.apply(key);
+        return isNullOrEmpty(value) ? defaultValue : value.trim();
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            logger.warn("Ignoring invalid value for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Comma separated values, trimmed; empty when the setting is missing.
+     */
+    public List<String> getList(String key) {
+        String value = getString(key, null);
+        return value == null ? ImmutableList.of() : Splitter.on(',').trimResults().omitEmptyStrings().splitToList(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        String value = getString(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(type, value.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Ignoring invalid value for {}: {}", key, value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Directory for the poster's on-disk state (spill files, etc.).
+     */
+    public File getDataDir() {
+        String defaultDir = new File(System.getProperty("java.io.tmpdir"), "onf-webhook").getPath();
+        return new File(getString("ONF_WEBHOOK_DATA_DIR", defaultDir));
+    }
+}
@@ -0,0 +1,145 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Redelivers events whose delivery failed, after a jittered exponential backoff.
+ * <p>
+ * Waiting events sit in a single timer thread's schedule rather than holding a delivery
+ * thread; the redeliver callback runs on that thread, so it must hand the event off without
+ * waiting. The n-th retry waits between half and all of baseDelayMillis * 2^(n-1), capped
+ * at maxDelayMillis. Events that have failed maxAttempts times are passed to the exhausted
+ * handler instead. Events still waiting on close stay in the outbox and are replayed on the
+ * next start.
+ */
+public class RetryScheduler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RetryScheduler.class);
+
+    /**
+     * What a delivery attempt's response means for the event.
+     */
+    public enum Outcome {
+        /** 2xx: the receiver has the event */
+        DELIVERED,
+        /** No response, 408, 429 or 5xx: try again later */
+        RETRY,
+        /** Any other response: the receiver will never accept the event */
+        REJECTED;
+
+        public static Outcome of(int responseCode) {
+            if (responseCode >= 200 && responseCode < 300) {
+                return DELIVERED;
+            }
+            if (responseCode < 0 || responseCode >= 500 ||
+                    responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode == 429) {
+                return RETRY;
+            }
+            return REJECTED;
+        }
+    }
+
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+    private final Consumer<PendingEvent> redeliver;
+    private final Consumer<PendingEvent> exhaustedHandler;
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    public RetryScheduler(long baseDelayMillis, long maxDelayMillis, int maxAttempts,
+                          Consumer<PendingEvent> redeliver, Consumer<PendingEvent> exhaustedHandler) {
+        this.baseDelayMillis = Math.max(baseDelayMillis, 1);
+        this.maxDelayMillis = Math.max(maxDelayMillis, this.baseDelayMillis);
+        this.maxAttempts = maxAttempts;
+        this.redeliver = redeliver;
+        this.exhaustedHandler = exhaustedHandler;
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("onf-webhook-retry-%d")
+                .setDaemon(true)
+                .build());
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Schedules another attempt for an event whose delivery just failed.
+     */
+    public void retry(PendingEvent failed, int responseCode) {
+        PendingEvent next = failed.failedAttempt(responseCode);
+        if (next.attempts >= maxAttempts) {
+            exhausted.increment();
+            logger.error("ONF Webhook event failed {} times; giving up on {}", next.attempts, next.event);
+            exhaustedHandler.accept(next);
+            return;
+        }
+        retries.increment();
+        schedule(next, backoffMillis(next.attempts));
+    }
+
+    /**
+     * Delivers the event again after delayMillis without counting an attempt, e.g. while the
+     * receiver's circuit is open.
+     */
+    public void hold(PendingEvent pending, long delayMillis) {
+        schedule(pending, delayMillis);
+    }
+
+    private long backoffMillis(int attempts) {
+        long delay = maxDelayMillis;
+        if (attempts < Long.numberOfLeadingZeros(baseDelayMillis)) { // no overflow
+            delay = Math.min(baseDelayMillis << (attempts - 1), maxDelayMillis);
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void schedule(PendingEvent pending, long delayMillis) {
+        try {
+            timer.schedule(() -> {
+                try {
+                    redeliver.accept(pending);
+                } catch (RuntimeException e) {
+                    logger.error("ONF Webhook retry failed for " + pending.event, e);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed; the event stays in the outbox
+        }
+    }
+
+    /**
+     * Number of events waiting for a retry.
+     */
+    public int getPendingCount() {
+        return timer.getQueue().size();
+    }
+
+    /**
+     * Number of retries scheduled since start.
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    @Override
+    public void close() {
+        int waiting = timer.shutdownNow().size();
+        if (waiting > 0) {
+            logger.warn("ONF Webhook retry scheduler closed with {} events waiting", waiting);
+        }
+    }
+}
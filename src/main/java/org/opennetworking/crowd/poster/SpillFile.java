@@ -0,0 +1,121 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Lists;
+import com.google.gson.Gson;
+import org.opennetworking.crowd.api.WebhookEvent;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Overflow storage for the delivery queue.
+ * <p>
+ * Records are appended as [enqueuedAt (long)][seq (long)][length (int)][UTF-8 JSON] and read
+ * back in FIFO order. The file is truncated once every record has been read.
+ * Records left over from a previous run are picked up when the file is reopened, except those
+ * with an outbox sequence number: the outbox replays them anyway.
+ */
+class SpillFile implements AutoCloseable {
+    private final Gson gson = new Gson();
+    private RandomAccessFile file;
+    private long readPosition = 0;
+    private int pending = 0;
+
+    SpillFile(File path) throws IOException {
+        File parent = path.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create spill directory " + parent);
+        }
+        file = new RandomAccessFile(path, "rw");
+        if (file.length() > 0) {
+            keepLeftovers(path);
+        }
+    }
+
+    /**
+     * Rewrites the records left behind by a previous run without those the outbox will
+     * replay, dropping a torn final record.
+     */
+    private void keepLeftovers(File path) throws IOException {
+        File tmp = new File(path.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            long position = 0;
+            try {
+                while (position < file.length()) {
+                    file.seek(position);
+                    long enqueuedAt = file.readLong();
+                    long seq = file.readLong();
+                    int length = file.readInt();
+                    long next = file.getFilePointer() + length;
+                    if (length < 0 || next > file.length()) {
+                        break;
+                    }
+                    if (seq == PendingEvent.NO_SEQUENCE) {
+                        byte[] payload = new byte[length];
+                        file.readFully(payload);
+                        out.writeLong(enqueuedAt);
+                        out.writeLong(seq);
+                        out.writeInt(length);
+                        out.write(payload);
+                        pending++;
+                    }
+                    position = next;
+                }
+            } catch (EOFException e) {
+                // torn final record
+            }
+        }
+        file.close();
+        Files.move(tmp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        file = new RandomAccessFile(path, "rw");
+    }
+
+    synchronized int size() {
+        return pending;
+    }
+
+    synchronized void append(PendingEvent pending) throws IOException {
+        byte[] payload = gson.toJson(pending.event).getBytes(StandardCharsets.UTF_8);
+        file.seek(file.length());
+        file.writeLong(pending.enqueuedAt);
+        file.writeLong(pending.seq);
+        file.writeInt(payload.length);
+        file.write(payload);
+        this.pending++;
+    }
+
+    /**
+     * Reads up to max records, oldest first.
+     */
+    synchronized List<PendingEvent> read(int max) throws IOException {
+        List<PendingEvent> events = Lists.newArrayList();
+        file.seek(readPosition);
+        while (events.size() < max && pending > 0) {
+            long enqueuedAt = file.readLong();
+            long seq = file.readLong();
+            byte[] payload = new byte[file.readInt()];
+            file.readFully(payload);
+            WebhookEvent event = gson.fromJson(new String(payload, StandardCharsets.UTF_8), WebhookEvent.class);
+            events.add(new PendingEvent(event, seq, enqueuedAt));
+            pending--;
+        }
+        readPosition = file.getFilePointer();
+        if (pending == 0) {
+            file.setLength(0);
+            readPosition = 0;
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,794 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Failure;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Timer;
+import org.opennetworking.crowd.poster.DeliveryQueue.OverflowPolicy;
+import org.opennetworking.crowd.poster.RetryScheduler.Outcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.stream.Collectors;
+
+/**
+ * One receiver of webhook events and its delivery pipeline.
+ * <p>
+ * Each subscriber has its own filter, outbox, coalescer, delivery queue, retry scheduler,
+ * circuit breaker and connections, so a slow or failing receiver does not hold up the others.
+ * <p>
+ * Posts complete asynchronously with the non-blocking transport, so a worker may have many
+ * requests in flight at once and their responses may be handled out of order, unless events
+ * are delivered in {@link DeliveryLanes}.
+ */
+public class Subscriber implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(Subscriber.class);
+    private final static int DEFAULT_WORKERS = 1;
+    private final static int DEFAULT_QUEUE_CAPACITY = 10000;
+    private final static int DEFAULT_OUTBOX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private final static int DEFAULT_OUTBOX_SYNC_EVERY = 100;
+    private final static int DEFAULT_BATCH_WINDOW_MILLIS = 200;
+    private final static int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+    private final static int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    private final static int DEFAULT_MAX_CONNECTIONS = 4;
+    private final static int DEFAULT_MAX_IN_FLIGHT = 1000;
+    private final static int DEFAULT_RETRY_MAX_ATTEMPTS = 8;
+    private final static int DEFAULT_RETRY_BASE_DELAY_MILLIS = 1000;
+    private final static int DEFAULT_RETRY_MAX_DELAY_MILLIS = 5 * 60 * 1000;
+    private final static int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    private final static int DEFAULT_CIRCUIT_OPEN_MILLIS = 30000;
+    private final static int NO_RESPONSE = -1;
+    private final static int CIRCUIT_HOLD_JITTER_MILLIS = 1000;
+    private final static int DEFAULT_COMPRESSION_MIN_BYTES = 1024;
+
+    /**
+     * How much of the user an event carries.
+     */
+    public enum PayloadMode {
+        FULL, // the user's fields and all their nested groups
+        SLIM, // the user's fields only; the event's own fields say what changed
+    }
+
+    public enum Compression {
+        NONE,
+        GZIP,
+    }
+
+    private final String name;
+    private final String targetUrl;
+    private final SubscriptionFilter filter;
+    private final PayloadMode payloadMode;
+    private final Set<EventType> groupEventTypes; // types that carry groups even when slim
+    private final Gson gson = new Gson(); // only used to read back persisted events
+    private final WebhookJsonWriter jsonWriter = new WebhookJsonWriter(); // outbox and dead letters
+    private final PayloadBuffer.Pool buffers = new PayloadBuffer.Pool();
+    private final WebhookSigner signer; // null when webhooks are unsigned
+    private final WebhookTransport transport;
+    private final RetryScheduler retryScheduler;
+    private final CircuitBreaker circuitBreaker;
+    private final LongAdder deadLettered = new LongAdder();
+    private volatile Consumer<WebhookEvent> undeliveredHandler = event -> { };
+    private final WebhookMetrics metrics = WebhookMetrics.get();
+    private Outbox outbox; // null when events are not persisted
+    private DeliveryQueue deliveryQueue; // null when delivering synchronously or in lanes
+    private DeliveryLanes lanes; // null unless each user's events are delivered in order
+    private EventCoalescer coalescer; // null when events are not coalesced
+    private DeadLetterStore deadLetters; // null when dead letters are only logged
+    private final ExecutorService redriveExecutor;
+    private final Object replayLock = new Object();
+    // Live events that arrive while the outbox is replayed; null once the replay is dispatched
+    private volatile List<List<PendingEvent>> heldForReplay; // guarded by replayLock
+    private final int batchSize;
+    private volatile boolean batchingEnabled;
+    private volatile WireFormat format;
+    private volatile GzipCompressor compressor; // null when bodies are sent uncompressed
+    private final int compressionMinBytes;
+
+    /**
+     * @param dataDir where the subscriber's outbox, spill file and dead letters are kept
+     */
+    public Subscriber(String name, String targetUrl, String webhookSecret, SubscriptionFilter filter,
+                      PosterSettings settings, File dataDir) {
+        this.name = name;
+        this.targetUrl = targetUrl;
+        this.filter = filter;
+        payloadMode = settings.getEnum("ONF_WEBHOOK_PAYLOAD", PayloadMode.class, PayloadMode.FULL);
+        groupEventTypes = SubscriptionFilter.eventTypes(settings.getList("ONF_WEBHOOK_GROUPS_EVENT_TYPES"));
+        if (webhookSecret == null) {
+            logger.warn("No webhook secret is set for {}. Webhooks will be unsigned.", name);
+        }
+        signer = webhookSecret != null ? new WebhookSigner(webhookSecret) : null;
+
+        transport = createTransport(settings);
+
+        retryScheduler = new RetryScheduler(
+                settings.getLong("ONF_WEBHOOK_RETRY_BASE_DELAY_MILLIS", DEFAULT_RETRY_BASE_DELAY_MILLIS),
+                settings.getLong("ONF_WEBHOOK_RETRY_MAX_DELAY_MILLIS", DEFAULT_RETRY_MAX_DELAY_MILLIS),
+                settings.getInt("ONF_WEBHOOK_RETRY_MAX_ATTEMPTS", DEFAULT_RETRY_MAX_ATTEMPTS),
+                this::redeliver, pending -> deadLetter(pending, pending.lastResponseCode, "retries exhausted"));
+        circuitBreaker = new CircuitBreaker(
+                targetUrl,
+                settings.getInt("ONF_WEBHOOK_CIRCUIT_FAILURE_THRESHOLD", DEFAULT_CIRCUIT_FAILURE_THRESHOLD),
+                settings.getLong("ONF_WEBHOOK_CIRCUIT_OPEN_MILLIS", DEFAULT_CIRCUIT_OPEN_MILLIS));
+
+        if (settings.getBoolean("ONF_WEBHOOK_OUTBOX", true)) {
+            try {
+                outbox = new Outbox(new File(dataDir, "outbox"),
+                                    settings.getInt("ONF_WEBHOOK_OUTBOX_SEGMENT_SIZE", DEFAULT_OUTBOX_SEGMENT_SIZE),
+                                    settings.getInt("ONF_WEBHOOK_OUTBOX_SYNC_EVERY", DEFAULT_OUTBOX_SYNC_EVERY));
+            } catch (IOException e) {
+                logger.error("Unable to open ONF Webhook outbox for " + name + "; events will not be persisted", e);
+            }
+        }
+
+        if (settings.getBoolean("ONF_WEBHOOK_DEAD_LETTERS", true)) {
+            try {
+                deadLetters = new DeadLetterStore(new File(dataDir, "dead-letters.log"));
+            } catch (IOException e) {
+                logger.error("Unable to open ONF Webhook dead letter store for " + name + "; dead letters will be logged", e);
+            }
+        }
+        redriveExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("onf-webhook-redrive-%d")
+                .setDaemon(true)
+                .build());
+
+        format = settings.getEnum("ONF_WEBHOOK_FORMAT", WireFormat.class, WireFormat.JSON);
+        if (settings.getEnum("ONF_WEBHOOK_COMPRESSION", Compression.class, Compression.NONE) == Compression.GZIP) {
+            compressor = new GzipCompressor(settings.getInt("ONF_WEBHOOK_COMPRESSION_LEVEL", Deflater.DEFAULT_COMPRESSION));
+        }
+        compressionMinBytes = settings.getInt("ONF_WEBHOOK_COMPRESSION_MIN_BYTES", DEFAULT_COMPRESSION_MIN_BYTES);
+
+        // ONF_WEBHOOK_BATCH_SIZE > 1 posts up to that many events per request
+        batchSize = Math.max(settings.getInt("ONF_WEBHOOK_BATCH_SIZE", 1), 1);
+        batchingEnabled = batchSize > 1;
+
+        // ONF_WEBHOOK_WORKERS=0 posts synchronously on the Crowd event thread
+        int workers = settings.getInt("ONF_WEBHOOK_WORKERS", DEFAULT_WORKERS);
+        // ONF_WEBHOOK_LANES > 0 delivers each user's events in order, users in parallel
+        int laneCount = settings.getInt("ONF_WEBHOOK_LANES", 0);
+        if (workers > 0 && laneCount > 0) {
+            int capacity = settings.getInt("ONF_WEBHOOK_QUEUE_CAPACITY", DEFAULT_QUEUE_CAPACITY);
+            lanes = new DeliveryLanes(laneCount, capacity / laneCount, workers, this::deliverInLane);
+        } else if (workers > 0) {
+            int capacity = settings.getInt("ONF_WEBHOOK_QUEUE_CAPACITY", DEFAULT_QUEUE_CAPACITY);
+            OverflowPolicy overflowPolicy = settings.getEnum("ONF_WEBHOOK_QUEUE_OVERFLOW",
+                                                             OverflowPolicy.class, OverflowPolicy.BLOCK);
+            File spillPath = new File(dataDir, "delivery-queue.spill");
+            long batchWindow = settings.getLong("ONF_WEBHOOK_BATCH_WINDOW_MILLIS", DEFAULT_BATCH_WINDOW_MILLIS);
+            try {
+                // Nothing is taken from the queue while the receiver's circuit is open
+                deliveryQueue = new DeliveryQueue(capacity, workers, batchSize, batchWindow, overflowPolicy,
+                                                  spillPath, this::deliver, this::dropped,
+                                                  circuitBreaker::isRefusing);
+            } catch (IOException e) {
+                logger.error("Unable to create ONF Webhook delivery queue for " + name + "; posting synchronously", e);
+            }
+        }
+
+        // ONF_WEBHOOK_COALESCE_WINDOW_MILLIS > 0 holds each user's events that long to collapse duplicates
+        long coalesceWindow = settings.getLong("ONF_WEBHOOK_COALESCE_WINDOW_MILLIS", 0);
+        if (coalesceWindow > 0) {
+            coalescer = new EventCoalescer(coalesceWindow, this::dispatch, this::acknowledge);
+        }
+    }
+
+    /**
+     * Sends the events that were not delivered before the last shutdown again, in the
+     * background, so starting up doesn't wait on the receiver. Events submitted meanwhile are
+     * held and go out after the replayed ones; call this before submitting anything.
+     */
+    void replayOutbox() {
+        if (outbox == null) {
+            return;
+        }
+        heldForReplay = Lists.newArrayList();
+        redriveExecutor.execute(() -> {
+            int[] replayed = {0};
+            try {
+                outbox.replay((seq, payload) -> {
+                    WebhookEvent event = gson.fromJson(new String(payload, StandardCharsets.UTF_8), WebhookEvent.class);
+                    enqueueAll(ImmutableList.of(new PendingEvent(event, seq, System.currentTimeMillis())));
+                    replayed[0]++;
+                });
+            } catch (RuntimeException e) {
+                logger.error("ONF Webhook replay to " + targetUrl + " failed; the rest is sent on the next start", e);
+            } finally {
+                releaseHeld();
+            }
+            if (replayed[0] > 0) {
+                logger.info("ONF Webhook replayed {} undelivered events to {}", replayed[0], targetUrl);
+            }
+        });
+    }
+
+    private void releaseHeld() {
+        while (true) {
+            List<List<PendingEvent>> held;
+            synchronized (replayLock) {
+                held = heldForReplay;
+                if (held.isEmpty()) {
+                    heldForReplay = null;
+                    return;
+                }
+                heldForReplay = Lists.newArrayList();
+            }
+            held.forEach(this::enqueueAll);
+        }
+    }
+
+    /**
+     * Holds the events until the replay has been dispatched, or returns false if it has been.
+     */
+    private boolean holdForReplay(List<PendingEvent> events) {
+        if (heldForReplay == null) {
+            return false;
+        }
+        synchronized (replayLock) {
+            if (heldForReplay == null) {
+                return false;
+            }
+            heldForReplay.add(events);
+            return true;
+        }
+    }
+
+    private WebhookTransport createTransport(PosterSettings settings) {
+        int connectTimeout = settings.getInt("ONF_WEBHOOK_CONNECT_TIMEOUT_MILLIS", DEFAULT_CONNECT_TIMEOUT_MILLIS);
+        int readTimeout = settings.getInt("ONF_WEBHOOK_READ_TIMEOUT_MILLIS", DEFAULT_READ_TIMEOUT_MILLIS);
+        if (settings.getEnum("ONF_WEBHOOK_TRANSPORT", WebhookTransport.Type.class,
+                             WebhookTransport.Type.BLOCKING) == WebhookTransport.Type.NIO) {
+            try {
+                return new NioTransport(connectTimeout, readTimeout,
+                                        settings.getInt("ONF_WEBHOOK_MAX_IN_FLIGHT", DEFAULT_MAX_IN_FLIGHT),
+                                        settings.getInt("ONF_WEBHOOK_SELECTOR_THREADS", 1));
+            } catch (IOException e) {
+                logger.error("Unable to start ONF Webhook non-blocking transport for " + name + "; using blocking connections", e);
+            }
+        }
+        return new HttpTransport(connectTimeout, readTimeout,
+                                 settings.getInt("ONF_WEBHOOK_MAX_CONNECTIONS", DEFAULT_MAX_CONNECTIONS));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTargetUrl() {
+        return targetUrl;
+    }
+
+    /**
+     * Returns whether the subscriber wants the event.
+     */
+    public boolean accepts(WebhookEvent event) {
+        return filter.accepts(event);
+    }
+
+    /**
+     * Whether events of this type are sent with the user's groups.
+     */
+    public boolean wantsGroups(EventType type) {
+        return payloadMode == PayloadMode.FULL || groupEventTypes.contains(type);
+    }
+
+    /**
+     * Whether the user's groups must be looked up for events of this type, either to send
+     * them or to filter on them.
+     */
+    public boolean needsGroups(EventType type) {
+        return filter.acceptsType(type) && (wantsGroups(type) || filter.needsGroups(type));
+    }
+
+    void onUndelivered(Consumer<WebhookEvent> handler) {
+        undeliveredHandler = handler;
+    }
+
+    /**
+     * Returns whether events are written to an outbox before delivery.
+     */
+    public boolean isPersistent() {
+        return outbox != null;
+    }
+
+    /**
+     * The format events are currently posted in; JSON once the receiver has refused another.
+     */
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Writes the event, serialized in payload, to the outbox.
+     *
+     * @param payload the event's JSON; only read when the subscriber is persistent
+     */
+    PendingEvent persist(WebhookEvent event, PayloadBuffer payload, long now) {
+        long seq = PendingEvent.NO_SEQUENCE;
+        if (outbox != null) {
+            try {
+                seq = outbox.append(payload.bytes(), payload.length());
+            } catch (IOException e) {
+                metrics.failure(Failure.OUTBOX);
+                logger.error("Unable to persist ONF Webhook event for " + name + ": " + event, e);
+            }
+        }
+        return new PendingEvent(event, seq, now);
+    }
+
+    void submit(PendingEvent pending) {
+        if (holdForReplay(ImmutableList.of(pending))) {
+            return;
+        }
+        if (coalescer != null) {
+            coalescer.offer(pending);
+        } else {
+            dispatch(pending);
+        }
+    }
+
+    /**
+     * Submits events that belong together. They are posted in requests of up to batchSize
+     * events, so only when batching is on; a receiver that was not configured for batches
+     * may well reject them rather than answer 415.
+     */
+    void submitAll(List<PendingEvent> batch) {
+        if (!holdForReplay(batch)) {
+            enqueueAll(batch);
+        }
+    }
+
+    private void enqueueAll(List<PendingEvent> batch) {
+        if (coalescer != null) {
+            batch.forEach(coalescer::offer);
+        } else if (lanes != null) {
+            batch.forEach(lanes::offer);
+        } else if (deliveryQueue != null) {
+            batch.forEach(deliveryQueue::offer);
+        } else {
+            Lists.partition(batch, batchSize).forEach(this::deliver);
+        }
+    }
+
+    private void dispatch(PendingEvent pending) {
+        if (lanes != null) {
+            lanes.offer(pending);
+        } else if (deliveryQueue != null) {
+            deliveryQueue.offer(pending);
+        } else {
+            deliver(ImmutableList.of(pending));
+        }
+    }
+
+    /**
+     * Sends a retried event again, from the retry timer: in lanes it is still at the head of its
+     * lane, and otherwise it goes ahead of the queue. Neither waits.
+     */
+    private void redeliver(PendingEvent pending) {
+        if (lanes != null) {
+            lanes.resend(pending);
+        } else if (deliveryQueue != null) {
+            deliveryQueue.requeue(pending);
+        } else {
+            deliver(ImmutableList.of(pending));
+        }
+    }
+
+    private void deliverInLane(PendingEvent pending) {
+        deliverEach(ImmutableList.of(pending));
+    }
+
+    private void deliver(List<PendingEvent> batch) {
+        if (batch.size() > 1 && batchingEnabled) {
+            if (!circuitBreaker.allowRequest()) {
+                batch.forEach(this::hold);
+                return;
+            }
+            List<WebhookEvent> events = batch.stream().map(p -> p.event).collect(Collectors.toList());
+            send(events).thenAccept(responseCode -> {
+                if (responseCode == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+                    circuitBreaker.recordSuccess();
+                    logger.warn("ONF Webhook receiver {} does not accept batches; posting events individually", targetUrl);
+                    batchingEnabled = false;
+                    deliverEach(batch);
+                } else {
+                    batch.forEach(pending -> handle(pending, responseCode));
+                }
+            }).exceptionally(this::logException);
+            return;
+        }
+        deliverEach(batch);
+    }
+
+    private void deliverEach(List<PendingEvent> batch) {
+        for (PendingEvent pending : batch) {
+            if (!circuitBreaker.allowRequest()) {
+                hold(pending);
+                continue;
+            }
+            send(ImmutableList.of(pending.event))
+                    .thenAccept(responseCode -> handle(pending, responseCode))
+                    .exceptionally(this::logException);
+        }
+    }
+
+    private Void logException(Throwable e) {
+        logger.error("ONF Webhook exception", e);
+        return null;
+    }
+
+    /**
+     * Encodes and posts one event, or a batch of several, in the subscriber's wire format,
+     * gzipped if compression is on and the body is large enough. A receiver that answers 415
+     * is sent uncompressed bodies from then on, and if it still answers 415, JSON.
+     */
+    private CompletableFuture<Integer> send(List<WebhookEvent> events) {
+        WireFormat format = this.format;
+        GzipCompressor compressor = this.compressor;
+        long start = System.nanoTime();
+        PayloadBuffer payload = buffers.acquire();
+        PayloadBuffer gzipped = null;
+        String contentType = events.size() > 1 ? format.batchContentType : format.contentType;
+        boolean compressed;
+        CompletableFuture<Integer> response;
+        try {
+            if (events.size() > 1) {
+                format.writer.write(events, payload);
+            } else {
+                format.writer.write(events.get(0), payload);
+            }
+            metrics.time(Timer.SERIALIZATION, start);
+            compressed = compressor != null && payload.length() >= compressionMinBytes;
+            if (compressed) {
+                start = System.nanoTime();
+                gzipped = buffers.acquire();
+                compressor.compress(payload, gzipped);
+                metrics.time(Timer.COMPRESSION, start);
+            }
+            response = post(contentType, compressed ? GzipCompressor.CONTENT_ENCODING : null,
+                            compressed ? gzipped : payload, events.size());
+        } finally {
+            buffers.release(payload);
+            if (gzipped != null) {
+                buffers.release(gzipped);
+            }
+        }
+        return response.thenCompose(responseCode -> {
+                    if (responseCode != HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+                        return CompletableFuture.completedFuture(responseCode);
+                    }
+                    if (compressed) {
+                        logger.warn("ONF Webhook receiver {} does not accept gzip bodies; posting them uncompressed", targetUrl);
+                        this.compressor = null;
+                        compressor.close();
+                    } else if (format != WireFormat.JSON) {
+                        logger.warn("ONF Webhook receiver {} does not accept {}; posting JSON", targetUrl, contentType);
+                        this.format = WireFormat.JSON;
+                    } else {
+                        return CompletableFuture.completedFuture(responseCode);
+                    }
+                    return send(events);
+                });
+    }
+
+    private void handle(PendingEvent pending, int responseCode) {
+        switch (Outcome.of(responseCode)) {
+            case DELIVERED:
+                circuitBreaker.recordSuccess();
+                metrics.delivered(pending.event.type);
+                finish(pending);
+                break;
+            case RETRY:
+                circuitBreaker.recordFailure();
+                retryScheduler.retry(pending, responseCode);
+                break;
+            case REJECTED:
+                circuitBreaker.recordSuccess(); // the receiver is up
+                deadLetter(pending, responseCode, "rejected with " + responseCode);
+                break;
+        }
+    }
+
+    /**
+     * Waits for the receiver's circuit to let requests through again. Queued events go back to
+     * the queue, which is paused until then; lanes hold only the event at their head.
+     */
+    private void hold(PendingEvent pending) {
+        metrics.failure(Failure.CIRCUIT_OPEN);
+        if (deliveryQueue != null) {
+            deliveryQueue.requeue(pending);
+            return;
+        }
+        retryScheduler.hold(pending, circuitBreaker.getMillisUntilRetry() +
+                ThreadLocalRandom.current().nextLong(CIRCUIT_HOLD_JITTER_MILLIS));
+    }
+
+    private void deadLetter(PendingEvent pending, int responseCode, String reason) {
+        deadLettered.increment();
+        metrics.deadLettered(pending.event.type);
+        if (deadLetters == null) {
+            logger.error("ONF Webhook event to {} {}; dropping {}", targetUrl, reason, pending.event);
+        } else {
+            PayloadBuffer payload = buffers.acquire();
+            try {
+                jsonWriter.write(pending.event, payload);
+                DeadLetter letter = deadLetters.add(
+                        pending.event.type, pending.event.user != null ? pending.event.user.username : null,
+                        payload.bytes(), payload.length(), responseCode, pending.attempts, reason);
+                logger.error("ONF Webhook event to {} {}; stored as dead letter {}", targetUrl, reason, letter.id);
+            } catch (IOException e) {
+                logger.error("Unable to store ONF Webhook dead letter; dropping " + pending.event, e);
+            } finally {
+                buffers.release(payload);
+            }
+        }
+        finish(pending);
+        undeliveredHandler.accept(pending.event);
+    }
+
+    /**
+     * Discarded by the delivery queue's overflow policy.
+     */
+    private void dropped(PendingEvent pending) {
+        acknowledge(pending);
+        undeliveredHandler.accept(pending.event);
+    }
+
+    /**
+     * Sends the matching dead letters again, at most eventsPerSecond, in the background.
+     * Each dead letter is put back in the outbox before it is removed from the store.
+     *
+     * @return the number of dead letters that will be redriven
+     */
+    public int redrive(DeadLetterQuery query, double eventsPerSecond) {
+        if (deadLetters == null) {
+            return 0;
+        }
+        List<DeadLetter> letters = deadLetters.find(query);
+        redriveExecutor.execute(() -> {
+            RateLimiter rateLimiter = RateLimiter.create(eventsPerSecond);
+            int redriven = 0;
+            for (DeadLetter letter : letters) {
+                rateLimiter.acquire();
+                try {
+                    byte[] payload = deadLetters.readPayload(letter.id);
+                    if (payload == null) {
+                        continue; // already redriven
+                    }
+                    long seq = outbox != null ? outbox.append(payload) : PendingEvent.NO_SEQUENCE;
+                    PendingEvent pending = new PendingEvent(
+                            gson.fromJson(new String(payload, StandardCharsets.UTF_8), WebhookEvent.class),
+                            seq, System.currentTimeMillis());
+                    if (!deadLetters.remove(letter.id)) {
+                        acknowledge(pending); // redriven concurrently
+                        continue;
+                    }
+                    dispatch(pending);
+                    redriven++;
+                } catch (IOException e) {
+                    logger.error("Unable to redrive ONF Webhook dead letter " + letter.id, e);
+                }
+            }
+            logger.info("ONF Webhook redrove {} dead letters to {}", redriven, targetUrl);
+        });
+        return letters.size();
+    }
+
+    /**
+     * The subscriber's dead letters, or null when they are not stored.
+     */
+    public DeadLetterStore getDeadLetters() {
+        return deadLetters;
+    }
+
+    /**
+     * Done with a delivered or dead-lettered event; its lane, if any, moves on.
+     */
+    private void finish(PendingEvent pending) {
+        acknowledge(pending);
+        if (lanes != null) {
+            lanes.next(pending);
+        }
+    }
+
+    private void acknowledge(PendingEvent pending) {
+        if (outbox != null && pending.seq != PendingEvent.NO_SEQUENCE) {
+            outbox.ack(pending.seq);
+        }
+    }
+
+    /**
+     * Number of events waiting to be posted (0 when posting synchronously).
+     */
+    public int getQueueDepth() {
+        if (lanes != null) {
+            return lanes.depth();
+        }
+        return deliveryQueue != null ? deliveryQueue.depth() : 0;
+    }
+
+    /**
+     * Mean time from send to the post attempt, in milliseconds.
+     */
+    public double getMeanDeliveryLatencyMillis() {
+        if (lanes != null) {
+            return lanes.meanLatencyMillis();
+        }
+        return deliveryQueue != null ? deliveryQueue.meanLatencyMillis() : 0;
+    }
+
+    public long getMaxDeliveryLatencyMillis() {
+        if (lanes != null) {
+            return lanes.maxLatencyMillis();
+        }
+        return deliveryQueue != null ? deliveryQueue.maxLatencyMillis() : 0;
+    }
+
+    /**
+     * Number of retries scheduled since start.
+     */
+    public long getRetryCount() {
+        return retryScheduler.getRetryCount();
+    }
+
+    /**
+     * Number of events waiting for a retry (or for the circuit to close).
+     */
+    public int getPendingRetryCount() {
+        return retryScheduler.getPendingCount();
+    }
+
+    /**
+     * Number of events given up on, either rejected by the receiver or out of retries.
+     */
+    public long getDeadLetterCount() {
+        return deadLettered.sum();
+    }
+
+    public CircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    public long getCircuitOpenCount() {
+        return circuitBreaker.getOpenCount();
+    }
+
+    public long getCircuitTimeInOpenMillis() {
+        return circuitBreaker.getTimeInOpenMillis();
+    }
+
+    public long getDroppedEventCount() {
+        return deliveryQueue != null ? deliveryQueue.droppedCount() : 0;
+    }
+
+    /**
+     * Number of events collapsed into others (or cancelled out) before delivery.
+     */
+    public long getCoalescedEventCount() {
+        return coalescer != null ? coalescer.getCoalescedCount() : 0;
+    }
+
+    /**
+     * Number of persisted events that have not been delivered yet.
+     */
+    public long getUndeliveredEventCount() {
+        return outbox != null ? outbox.pending() : 0;
+    }
+
+    @Override
+    public void close() {
+        if (coalescer != null) {
+            coalescer.close();
+        }
+        redriveExecutor.shutdownNow();
+        retryScheduler.close();
+        if (deliveryQueue != null) {
+            deliveryQueue.close();
+        }
+        if (lanes != null) {
+            lanes.close();
+        }
+        transport.close(); // requests still in flight stay in the outbox
+        GzipCompressor compressor = this.compressor;
+        if (compressor != null) {
+            compressor.close();
+        }
+        if (deadLetters != null) {
+            try {
+                deadLetters.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close ONF Webhook dead letter store for " + name, e);
+            }
+        }
+        if (outbox != null) {
+            try {
+                outbox.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close ONF Webhook outbox for " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Posts a payload of one or more events to the target URL. The payload may be reused once
+     * this returns.
+     *
+     * @return the HTTP response code, or NO_RESPONSE if the receiver could not be reached
+     */
+    private CompletableFuture<Integer> post(String contentType, String contentEncoding, PayloadBuffer payload,
+                                            int eventCount) {
+        Map<String, String> headers = Maps.newHashMap();
+        headers.put("Content-Type", contentType);
+        if (contentEncoding != null) {
+            headers.put("Content-Encoding", contentEncoding);
+        }
+        if (eventCount > 1) {
+            headers.put(OnfEventPosterImpl.BATCH_SIZE_HEADER, Integer.toString(eventCount));
+        }
+        if (signer != null) {
+            // Add HTTP property with payload signature to prevent webhook spoofing;
+            // it covers the body as sent, i.e. after compression
+            headers.put(OnfEventPosterImpl.SIGNATURE_HEADER, signer.sign(payload.bytes(), payload.length()));
+        }
+        String body = logger.isDebugEnabled() ? payload.toString() : null;
+        long start = System.nanoTime();
+        metrics.requestStarted();
+        CompletableFuture<Integer> response;
+        try {
+            response = transport.send(new URL(targetUrl), headers, payload.bytes(), payload.length());
+        } catch (IOException | RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+        return response.handle((responseCode, e) -> {
+            metrics.requestFinished();
+            metrics.time(Timer.HTTP_POST, start);
+            if (e instanceof CompletionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            if (e instanceof ConnectException || e instanceof SocketTimeoutException) {
+                metrics.failure(e instanceof ConnectException ? Failure.CONNECT : Failure.TIMEOUT);
+                logger.warn("ONF Webhook post of {} events to {} failed - {}", eventCount, targetUrl, e.getMessage());
+                return NO_RESPONSE;
+            } else if (e != null) {
+                metrics.failure(Failure.IO);
+                logger.error("ONF Webhook exception", e);
+                return NO_RESPONSE;
+            }
+            if (Outcome.of(responseCode) == Outcome.DELIVERED) {
+                logger.debug("ONF Webhook event to {} (response {}): {}", targetUrl, responseCode, body);
+            } else {
+                metrics.failure(responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR ?
+                                        Failure.HTTP_SERVER_ERROR : Failure.HTTP_CLIENT_ERROR);
+                logger.warn("ONF Webhook post of {} events to {} failed (response {})", eventCount, targetUrl, responseCode);
+                logger.debug("ONF Webhook payload to {}: {}", targetUrl, body);
+            }
+            return responseCode;
+        });
+    }
+}
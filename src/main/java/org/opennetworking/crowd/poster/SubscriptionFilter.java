@@ -0,0 +1,106 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides which events a subscriber receives, by event type and group name prefix.
+ * <p>
+ * An empty type or prefix list matches everything, but a configured type list in which no
+ * type is known matches nothing. Group prefixes are matched against the
+ * event's group for membership events and against the user's groups otherwise; events that
+ * carry neither (e.g. USER_DELETED) pass the prefix check.
+ */
+public class SubscriptionFilter {
+    private static final Logger logger = LoggerFactory.getLogger(SubscriptionFilter.class);
+
+    private final Set<EventType> types;
+    private final List<String> groupPrefixes;
+
+    public SubscriptionFilter(Collection<EventType> types, Collection<String> groupPrefixes) {
+        this(types.isEmpty() ? EnumSet.allOf(EventType.class) : EnumSet.copyOf(types),
+             ImmutableList.copyOf(groupPrefixes));
+    }
+
+    private SubscriptionFilter(Set<EventType> types, ImmutableList<String> groupPrefixes) {
+        this.types = types;
+        this.groupPrefixes = groupPrefixes;
+    }
+
+    /**
+     * Reads ONF_WEBHOOK_EVENT_TYPES and ONF_WEBHOOK_GROUP_PREFIXES (comma separated).
+     */
+    public static SubscriptionFilter fromSettings(PosterSettings settings) {
+        List<String> names = settings.getList("ONF_WEBHOOK_EVENT_TYPES");
+        List<String> groupPrefixes = settings.getList("ONF_WEBHOOK_GROUP_PREFIXES");
+        Set<EventType> types = eventTypes(names);
+        if (!names.isEmpty() && types.isEmpty()) {
+            logger.error("None of ONF_WEBHOOK_EVENT_TYPES {} is a known event type; no events will be sent", names);
+            return new SubscriptionFilter(EnumSet.noneOf(EventType.class), ImmutableList.copyOf(groupPrefixes));
+        }
+        return new SubscriptionFilter(types, groupPrefixes);
+    }
+
+    /**
+     * Parses event type names, ignoring (and logging) unknown ones.
+     */
+    static Set<EventType> eventTypes(List<String> names) {
+        Set<EventType> types = Sets.newHashSet();
+        for (String type : names) {
+            try {
+                types.add(EventType.valueOf(type.toUpperCase(Locale.ENGLISH)));
+            } catch (IllegalArgumentException e) {
+                logger.warn("Ignoring unknown ONF Webhook event type {}", type);
+            }
+        }
+        return types;
+    }
+
+    public boolean acceptsType(EventType type) {
+        return types.contains(type);
+    }
+
+    /**
+     * Whether deciding on an event of this type looks at the user's groups, i.e. there are
+     * group prefixes and the event has no group of its own.
+     */
+    public boolean needsGroups(EventType type) {
+        return types.contains(type) && !groupPrefixes.isEmpty() &&
+                type != EventType.USER_ADDED_GROUP && type != EventType.USER_DELETED_GROUP;
+    }
+
+    public boolean accepts(WebhookEvent event) {
+        if (!types.contains(event.type)) {
+            return false;
+        }
+        if (groupPrefixes.isEmpty()) {
+            return true;
+        }
+        if (event.groupName != null) {
+            return matches(event.groupName);
+        }
+        if (event.user == null || event.user.groups == null) {
+            return true; // nothing to match on
+        }
+        return event.user.groups.stream().anyMatch(this::matches);
+    }
+
+    private boolean matches(String groupName) {
+        for (String prefix : groupPrefixes) {
+            if (groupName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
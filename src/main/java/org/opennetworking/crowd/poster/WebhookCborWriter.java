@@ -0,0 +1,180 @@
+package org.opennetworking.crowd.poster;
+
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.opennetworking.crowd.api.WebhookUser;
+
+import java.util.List;
+
+/**
+ * Writes webhook events as CBOR (RFC 8949) straight into a {@link PayloadBuffer}.
+ * <p>
+ * Objects are maps keyed by fixed small integers rather than field names, null fields are
+ * omitted and the event type is a fixed integer, so each key costs one byte:
+ * <pre>
+ * event  0 type, 1 user, 2 groupName, 3 oldGithubId, 4 newGithubId, 5 oldEmail, 6 newEmail
+ * user   0 username, 1 email, 2 name, 3 groups (array of strings), 4 githubId
+ * type   0 USER_ADDED, 1 USER_ADDED_GITHUB, 2 USER_ADDED_GROUP, 3 USER_UPDATED_EMAIL,
+ *        4 USER_UPDATED_GITHUB, 5 USER_DELETED, 6 USER_DELETED_GITHUB, 7 USER_DELETED_GROUP
+ * </pre>
+ * A batch is an array of events. Ids are never reused; new fields and types get new ids.
+ * Lengths and integers use their shortest encoding, so the same event always encodes to the
+ * same bytes.
+ */
+public class WebhookCborWriter implements PayloadWriter {
+    private static final int UNSIGNED = 0;
+    private static final int TEXT = 3 << 5;
+    private static final int ARRAY = 4 << 5;
+    private static final int MAP = 5 << 5;
+
+    static final int EVENT_TYPE = 0;
+    static final int EVENT_USER = 1;
+    static final int EVENT_GROUP_NAME = 2;
+    static final int EVENT_OLD_GITHUB_ID = 3;
+    static final int EVENT_NEW_GITHUB_ID = 4;
+    static final int EVENT_OLD_EMAIL = 5;
+    static final int EVENT_NEW_EMAIL = 6;
+
+    static final int USER_USERNAME = 0;
+    static final int USER_EMAIL = 1;
+    static final int USER_NAME = 2;
+    static final int USER_GROUPS = 3;
+    static final int USER_GITHUB_ID = 4;
+
+    /**
+     * The fixed id of an event type; unlike the ordinal, it does not change if types are reordered.
+     */
+    public static int typeId(EventType type) {
+        switch (type) {
+            case USER_ADDED:
+                return 0;
+            case USER_ADDED_GITHUB:
+                return 1;
+            case USER_ADDED_GROUP:
+                return 2;
+            case USER_UPDATED_EMAIL:
+                return 3;
+            case USER_UPDATED_GITHUB:
+                return 4;
+            case USER_DELETED:
+                return 5;
+            case USER_DELETED_GITHUB:
+                return 6;
+            case USER_DELETED_GROUP:
+                return 7;
+            default:
+                throw new IllegalArgumentException("No CBOR id for event type " + type);
+        }
+    }
+
+    @Override
+    public void write(WebhookEvent event, PayloadBuffer out) {
+        writeHead(MAP, count(event.type) + count(event.user) + count(event.groupName) +
+                count(event.oldGithubId) + count(event.newGithubId) + count(event.oldEmail) +
+                count(event.newEmail), out);
+        if (event.type != null) {
+            writeHead(UNSIGNED, EVENT_TYPE, out);
+            writeHead(UNSIGNED, typeId(event.type), out);
+        }
+        if (event.user != null) {
+            writeHead(UNSIGNED, EVENT_USER, out);
+            write(event.user, out);
+        }
+        writeField(EVENT_GROUP_NAME, event.groupName, out);
+        writeField(EVENT_OLD_GITHUB_ID, event.oldGithubId, out);
+        writeField(EVENT_NEW_GITHUB_ID, event.newGithubId, out);
+        writeField(EVENT_OLD_EMAIL, event.oldEmail, out);
+        writeField(EVENT_NEW_EMAIL, event.newEmail, out);
+    }
+
+    /**
+     * Writes the events as a CBOR array.
+     */
+    @Override
+    public void write(List<WebhookEvent> events, PayloadBuffer out) {
+        writeHead(ARRAY, events.size(), out);
+        for (WebhookEvent event : events) {
+            write(event, out);
+        }
+    }
+
+    private void write(WebhookUser user, PayloadBuffer out) {
+        writeHead(MAP, count(user.username) + count(user.email) + count(user.name) + count(user.groups) +
+                count(user.githubId), out);
+        writeField(USER_USERNAME, user.username, out);
+        writeField(USER_EMAIL, user.email, out);
+        writeField(USER_NAME, user.name, out);
+        if (user.groups != null) {
+            writeHead(UNSIGNED, USER_GROUPS, out);
+            writeHead(ARRAY, user.groups.size(), out);
+            for (String group : user.groups) {
+                writeString(group, out);
+            }
+        }
+        writeField(USER_GITHUB_ID, user.githubId, out);
+    }
+
+    private static int count(Object value) {
+        return value != null ? 1 : 0;
+    }
+
+    private void writeField(int id, String value, PayloadBuffer out) {
+        if (value != null) {
+            writeHead(UNSIGNED, id, out);
+            writeString(value, out);
+        }
+    }
+
+    private void writeString(String value, PayloadBuffer out) {
+        writeHead(TEXT, utf8Length(value), out);
+        for (int i = 0; i < value.length(); ) {
+            i += out.writeUtf8(value, i);
+        }
+    }
+
+    /**
+     * The length of value in UTF-8, counted the way {@link PayloadBuffer#writeUtf8} encodes it.
+     */
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; // written as '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes a major type with its argument in the shortest form.
+     */
+    private static void writeHead(int majorType, int argument, PayloadBuffer out) {
+        if (argument < 24) {
+            out.write(majorType | argument);
+        } else if (argument < 0x100) {
+            out.write(majorType | 24);
+            out.write(argument);
+        } else if (argument < 0x10000) {
+            out.write(majorType | 25);
+            out.write(argument >> 8);
+            out.write(argument);
+        } else {
+            out.write(majorType | 26);
+            out.write(argument >> 24);
+            out.write(argument >> 16);
+            out.write(argument >> 8);
+            out.write(argument);
+        }
+    }
+}
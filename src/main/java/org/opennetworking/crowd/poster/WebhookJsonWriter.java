@@ -0,0 +1,154 @@
+package org.opennetworking.crowd.poster;
+
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookUser;
+
+import java.util.List;
+
+/**
+ * Writes webhook events as UTF-8 JSON straight into a {@link PayloadBuffer}.
+ * <p>
+ * The output is byte-for-byte what {@code new Gson().toJson(event)} produces (field order,
+ * null fields omitted, HTML-safe escaping) without building intermediate Strings.
+ */
+public class WebhookJsonWriter implements PayloadWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char LINE_SEPARATOR = 0x2028;
+    private static final char PARAGRAPH_SEPARATOR = 0x2029;
+
+    @Override
+    public void write(WebhookEvent event, PayloadBuffer out) {
+        out.write('{');
+        boolean first = true;
+        if (event.type != null) {
+            first = writeName("type", first, out);
+            writeString(event.type.name(), out);
+        }
+        if (event.user != null) {
+            first = writeName("user", first, out);
+            write(event.user, out);
+        }
+        first = writeField("groupName", event.groupName, first, out);
+        first = writeField("oldGithubId", event.oldGithubId, first, out);
+        first = writeField("newGithubId", event.newGithubId, first, out);
+        first = writeField("oldEmail", event.oldEmail, first, out);
+        writeField("newEmail", event.newEmail, first, out);
+        out.write('}');
+    }
+
+    /**
+     * Writes the events as a JSON array.
+     */
+    @Override
+    public void write(List<WebhookEvent> events, PayloadBuffer out) {
+        out.write('[');
+        for (int i = 0; i < events.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            write(events.get(i), out);
+        }
+        out.write(']');
+    }
+
+    private void write(WebhookUser user, PayloadBuffer out) {
+        out.write('{');
+        boolean first = writeField("username", user.username, true, out);
+        first = writeField("email", user.email, first, out);
+        first = writeField("name", user.name, first, out);
+        if (user.groups != null) {
+            first = writeName("groups", first, out);
+            out.write('[');
+            for (int i = 0; i < user.groups.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                writeString(user.groups.get(i), out);
+            }
+            out.write(']');
+        }
+        writeField("githubId", user.githubId, first, out);
+        out.write('}');
+    }
+
+    private boolean writeField(String name, String value, boolean first, PayloadBuffer out) {
+        if (value == null) {
+            return first;
+        }
+        writeName(name, first, out);
+        writeString(value, out);
+        return false;
+    }
+
+    private boolean writeName(String name, boolean first, PayloadBuffer out) {
+        if (!first) {
+            out.write(',');
+        }
+        out.write('"');
+        out.writeAscii(name);
+        out.write('"');
+        out.write(':');
+        return false;
+    }
+
+    private void writeString(String value, PayloadBuffer out) {
+        if (value == null) {
+            out.writeAscii("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); ) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.writeAscii("\\\"");
+                    break;
+                case '\\':
+                    out.writeAscii("\\\\");
+                    break;
+                case '\t':
+                    out.writeAscii("\\t");
+                    break;
+                case '\b':
+                    out.writeAscii("\\b");
+                    break;
+                case '\n':
+                    out.writeAscii("\\n");
+                    break;
+                case '\r':
+                    out.writeAscii("\\r");
+                    break;
+                case '\f':
+                    out.writeAscii("\\f");
+                    break;
+                case '<':
+                case '>':
+                case '&':
+                case '=':
+                case '\'':
+                case LINE_SEPARATOR:
+                case PARAGRAPH_SEPARATOR:
+                    writeUnicodeEscape(c, out);
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writeUnicodeEscape(c, out);
+                    } else {
+                        i += out.writeUtf8(value, i);
+                        continue;
+                    }
+            }
+            i++;
+        }
+        out.write('"');
+    }
+
+    private void writeUnicodeEscape(char c, PayloadBuffer out) {
+        out.write('\\');
+        out.write('u');
+        out.write(HEX[(c >> 12) & 0xf]);
+        out.write(HEX[(c >> 8) & 0xf]);
+        out.write(HEX[(c >> 4) & 0xf]);
+        out.write(HEX[c & 0xf]);
+    }
+}
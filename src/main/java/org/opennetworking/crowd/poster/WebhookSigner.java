@@ -0,0 +1,70 @@
+package org.opennetworking.crowd.poster;
+
+import com.google.common.collect.Queues;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+
+/**
+ * Computes the Crowd-Webhook-Signature header: the lowercase hex HMAC-SHA256 of the exact
+ * request body bytes, keyed with the webhook secret.
+ * <p>
+ * Initialised Macs are pooled by the signer, like {@link PayloadBuffer.Pool}, rather than kept
+ * per thread, so Crowd's threads do not hold on to them after the plugin is disabled.
+ */
+public class WebhookSigner {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SecretKeySpec key;
+    private final Queue<Hmac> free = Queues.newConcurrentLinkedQueue();
+
+    /**
+     * A Mac with the buffers for its digest.
+     */
+    private static class Hmac {
+        final Mac mac;
+        final byte[] digest;
+        final char[] hex;
+
+        Hmac(SecretKeySpec key) {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC-SHA256 is not available", e);
+            }
+            digest = new byte[mac.getMacLength()];
+            hex = new char[digest.length * 2];
+        }
+    }
+
+    public WebhookSigner(String secret) {
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        free.add(new Hmac(key)); // fails now rather than on the first payload
+    }
+
+    public String sign(byte[] payload, int length) {
+        Hmac hmac = free.poll();
+        if (hmac == null) {
+            hmac = new Hmac(key);
+        }
+        hmac.mac.update(payload, 0, length);
+        try {
+            hmac.mac.doFinal(hmac.digest, 0); // also resets the Mac for the next payload
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < hmac.digest.length; i++) {
+            hmac.hex[i * 2] = HEX[(hmac.digest[i] >> 4) & 0xf];
+            hmac.hex[i * 2 + 1] = HEX[hmac.digest[i] & 0xf];
+        }
+        String signature = new String(hmac.hex);
+        free.add(hmac);
+        return signature;
+    }
+}
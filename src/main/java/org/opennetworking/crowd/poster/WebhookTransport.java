@@ -0,0 +1,30 @@
+package org.opennetworking.crowd.poster;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends request bodies to receivers; chosen per subscriber with ONF_WEBHOOK_TRANSPORT.
+ */
+public interface WebhookTransport extends AutoCloseable {
+    enum Type {
+        BLOCKING, // HttpURLConnection, one thread per request in flight ({@link HttpTransport})
+        NIO, // non-blocking connections on a few selector threads ({@link NioTransport})
+    }
+
+    /**
+     * Posts the first length bytes of body to url. The body may be reused as soon as this
+     * returns. Callers may be held back here while the target has too many requests in flight.
+     *
+     * @return the HTTP response code, or an IOException (e.g. ConnectException or
+     * SocketTimeoutException) if there was no response
+     */
+    CompletableFuture<Integer> send(URL url, Map<String, String> headers, byte[] body, int length);
+
+    /**
+     * Stops sending; requests still in flight fail.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,21 @@
+package org.opennetworking.crowd.poster;
+
+/**
+ * How events are encoded on the wire, chosen per subscriber with ONF_WEBHOOK_FORMAT.
+ * <p>
+ * Only requests are affected; the outbox and dead letters always hold JSON.
+ */
+public enum WireFormat {
+    JSON(OnfEventPosterImpl.CONTENT_TYPE, OnfEventPosterImpl.BATCH_CONTENT_TYPE, new WebhookJsonWriter()),
+    CBOR("application/cbor", "application/vnd.onf.webhook-batch+cbor", new WebhookCborWriter());
+
+    public final String contentType;
+    public final String batchContentType;
+    final PayloadWriter writer;
+
+    WireFormat(String contentType, String batchContentType, PayloadWriter writer) {
+        this.contentType = contentType;
+        this.batchContentType = batchContentType;
+        this.writer = writer;
+    }
+}
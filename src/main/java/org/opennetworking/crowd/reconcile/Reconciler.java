@@ -0,0 +1,495 @@
+package org.opennetworking.crowd.reconcile;
+
+import com.atlassian.crowd.embedded.api.Directory;
+import com.atlassian.crowd.exception.DirectoryNotFoundException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.manager.directory.DirectoryManager;
+import com.atlassian.crowd.search.EntityDescriptor;
+import com.atlassian.crowd.search.builder.QueryBuilder;
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.opennetworking.crowd.api.OnfEventPoster;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.listener.MembershipPager;
+import org.opennetworking.crowd.listener.UserStateStore;
+import org.opennetworking.crowd.poster.PosterSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.base.Strings.nullToEmpty;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.*;
+
+/**
+ * Brings receivers back in line with Crowd after events were lost.
+ * <p>
+ * A run reads every user of each directory a page at a time, resolves their email, GitHub ID
+ * and nested groups, and compares them with what receivers were last sent, which is kept per
+ * directory in $ONF_WEBHOOK_DATA_DIR/reconcile/&lt;directory id&gt;.state. Only the differences
+ * are sent, as the usual events: USER_ADDED, USER_UPDATED_EMAIL, USER_ADDED_GITHUB,
+ * USER_UPDATED_GITHUB, USER_DELETED_GITHUB, USER_ADDED_GROUP, USER_DELETED_GROUP and
+ * USER_DELETED. The directory's users are sorted on disk and merged with the saved state in
+ * username order, so memory use does not grow with the directory, and user lookups are rate
+ * limited so a run does not saturate Crowd.
+ * <p>
+ * The saved state only records what runs sent, not live events. A user whose state differs from
+ * it is read again just before their events are sent, so a live change made while the directory
+ * was being read is not undone by a stale one. With ONF_WEBHOOK_STATE_STORE the listener's record
+ * of what receivers were last sent is checked as well: a change that was already sent live is not
+ * sent again, and what a run sends is recorded there. Without it, every live change since the
+ * previous run is sent again, and a live change made between that last read and the send can
+ * still be sent out of order with it.
+ * <p>
+ * The first run without a saved state only records one. A full run ignores the saved state and
+ * sends USER_ADDED for every user.
+ */
+@Named("onfReconciler")
+public class Reconciler implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(Reconciler.class);
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    private static final int DEFAULT_USERS_PER_SECOND = 100;
+    private static final int DEFAULT_RUN_SIZE = 20000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final OnfEventPoster onfEventPoster;
+    private final DirectoryManager directoryManager;
+    private final MembershipPager pager;
+    private final File stateDir;
+    private final RateLimiter rateLimiter;
+    private final int runSize;
+    private final List<String> directoryIds; // empty for all active directories
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile Reconciliation last;
+    private volatile UserStateStore stateStore; // null when only the saved state is compared
+
+    @Inject
+    public Reconciler(OnfEventPoster onfEventPoster, @ComponentImport DirectoryManager directoryManager) {
+        this(onfEventPoster, directoryManager, PosterSettings.fromEnv());
+    }
+
+    public Reconciler(OnfEventPoster onfEventPoster, DirectoryManager directoryManager, PosterSettings settings) {
+        this.onfEventPoster = onfEventPoster;
+        this.directoryManager = directoryManager;
+        this.pager = new MembershipPager(directoryManager, settings.getInt("ONF_WEBHOOK_PAGE_SIZE", DEFAULT_PAGE_SIZE));
+        this.stateDir = new File(settings.getDataDir(), "reconcile");
+        this.rateLimiter = RateLimiter.create(Math.max(
+                settings.getInt("ONF_WEBHOOK_RECONCILE_USERS_PER_SECOND", DEFAULT_USERS_PER_SECOND), 1));
+        this.runSize = settings.getInt("ONF_WEBHOOK_RECONCILE_RUN_SIZE", DEFAULT_RUN_SIZE);
+        this.directoryIds = settings.getList("ONF_WEBHOOK_RECONCILE_DIRECTORIES");
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("onf-webhook-reconcile-%d")
+                .setDaemon(true)
+                .build());
+        long intervalMinutes = settings.getLong("ONF_WEBHOOK_RECONCILE_INTERVAL_MINUTES", 0);
+        if (intervalMinutes > 0) {
+            executor.scheduleWithFixedDelay(() -> runIfIdle(false), intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * @param stateStore what the listener last sent receivers, or null
+     */
+    public void setStateStore(UserStateStore stateStore) {
+        this.stateStore = stateStore;
+    }
+
+    /**
+     * Starts a run in the background.
+     *
+     * @return false if a run is already in progress
+     */
+    public boolean start(boolean full) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    run(full);
+                } finally {
+                    running.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.set(false);
+            return false;
+        }
+        return true;
+    }
+
+    private void runIfIdle(boolean full) {
+        if (running.compareAndSet(false, true)) {
+            try {
+                run(full);
+            } finally {
+                running.set(false);
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * The last finished run, or null.
+     */
+    public Reconciliation getLast() {
+        return last;
+    }
+
+    /**
+     * Reconciles every directory on the calling thread.
+     */
+    @VisibleForTesting
+    public Reconciliation run(boolean full) {
+        Reconciliation result = new Reconciliation(full, System.currentTimeMillis());
+        logger.info("ONF Webhook reconciliation started{}", full ? " (full)" : "");
+        try {
+            for (long directoryId : getDirectoryIds()) {
+                if (closed) {
+                    result.error = "stopped";
+                    break;
+                }
+                reconcile(directoryId, full, result);
+                result.directories++;
+            }
+        } catch (IOException | DirectoryNotFoundException | OperationFailedException | NumberFormatException e) {
+            logger.error("ONF Webhook reconciliation failed", e);
+            result.error = e.toString();
+        }
+        result.finishedAt = System.currentTimeMillis();
+        logger.info("ONF Webhook reconciliation finished: {}", result);
+        last = result;
+        return result;
+    }
+
+    private List<Long> getDirectoryIds() {
+        if (!directoryIds.isEmpty()) {
+            return directoryIds.stream().map(Long::valueOf).collect(Collectors.toList());
+        }
+        return directoryManager.findAllDirectories().stream()
+                               .filter(Directory::isActive)
+                               .map(Directory::getId)
+                               .collect(Collectors.toList());
+    }
+
+    private void reconcile(long directoryId, boolean full, Reconciliation result)
+            throws IOException, DirectoryNotFoundException, OperationFailedException {
+        File stateFile = new File(stateDir, directoryId + ".state");
+        File workDir = new File(stateDir, directoryId + ".work");
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new IOException("Unable to create reconciliation directory " + workDir);
+        }
+        boolean baseline = !full && !stateFile.exists();
+        if (baseline) {
+            logger.info("No ONF Webhook state for directory {}; recording it without sending events", directoryId);
+        }
+
+        try (StateSorter sorter = new StateSorter(workDir, runSize)) {
+            readUsers(directoryId, sorter, result);
+            if (closed) {
+                result.error = "stopped";
+                return; // keep the previous state
+            }
+            File next = new File(workDir, "next.state");
+            try (StateSource current = sorter.sorted();
+                 StateSource previous = full || baseline ? () -> null : StateFile.open(stateFile);
+                 StateFile.Writer writer = new StateFile.Writer(next)) {
+                Changes changes = new Changes(directoryId, result, baseline);
+                merge(directoryId, current, previous, writer, changes);
+                changes.flush();
+                writer.finish();
+            }
+            Files.move(next.toPath(), stateFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Resolves every user in the directory, a page of names at a time.
+     */
+    private void readUsers(long directoryId, StateSorter sorter, Reconciliation result)
+            throws IOException, DirectoryNotFoundException, OperationFailedException {
+        int pageSize = pager.getPageSize();
+        List<String> page;
+        int start = 0;
+        do {
+            page = directoryManager.searchUsers(directoryId, QueryBuilder.queryFor(String.class, EntityDescriptor.user())
+                    .startingAt(start)
+                    .returningAtMost(pageSize));
+            for (String username : page) {
+                if (closed) {
+                    return;
+                }
+                WebhookUser user = loadUser(directoryId, username);
+                if (user != null) {
+                    sorter.add(UserState.of(user));
+                    result.users++;
+                }
+            }
+            start += page.size();
+        } while (page.size() == pageSize);
+    }
+
+    /**
+     * Walks the current and previous states together in key order, sending what changed and
+     * writing the new state.
+     */
+    private void merge(long directoryId, StateSource current, StateSource previous, StateFile.Writer writer,
+                       Changes changes) throws IOException {
+        UserState now = current.next();
+        UserState then = previous.next();
+        while (now != null || then != null) {
+            int order = now == null ? 1 : then == null ? -1 : now.key.compareTo(then.key);
+            if (order < 0) {
+                UserState fresh = changes.baseline ? now : recheck(directoryId, now);
+                if (fresh != null) {
+                    changes.added(fresh);
+                    writer.write(fresh);
+                }
+                now = current.next();
+            } else if (order > 0) {
+                // Paging through a changing directory can miss users, so check before deleting
+                UserState still = recheck(directoryId, then);
+                if (still == null) {
+                    changes.deleted(then);
+                } else {
+                    changes.updated(then, still);
+                    writer.write(still);
+                }
+                then = previous.next();
+            } else {
+                UserState fresh = then.hash == now.hash ? now : recheck(directoryId, now);
+                if (fresh == null) {
+                    changes.deleted(then);
+                } else {
+                    changes.updated(then, fresh);
+                    writer.write(fresh);
+                }
+                now = current.next();
+                then = previous.next();
+            }
+        }
+    }
+
+    /**
+     * Returns the user's current state, null if they are gone, or the given state if the
+     * directory could not be asked.
+     */
+    private UserState recheck(long directoryId, UserState previous) {
+        rateLimiter.acquire();
+        try {
+            directoryManager.findUserByName(directoryId, previous.username);
+        } catch (UserNotFoundException e) {
+            return null;
+        } catch (DirectoryNotFoundException | OperationFailedException e) {
+            logger.warn("Unable to check ONF Webhook user {}: {}", previous.username, e.toString());
+            return previous;
+        }
+        WebhookUser user = loadUser(directoryId, previous.username);
+        return user != null ? UserState.of(user) : previous;
+    }
+
+    private WebhookUser loadUser(long directoryId, String username) {
+        rateLimiter.acquire();
+        try {
+            WebhookUser user = new WebhookUser(directoryManager.findUserWithAttributesByName(directoryId, username));
+            user.groups = pager.getNestedGroupsOfUser(directoryId, username);
+            return user;
+        } catch (UserNotFoundException e) {
+            logger.debug("User deleted during reconciliation: {}", username);
+        } catch (DirectoryNotFoundException | OperationFailedException e) {
+            logger.warn("Unable to load ONF Webhook user {}: {}", username, e.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Turns state differences into events, sent a page at a time, leaving out what the state
+     * store says receivers were already sent.
+     */
+    private final class Changes {
+        private final long directoryId;
+        private final Reconciliation result;
+        private final boolean baseline; // record only
+        private final UserStateStore stateStore = Reconciler.this.stateStore;
+        private final List<WebhookEvent> events = Lists.newArrayList();
+
+        Changes(long directoryId, Reconciliation result, boolean baseline) {
+            this.directoryId = directoryId;
+            this.result = result;
+            this.baseline = baseline;
+        }
+
+        void added(UserState state) {
+            if (baseline || isSent(state)) {
+                return;
+            }
+            WebhookEvent event = new WebhookEvent();
+            event.type = USER_ADDED;
+            event.user = state.toUser();
+            add(event);
+            result.added++;
+            if (stateStore != null) {
+                stateStore.forget(directoryId, state.username); // a new user may reuse an old name
+            }
+            record(state.username, UserStateStore.EMAIL, state.email);
+            record(state.username, UserStateStore.GITHUB_ID, state.githubId);
+            state.groups.forEach(group -> recordMembership(state.username, group, true));
+        }
+
+        /**
+         * Whether receivers were already sent the user as they are now.
+         */
+        private boolean isSent(UserState state) {
+            return stateStore != null &&
+                    isSent(state.username, UserStateStore.EMAIL, state.email) &&
+                    isSent(state.username, UserStateStore.GITHUB_ID, state.githubId) &&
+                    state.groups.stream().allMatch(group -> isSentMembership(state.username, group, true));
+        }
+
+        private boolean isSent(String username, String field, String value) {
+            return stateStore != null && stateStore.isSame(directoryId, username, field, value);
+        }
+
+        private boolean isSentMembership(String username, String group, boolean member) {
+            return stateStore != null && stateStore.isSameMembership(directoryId, username, group, member);
+        }
+
+        private void record(String username, String field, String value) {
+            if (stateStore != null) {
+                stateStore.record(directoryId, username, field, value);
+            }
+        }
+
+        private void recordMembership(String username, String group, boolean member) {
+            if (stateStore != null) {
+                stateStore.recordMembership(directoryId, username, group, member);
+            }
+        }
+
+        void deleted(UserState state) {
+            WebhookEvent event = new WebhookEvent();
+            event.type = USER_DELETED;
+            event.user = WebhookUser.deleted(state.username);
+            event.oldEmail = state.email;
+            if (!isNullOrEmpty(state.githubId)) {
+                event.oldGithubId = state.githubId;
+            }
+            add(event);
+            result.deleted++;
+            if (stateStore != null) {
+                stateStore.forget(directoryId, state.username);
+            }
+        }
+
+        void updated(UserState then, UserState now) {
+            if (then.hash == now.hash) {
+                return;
+            }
+            WebhookUser user = now.toUser();
+            long before = result.events;
+            if (!Objects.equal(then.email, now.email) && !isSent(now.username, UserStateStore.EMAIL, now.email)) {
+                WebhookEvent event = event(USER_UPDATED_EMAIL, user);
+                event.oldEmail = then.email;
+                event.newEmail = now.email;
+                add(event);
+                record(now.username, UserStateStore.EMAIL, now.email);
+            }
+            if (!nullToEmpty(then.githubId).equals(nullToEmpty(now.githubId)) &&
+                    !isSent(now.username, UserStateStore.GITHUB_ID, now.githubId)) {
+                WebhookEvent event;
+                if (isNullOrEmpty(then.githubId)) {
+                    event = event(USER_ADDED_GITHUB, user);
+                } else if (isNullOrEmpty(now.githubId)) {
+                    event = event(USER_DELETED_GITHUB, user);
+                } else {
+                    event = event(USER_UPDATED_GITHUB, user);
+                }
+                event.oldGithubId = isNullOrEmpty(then.githubId) ? null : then.githubId;
+                event.newGithubId = isNullOrEmpty(now.githubId) ? null : now.githubId;
+                add(event);
+                record(now.username, UserStateStore.GITHUB_ID, now.githubId);
+            }
+            Set<String> thenGroups = Sets.newHashSet(then.groups);
+            Set<String> nowGroups = Sets.newHashSet(now.groups);
+            for (String group : now.groups) {
+                if (!thenGroups.contains(group) && !isSentMembership(now.username, group, true)) {
+                    add(groupEvent(USER_ADDED_GROUP, user, group));
+                    recordMembership(now.username, group, true);
+                }
+            }
+            for (String group : then.groups) {
+                if (!nowGroups.contains(group) && !isSentMembership(now.username, group, false)) {
+                    add(groupEvent(USER_DELETED_GROUP, user, group));
+                    recordMembership(now.username, group, false);
+                }
+            }
+            if (result.events > before) {
+                result.updated++;
+            }
+        }
+
+        private WebhookEvent event(WebhookEvent.EventType type, WebhookUser user) {
+            WebhookEvent event = new WebhookEvent();
+            event.type = type;
+            event.user = user;
+            return event;
+        }
+
+        private WebhookEvent groupEvent(WebhookEvent.EventType type, WebhookUser user, String group) {
+            WebhookEvent event = event(type, user);
+            event.groupName = group;
+            return event;
+        }
+
+        private void add(WebhookEvent event) {
+            events.add(event);
+            result.events++;
+            if (events.size() >= pager.getPageSize()) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (!events.isEmpty()) {
+                onfEventPoster.sendAll(Lists.newArrayList(events));
+                events.clear();
+            }
+        }
+    }
+
+    @PreDestroy
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        executor.shutdownNow();
+        executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
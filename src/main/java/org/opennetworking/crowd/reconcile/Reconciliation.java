@@ -0,0 +1,40 @@
+package org.opennetworking.crowd.reconcile;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * What a reconciliation run found and sent.
+ */
+public class Reconciliation {
+    public final boolean full;
+    public final long startedAt; // epoch millis
+    public long finishedAt; // epoch millis, 0 while running
+    public int directories;
+    public long users;
+    public long added;
+    public long updated;
+    public long deleted;
+    public long events;
+    public String error; // why the run stopped early, or null
+
+    Reconciliation(boolean full, long startedAt) {
+        this.full = full;
+        this.startedAt = startedAt;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("full", full)
+                .add("startedAt", startedAt)
+                .add("finishedAt", finishedAt)
+                .add("directories", directories)
+                .add("users", users)
+                .add("added", added)
+                .add("updated", updated)
+                .add("deleted", deleted)
+                .add("events", events)
+                .add("error", error)
+                .toString();
+    }
+}
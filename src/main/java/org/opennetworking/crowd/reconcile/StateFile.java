@@ -0,0 +1,90 @@
+package org.opennetworking.crowd.reconcile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A file of user states, read and written sequentially.
+ * <p>
+ * The file is [magic][1][state][1][state]...[0]; a file without the final 0 was not
+ * finished and fails to read.
+ */
+final class StateFile {
+    private static final int MAGIC = 0x4f4e4653; // "ONFS"
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private StateFile() {
+    }
+
+    static final class Writer implements Closeable {
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private long count;
+
+        Writer(File path) throws IOException {
+            file = new FileOutputStream(path);
+            out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+            out.writeInt(MAGIC);
+        }
+
+        void write(UserState state) throws IOException {
+            out.writeByte(1);
+            state.write(out);
+            count++;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * Marks the file complete and syncs it to disk.
+         */
+        void finish() throws IOException {
+            out.writeByte(0);
+            out.flush();
+            file.getFD().sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static StateSource open(File path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a user state file: " + path);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new StateSource() {
+            private boolean done;
+
+            @Override
+            public UserState next() throws IOException {
+                if (done || in.readByte() == 0) {
+                    done = true;
+                    return null;
+                }
+                return UserState.read(in);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+}
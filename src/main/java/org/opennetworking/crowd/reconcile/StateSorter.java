@@ -0,0 +1,147 @@
+package org.opennetworking.crowd.reconcile;
+
+import com.google.common.collect.Lists;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts user states by key in bounded memory.
+ * <p>
+ * States are buffered runSize at a time; each full buffer is sorted and written to a run file
+ * in dir, and the runs are merged as the result is read. When a key was added more than once,
+ * the first state added wins.
+ */
+final class StateSorter implements Closeable {
+    private static final Comparator<UserState> BY_KEY = Comparator.comparing(state -> state.key);
+
+    private final File dir;
+    private final int runSize;
+    private final List<UserState> buffer;
+    private final List<File> runs = Lists.newArrayList();
+    private final List<StateSource> open = Lists.newArrayList();
+
+    StateSorter(File dir, int runSize) {
+        this.dir = dir;
+        this.runSize = Math.max(runSize, 1);
+        this.buffer = Lists.newArrayListWithCapacity(Math.min(this.runSize, 10000));
+    }
+
+    void add(UserState state) throws IOException {
+        buffer.add(state);
+        if (buffer.size() >= runSize) {
+            writeRun();
+        }
+    }
+
+    int getRunCount() {
+        return runs.size();
+    }
+
+    private void writeRun() throws IOException {
+        buffer.sort(BY_KEY); // stable, so the first of equal keys stays first
+        File run = new File(dir, "run-" + runs.size());
+        runs.add(run);
+        try (StateFile.Writer writer = new StateFile.Writer(run)) {
+            for (UserState state : buffer) {
+                writer.write(state);
+            }
+            writer.finish();
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns everything added, sorted by key and without duplicate keys. Call once, after the
+     * last add.
+     */
+    StateSource sorted() throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort(BY_KEY);
+            Iterator<UserState> states = buffer.iterator();
+            return distinct(() -> states.hasNext() ? states.next() : null);
+        }
+        if (!buffer.isEmpty()) {
+            writeRun();
+        }
+        // Heads of each run, ties going to the earlier run
+        PriorityQueue<Head> heads = new PriorityQueue<>(runs.size());
+        for (int i = 0; i < runs.size(); i++) {
+            StateSource source = StateFile.open(runs.get(i));
+            open.add(source);
+            UserState first = source.next();
+            if (first != null) {
+                heads.add(new Head(i, first, source));
+            }
+        }
+        return distinct(() -> {
+            Head head = heads.poll();
+            if (head == null) {
+                return null;
+            }
+            UserState state = head.state;
+            head.state = head.source.next();
+            if (head.state != null) {
+                heads.add(head);
+            }
+            return state;
+        });
+    }
+
+    private static StateSource distinct(StateSource next) {
+        return new StateSource() {
+            private String lastKey;
+
+            @Override
+            public UserState next() throws IOException {
+                UserState state;
+                do {
+                    state = next.next();
+                } while (state != null && state.key.equals(lastKey));
+                if (state != null) {
+                    lastKey = state.key;
+                }
+                return state;
+            }
+        };
+    }
+
+    private static final class Head implements Comparable<Head> {
+        final int run;
+        final StateSource source;
+        UserState state;
+
+        Head(int run, UserState state, StateSource source) {
+            this.run = run;
+            this.state = state;
+            this.source = source;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            int byKey = state.key.compareTo(other.state.key);
+            return byKey != 0 ? byKey : Integer.compare(run, other.run);
+        }
+    }
+
+    /**
+     * Closes and deletes the run files.
+     */
+    @Override
+    public void close() throws IOException {
+        for (StateSource source : open) {
+            source.close();
+        }
+        for (File run : runs) {
+            if (run.exists() && !run.delete()) {
+                throw new IOException("Unable to delete " + run);
+            }
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,18 @@
+package org.opennetworking.crowd.reconcile;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A stream of user states in key order.
+ */
+interface StateSource extends Closeable {
+    /**
+     * Returns the next state, or null at the end.
+     */
+    UserState next() throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
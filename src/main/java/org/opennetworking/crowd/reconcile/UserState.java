@@ -0,0 +1,101 @@
+package org.opennetworking.crowd.reconcile;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.opennetworking.crowd.api.WebhookUser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What receivers were last told about a user: the fields of a {@link WebhookUser}, with the
+ * groups sorted, and a 64-bit hash of them for cheap comparison.
+ */
+final class UserState {
+    final String key; // lower case username; states are sorted by it
+    final String username;
+    final String email;
+    final String name;
+    final String githubId;
+    final List<String> groups; // sorted
+    final long hash;
+
+    private UserState(String username, String email, String name, String githubId, List<String> groups) {
+        this.key = username.toLowerCase(Locale.ENGLISH);
+        this.username = username;
+        this.email = email;
+        this.name = name;
+        this.githubId = githubId;
+        this.groups = groups;
+        this.hash = hash(username, email, name, githubId, groups);
+    }
+
+    static UserState of(WebhookUser user) {
+        return new UserState(user.username, user.email, user.name, user.githubId,
+                             Ordering.natural().immutableSortedCopy(user.groups));
+    }
+
+    static long hash(String username, String email, String name, String githubId, List<String> groups) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        putNullable(hasher, username);
+        putNullable(hasher, email);
+        putNullable(hasher, name);
+        putNullable(hasher, githubId);
+        hasher.putInt(groups.size());
+        groups.forEach(group -> putNullable(hasher, group));
+        return hasher.hash().asLong();
+    }
+
+    private static void putNullable(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    WebhookUser toUser() {
+        return new WebhookUser(username, email, name, githubId, groups);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeUTF(username);
+        writeNullable(out, email);
+        writeNullable(out, name);
+        writeNullable(out, githubId);
+        out.writeInt(groups.size());
+        for (String group : groups) {
+            out.writeUTF(group);
+        }
+    }
+
+    static UserState read(DataInputStream in) throws IOException {
+        String username = in.readUTF();
+        String email = readNullable(in);
+        String name = readNullable(in);
+        String githubId = readNullable(in);
+        int count = in.readInt();
+        ImmutableList.Builder<String> groups = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            groups.add(in.readUTF());
+        }
+        return new UserState(username, email, name, githubId, groups.build());
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,28 @@
+package org.opennetworking.crowd.rest;
+
+import com.atlassian.sal.api.user.UserKey;
+import com.atlassian.sal.api.user.UserManager;
+
+import javax.ws.rs.core.Response;
+
+/**
+ * Limits resources to Crowd administrators.
+ */
+final class AdminCheck {
+    private AdminCheck() {
+    }
+
+    /**
+     * Returns an error response unless the caller is a Crowd administrator.
+     */
+    static Response check(UserManager userManager) {
+        UserKey user = userManager.getRemoteUserKey();
+        if (user == null) {
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        }
+        if (!userManager.isSystemAdmin(user)) {
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        return null;
+    }
+}
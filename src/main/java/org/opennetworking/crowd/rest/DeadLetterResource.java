@@ -0,0 +1,215 @@
+package org.opennetworking.crowd.rest;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.user.UserManager;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.opennetworking.crowd.poster.DeadLetter;
+import org.opennetworking.crowd.poster.DeadLetterQuery;
+import org.opennetworking.crowd.poster.DeadLetterStore;
+import org.opennetworking.crowd.poster.OnfEventPosterImpl;
+import org.opennetworking.crowd.poster.Subscriber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Lists, shows and redrives the events subscribers gave up on.
+ * <p>
+ * Served under /rest/onf-webhook/1.0/dead-letters to Crowd administrators only. List and
+ * redrive take optional subscriber, type, user, from and to (epoch millis) filters; lists are
+ * paged with after (the last id seen) and limit. Ids are per subscriber, so after needs a
+ * subscriber when there is more than one.
+ */
+@Path("/dead-letters")
+@Produces(MediaType.APPLICATION_JSON)
+public class DeadLetterResource {
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterResource.class);
+
+    private final Gson gson = new Gson();
+    private final OnfEventPosterImpl poster;
+    private final UserManager userManager;
+
+    @Inject
+    public DeadLetterResource(OnfEventPosterImpl poster, @ComponentImport UserManager userManager) {
+        this.poster = poster;
+        this.userManager = userManager;
+    }
+
+    /**
+     * Query parameters shared by list and redrive.
+     */
+    private static final class Criteria {
+        final List<Subscriber> subscribers;
+        final DeadLetterQuery query;
+
+        Criteria(List<Subscriber> subscribers, DeadLetterQuery query) {
+            this.subscribers = subscribers;
+            this.query = query;
+        }
+    }
+
+    @GET
+    public Response list(@QueryParam("subscriber") String subscriber,
+                         @QueryParam("type") String type,
+                         @QueryParam("user") String user,
+                         @QueryParam("from") Long from,
+                         @QueryParam("to") Long to,
+                         @QueryParam("after") @DefaultValue("0") long after,
+                         @QueryParam("limit") @DefaultValue("100") int limit) {
+        Response denied = AdminCheck.check(userManager);
+        if (denied != null) {
+            return denied;
+        }
+        Criteria criteria;
+        try {
+            criteria = criteria(subscriber, type, user, from, to);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        if (after > 0 && criteria.subscribers.size() > 1) {
+            return badRequest("after needs a subscriber");
+        }
+        criteria.query.after(after);
+        JsonArray letters = new JsonArray();
+        for (Subscriber s : criteria.subscribers) {
+            int remaining = Math.max(limit, 1) - letters.size();
+            if (s.getDeadLetters() != null && remaining > 0) {
+                for (DeadLetter letter : s.getDeadLetters().find(criteria.query.limit(remaining))) {
+                    letters.add(toJson(s, letter));
+                }
+            }
+        }
+        JsonObject result = new JsonObject();
+        result.add("deadLetters", letters);
+        return Response.ok(gson.toJson(result)).build();
+    }
+
+    @GET
+    @Path("/{subscriber}/{id}")
+    public Response get(@PathParam("subscriber") String subscriber, @PathParam("id") long id) {
+        Response denied = AdminCheck.check(userManager);
+        if (denied != null) {
+            return denied;
+        }
+        Subscriber s = subscriber(subscriber);
+        DeadLetterStore store = s != null ? s.getDeadLetters() : null;
+        DeadLetter letter = store != null ? store.get(id) : null;
+        if (letter == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        try {
+            byte[] payload = store.readPayload(id);
+            if (payload == null) {
+                return Response.status(Response.Status.NOT_FOUND).build(); // redriven meanwhile
+            }
+            JsonObject result = toJson(s, letter);
+            result.add("event", gson.fromJson(new String(payload, StandardCharsets.UTF_8), JsonElement.class));
+            return Response.ok(gson.toJson(result)).build();
+        } catch (IOException e) {
+            logger.error("Unable to read ONF Webhook dead letter " + id, e);
+            return Response.serverError().build();
+        }
+    }
+
+    /**
+     * Sends the matching dead letters to their subscribers again, at most rate events per
+     * second for each subscriber, and returns how many will be sent.
+     */
+    @POST
+    @Path("/redrive")
+    public Response redrive(@QueryParam("subscriber") String subscriber,
+                            @QueryParam("type") String type,
+                            @QueryParam("user") String user,
+                            @QueryParam("from") Long from,
+                            @QueryParam("to") Long to,
+                            @QueryParam("rate") @DefaultValue("10") double rate) {
+        Response denied = AdminCheck.check(userManager);
+        if (denied != null) {
+            return denied;
+        }
+        if (rate <= 0) {
+            return badRequest("rate must be positive");
+        }
+        Criteria criteria;
+        try {
+            criteria = criteria(subscriber, type, user, from, to);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        int scheduled = 0;
+        for (Subscriber s : criteria.subscribers) {
+            scheduled += s.redrive(criteria.query, rate);
+        }
+        logger.info("ONF Webhook redrive of {} dead letters requested by {}", scheduled,
+                    userManager.getRemoteUserKey().getStringValue());
+        return Response.status(Response.Status.ACCEPTED)
+                       .entity(gson.toJson(ImmutableMap.of("scheduled", scheduled)))
+                       .build();
+    }
+
+    private Criteria criteria(String subscriber, String type, String user, Long from, Long to) {
+        List<Subscriber> subscribers = poster.getSubscribers();
+        if (subscriber != null) {
+            subscribers = subscribers.stream()
+                                     .filter(s -> s.getName().equals(subscriber))
+                                     .collect(Collectors.toList());
+            if (subscribers.isEmpty()) {
+                throw new IllegalArgumentException("Unknown subscriber " + subscriber);
+            }
+        }
+        DeadLetterQuery query = new DeadLetterQuery().user(user);
+        if (type != null) {
+            try {
+                query.type(EventType.valueOf(type.toUpperCase(Locale.ENGLISH)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown event type " + type);
+            }
+        }
+        if (from != null && to != null && from > to) {
+            throw new IllegalArgumentException("from must not be after to");
+        }
+        if (from != null) {
+            query.from(from);
+        }
+        if (to != null) {
+            query.to(to);
+        }
+        return new Criteria(subscribers, query);
+    }
+
+    private Subscriber subscriber(String name) {
+        return poster.getSubscribers().stream().filter(s -> s.getName().equals(name)).findFirst().orElse(null);
+    }
+
+    private JsonObject toJson(Subscriber subscriber, DeadLetter letter) {
+        JsonObject json = gson.toJsonTree(letter).getAsJsonObject();
+        json.addProperty("subscriber", subscriber.getName());
+        return json;
+    }
+
+    private Response badRequest(String message) {
+        return Response.status(Response.Status.BAD_REQUEST)
+                       .entity(gson.toJson(ImmutableMap.of("error", message)))
+                       .build();
+    }
+}
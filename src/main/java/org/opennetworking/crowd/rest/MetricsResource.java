@@ -0,0 +1,40 @@
+package org.opennetworking.crowd.rest;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.user.UserManager;
+import com.google.gson.Gson;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Reports event counts, latencies, gauges and failures.
+ * <p>
+ * Served under /rest/onf-webhook/1.0/metrics to Crowd administrators only; the same figures
+ * are on JMX as org.opennetworking.crowd:type=WebhookMetrics.
+ */
+@Path("/metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class MetricsResource {
+    private final Gson gson = new Gson();
+    private final UserManager userManager;
+
+    @Inject
+    public MetricsResource(@ComponentImport UserManager userManager) {
+        this.userManager = userManager;
+    }
+
+    @GET
+    public Response metrics() {
+        Response denied = AdminCheck.check(userManager);
+        if (denied != null) {
+            return denied;
+        }
+        return Response.ok(gson.toJson(WebhookMetrics.get().snapshot())).build();
+    }
+}
@@ -0,0 +1,74 @@
+package org.opennetworking.crowd.rest;
+
+import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
+import com.atlassian.sal.api.user.UserManager;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.opennetworking.crowd.reconcile.Reconciler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Starts reconciliation runs and reports on the last one.
+ * <p>
+ * Served under /rest/onf-webhook/1.0/reconcile to Crowd administrators only.
+ */
+@Path("/reconcile")
+@Produces(MediaType.APPLICATION_JSON)
+public class ReconcileResource {
+    private static final Logger logger = LoggerFactory.getLogger(ReconcileResource.class);
+
+    private final Gson gson = new Gson();
+    private final Reconciler reconciler;
+    private final UserManager userManager;
+
+    @Inject
+    public ReconcileResource(Reconciler reconciler, @ComponentImport UserManager userManager) {
+        this.reconciler = reconciler;
+        this.userManager = userManager;
+    }
+
+    @GET
+    public Response status() {
+        Response denied = AdminCheck.check(userManager);
+        if (denied != null) {
+            return denied;
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("running", reconciler.isRunning());
+        if (reconciler.getLast() != null) {
+            result.add("last", gson.toJsonTree(reconciler.getLast()));
+        }
+        return Response.ok(gson.toJson(result)).build();
+    }
+
+    /**
+     * Starts a run; with full=true every user is sent as USER_ADDED rather than only changes.
+     */
+    @POST
+    public Response start(@QueryParam("full") @DefaultValue("false") boolean full) {
+        Response denied = AdminCheck.check(userManager);
+        if (denied != null) {
+            return denied;
+        }
+        if (!reconciler.start(full)) {
+            return Response.status(Response.Status.CONFLICT)
+                           .entity(gson.toJson(ImmutableMap.of("error", "a reconciliation is already running")))
+                           .build();
+        }
+        logger.info("ONF Webhook reconciliation{} requested by {}", full ? " (full)" : "",
+                    userManager.getRemoteUserKey().getStringValue());
+        return Response.status(Response.Status.ACCEPTED).build();
+    }
+}
@@ -0,0 +1,61 @@
+package ut.org.opennetworking.crowd;
+
+import org.junit.Test;
+import org.opennetworking.crowd.poster.CircuitBreaker;
+import org.opennetworking.crowd.poster.CircuitBreaker.State;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+    private final AtomicLong now = new AtomicLong(1000);
+    private final CircuitBreaker breaker = new CircuitBreaker("http://receiver", 3, 100, now::get);
+
+    private void fail(int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(breaker.allowRequest());
+            breaker.recordFailure();
+        }
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() {
+        fail(2);
+        breaker.recordSuccess(); // resets the count
+        fail(2);
+        assertEquals(State.CLOSED, breaker.getState());
+        fail(1);
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(100, breaker.getMillisUntilRetry());
+        assertEquals(1, breaker.getOpenCount());
+    }
+
+    @Test
+    public void testHalfOpenProbe() {
+        fail(3);
+        assertTrue(breaker.isRefusing());
+        now.addAndGet(100);
+        assertFalse(breaker.isRefusing());
+        assertTrue(breaker.allowRequest()); // the probe
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.isRefusing());
+        assertFalse(breaker.allowRequest()); // only one probe at a time
+
+        breaker.recordFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        now.addAndGet(100);
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertFalse(breaker.isRefusing());
+        assertTrue(breaker.allowRequest());
+        assertEquals(1, breaker.getOpenCount());
+        assertEquals(200, breaker.getTimeInOpenMillis());
+    }
+}
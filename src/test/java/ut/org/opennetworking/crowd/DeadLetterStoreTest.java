@@ -0,0 +1,131 @@
+package ut.org.opennetworking.crowd;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennetworking.crowd.poster.DeadLetter;
+import org.opennetworking.crowd.poster.DeadLetterQuery;
+import org.opennetworking.crowd.poster.DeadLetterStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_DELETED;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_UPDATED_EMAIL;
+
+public class DeadLetterStoreTest {
+    private File path;
+
+    @Before
+    public void setup() throws IOException {
+        path = new File(Files.createTempDirectory("onf-webhook-dead-letters").toFile(), "dead-letters.log");
+    }
+
+    private static byte[] payload(int i) {
+        return String.format("{\"event\":%d}", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Long> ids(List<DeadLetter> letters) {
+        return letters.stream().map(letter -> letter.id).collect(Collectors.toList());
+    }
+
+    private void fill(DeadLetterStore store) throws IOException {
+        store.add(USER_ADDED_GROUP, "alice", payload(1), payload(1).length, 404, 1, "rejected with 404");
+        store.add(USER_UPDATED_EMAIL, "Bob", payload(2), payload(2).length, 503, 8, "retries exhausted");
+        store.add(USER_ADDED_GROUP, "bob", payload(3), payload(3).length, 400, 1, "rejected with 400");
+        store.add(USER_DELETED, null, payload(4), payload(4).length, -1, 8, "retries exhausted");
+    }
+
+    @Test
+    public void testFind() throws IOException {
+        try (DeadLetterStore store = new DeadLetterStore(path)) {
+            fill(store);
+            assertEquals(4, store.size());
+            assertEquals(Arrays.asList(1L, 3L), ids(store.find(new DeadLetterQuery().type(USER_ADDED_GROUP))));
+            assertEquals(Arrays.asList(2L, 3L), ids(store.find(new DeadLetterQuery().user("BOB"))));
+            assertEquals(Arrays.asList(3L), ids(store.find(new DeadLetterQuery().user("bob").type(USER_ADDED_GROUP))));
+            assertEquals(Arrays.asList(3L, 4L), ids(store.find(new DeadLetterQuery().after(2))));
+            assertEquals(Arrays.asList(1L, 2L), ids(store.find(new DeadLetterQuery().limit(2))));
+            long now = System.currentTimeMillis();
+            assertEquals(4, store.find(new DeadLetterQuery().from(now - 60000).to(now + 1)).size());
+            assertTrue(store.find(new DeadLetterQuery().to(now - 60000)).isEmpty());
+
+            DeadLetter letter = store.get(2);
+            assertEquals(USER_UPDATED_EMAIL, letter.type);
+            assertEquals(503, letter.responseCode);
+            assertEquals(8, letter.attempts);
+            assertArrayEquals(payload(2), store.readPayload(2));
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        try (DeadLetterStore store = new DeadLetterStore(path)) {
+            fill(store);
+            assertTrue(store.remove(2));
+            assertFalse(store.remove(2));
+        }
+        // A torn record at the end is dropped
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(file.length());
+            file.writeInt(100);
+        }
+        try (DeadLetterStore store = new DeadLetterStore(path)) {
+            assertEquals(Arrays.asList(1L, 3L, 4L), ids(store.find(new DeadLetterQuery())));
+            assertNull(store.readPayload(2));
+            assertArrayEquals(payload(4), store.readPayload(4));
+            assertEquals("alice", store.get(1).username);
+            assertNull(store.get(4).username);
+            // New ids carry on after the highest one seen
+            assertEquals(5, store.add(USER_DELETED, null, payload(5), payload(5).length, 410, 1, "gone").id);
+        }
+    }
+
+    @Test
+    public void testIdsAreNotReusedOnceEmpty() throws IOException {
+        try (DeadLetterStore store = new DeadLetterStore(path)) {
+            fill(store);
+            for (long id = 1; id <= 4; id++) {
+                store.remove(id);
+            }
+            assertEquals(0, store.size());
+        }
+        try (DeadLetterStore store = new DeadLetterStore(path)) {
+            assertEquals(0, store.size());
+            assertEquals(5, store.add(USER_DELETED, null, payload(5), payload(5).length, 410, 1, "gone").id);
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        try (DeadLetterStore store = new DeadLetterStore(path)) {
+            byte[] payload = payload(0);
+            for (int i = 0; i < 3000; i++) {
+                store.add(USER_ADDED_GROUP, "user-" + i, payload, payload.length, 404, 1, "rejected with 404");
+            }
+            long before = path.length();
+            for (long id = 1; id <= 2000; id++) {
+                store.remove(id);
+            }
+            assertTrue(path.length() < before);
+            assertEquals(1000, store.size());
+            assertArrayEquals(payload, store.readPayload(2500));
+        }
+        try (DeadLetterStore store = new DeadLetterStore(path)) {
+            assertEquals(1000, store.size());
+            assertEquals(2001, store.find(new DeadLetterQuery().limit(1)).get(0).id);
+            assertEquals("user-2999", store.get(3000).username);
+        }
+    }
+}
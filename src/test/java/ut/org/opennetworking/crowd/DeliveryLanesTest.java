@@ -0,0 +1,164 @@
+package ut.org.opennetworking.crowd;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.After;
+import org.junit.Test;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.poster.DeliveryLanes;
+import org.opennetworking.crowd.poster.PendingEvent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GITHUB;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_DELETED;
+
+public class DeliveryLanesTest {
+    private static final List<EventType> STEPS = ImmutableList.of(USER_ADDED_GITHUB, USER_ADDED_GROUP, USER_DELETED);
+
+    private final ScheduledExecutorService receiver = Executors.newScheduledThreadPool(4);
+    private final ConcurrentMap<String, List<EventType>> seen = Maps.newConcurrentMap();
+    private DeliveryLanes lanes;
+
+    @After
+    public void teardown() {
+        receiver.shutdownNow();
+        if (lanes != null) {
+            lanes.close();
+        }
+    }
+
+    private static PendingEvent pending(String username, EventType type) {
+        WebhookEvent event = new WebhookEvent();
+        event.type = type;
+        if (type == USER_DELETED) {
+            // As the listener sends it
+            event.user = WebhookUser.deleted(username);
+            event.oldEmail = username + "@test";
+        } else {
+            event.user = new WebhookUser(username, username + "@test", username, null, ImmutableList.of());
+        }
+        return new PendingEvent(event, PendingEvent.NO_SEQUENCE, System.currentTimeMillis());
+    }
+
+    private void record(PendingEvent pending) {
+        seen.computeIfAbsent(pending.event.user.username, u -> Collections.synchronizedList(Lists.newArrayList()))
+            .add(pending.event.type);
+    }
+
+    private static void await(Runnable assertion) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                assertion.run();
+                return;
+            } catch (AssertionError e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void testPerUserOrderWithAsynchronousResponses() throws InterruptedException {
+        // Responses arrive after random delays, on other threads
+        Consumer<PendingEvent> sink = pending -> receiver.schedule(() -> {
+            record(pending);
+            lanes.next(pending);
+        }, ThreadLocalRandom.current().nextInt(3), TimeUnit.MILLISECONDS);
+        lanes = new DeliveryLanes(8, 100, 2, sink);
+        List<String> users = IntStream.range(0, 200).mapToObj(i -> "user-" + i).collect(Collectors.toList());
+        for (EventType step : STEPS) {
+            users.forEach(user -> lanes.offer(pending(user, step)));
+        }
+        await(() -> assertEquals(users.size(), seen.values().stream().filter(s -> s.size() == STEPS.size()).count()));
+        seen.values().forEach(steps -> assertEquals(STEPS, steps));
+        assertEquals(0, lanes.depth());
+    }
+
+    @Test
+    public void testUserDeletedWaitsForTheUsersEarlierEvents() throws InterruptedException {
+        Map<String, PendingEvent> held = Maps.newConcurrentMap();
+        Consumer<PendingEvent> sink = pending -> {
+            if (pending.event.type == USER_ADDED_GROUP && pending.attempts == 0) {
+                held.put(pending.event.user.username, pending); // waiting for a retry
+                return;
+            }
+            record(pending);
+            lanes.next(pending);
+        };
+        lanes = new DeliveryLanes(8, 100, 2, sink);
+        // A user outside the first lane
+        String username = IntStream.range(0, 100).mapToObj(i -> "user-" + i)
+                                   .filter(user -> Math.floorMod(user.hashCode(), 8) != 0)
+                                   .findFirst().get();
+        lanes.offer(pending(username, USER_ADDED_GROUP));
+        lanes.offer(pending(username, USER_DELETED));
+        await(() -> assertTrue(held.containsKey(username)));
+        Thread.sleep(50);
+        assertEquals(null, seen.get(username));
+        assertEquals(1, lanes.depth());
+
+        lanes.resend(held.get(username).failedAttempt(503));
+        await(() -> assertEquals(ImmutableList.of(USER_ADDED_GROUP, USER_DELETED), seen.get(username)));
+    }
+
+    @Test
+    public void testFailingUserOnlyHoldsUpItsLane() throws InterruptedException {
+        Map<String, PendingEvent> held = Maps.newConcurrentMap();
+        Consumer<PendingEvent> sink = pending -> {
+            if (pending.event.user.username.equals("failing") && pending.event.type == USER_ADDED_GITHUB
+                    && pending.attempts == 0) {
+                held.put("failing", pending); // waiting for a retry
+                return;
+            }
+            record(pending);
+            lanes.next(pending);
+        };
+        lanes = new DeliveryLanes(2, 100, 2, sink);
+        // A user in the failing user's lane, and one in the other lane
+        String sameLane = null;
+        String otherLane = null;
+        for (int i = 0; sameLane == null || otherLane == null; i++) {
+            String user = "user-" + i;
+            if (Math.floorMod(user.hashCode(), 2) == Math.floorMod("failing".hashCode(), 2)) {
+                sameLane = user;
+            } else {
+                otherLane = user;
+            }
+        }
+        for (EventType step : STEPS) {
+            for (String user : ImmutableList.of("failing", sameLane, otherLane)) {
+                lanes.offer(pending(user, step));
+            }
+        }
+        String other = otherLane;
+        await(() -> assertEquals(STEPS, seen.get(other)));
+        assertTrue(held.containsKey("failing"));
+        assertEquals(null, seen.get(sameLane));
+        assertEquals(5, lanes.depth());
+
+        lanes.resend(held.get("failing").failedAttempt(503));
+        String same = sameLane;
+        await(() -> assertEquals(STEPS, seen.get(same)));
+        assertEquals(STEPS, seen.get("failing"));
+    }
+}
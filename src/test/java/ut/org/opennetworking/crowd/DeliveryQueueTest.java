@@ -0,0 +1,183 @@
+package ut.org.opennetworking.crowd;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.poster.DeliveryQueue;
+import org.opennetworking.crowd.poster.DeliveryQueue.OverflowPolicy;
+import org.opennetworking.crowd.poster.PendingEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+
+public class DeliveryQueueTest {
+    private File spillPath;
+    private DeliveryQueue queue;
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final List<String> delivered = Collections.synchronizedList(Lists.newArrayList());
+    private final List<Integer> batchSizes = Collections.synchronizedList(Lists.newArrayList());
+    private final List<PendingEvent> dropped = Collections.synchronizedList(Lists.newArrayList());
+
+    @Before
+    public void setup() throws IOException {
+        spillPath = new File(Files.createTempDirectory("onf-webhook-test").toFile(), "queue.spill");
+    }
+
+    @After
+    public void teardown() {
+        gate.countDown();
+        if (queue != null) {
+            queue.close();
+        }
+    }
+
+    private static PendingEvent pending(String groupName) {
+        WebhookEvent event = new WebhookEvent();
+        event.type = USER_ADDED_GROUP;
+        event.groupName = groupName;
+        return new PendingEvent(event, PendingEvent.NO_SEQUENCE, System.currentTimeMillis());
+    }
+
+    private void deliver(List<PendingEvent> batch) {
+        try {
+            gate.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        batchSizes.add(batch.size());
+        batch.forEach(pending -> delivered.add(pending.event.groupName));
+    }
+
+    private void awaitDelivered(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delivered.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testDeliversInOrder() throws Exception {
+        queue = new DeliveryQueue(10, 1, 1, 0, OverflowPolicy.BLOCK, spillPath, this::deliver, dropped::add);
+        gate.countDown();
+        for (int i = 0; i < 5; i++) {
+            queue.offer(pending("group-" + i));
+        }
+        awaitDelivered(5);
+        assertEquals(Lists.newArrayList("group-0", "group-1", "group-2", "group-3", "group-4"), delivered);
+        assertEquals(0, queue.depth());
+        assertEquals(5, queue.deliveredCount());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        queue = new DeliveryQueue(2, 1, 1, 0, OverflowPolicy.DROP_OLDEST, spillPath, this::deliver, dropped::add);
+        queue.offer(pending("group-0")); // taken by the worker, which blocks on the gate
+        Thread.sleep(200);
+        for (int i = 1; i <= 4; i++) {
+            queue.offer(pending("group-" + i));
+        }
+        assertEquals(2, queue.depth());
+        gate.countDown();
+        awaitDelivered(3);
+        assertEquals(Lists.newArrayList("group-0", "group-3", "group-4"), delivered);
+        assertEquals(2, queue.droppedCount());
+        assertEquals("group-1", dropped.get(0).event.groupName);
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception {
+        queue = new DeliveryQueue(2, 1, 1, 0, OverflowPolicy.SPILL, spillPath, this::deliver, dropped::add);
+        queue.offer(pending("group-0"));
+        Thread.sleep(200);
+        for (int i = 1; i <= 6; i++) {
+            queue.offer(pending("group-" + i));
+        }
+        assertEquals(6, queue.depth());
+        assertTrue(spillPath.length() > 0);
+        gate.countDown();
+        awaitDelivered(7);
+        assertEquals(Lists.newArrayList("group-0", "group-1", "group-2", "group-3", "group-4", "group-5",
+                                        "group-6"), delivered);
+        assertEquals(0, queue.droppedCount());
+    }
+
+    @Test
+    public void testSpillKeepsOrderWhileDraining() throws Exception {
+        queue = new DeliveryQueue(2, 1, 1, 0, OverflowPolicy.SPILL, spillPath, this::deliver, dropped::add);
+        gate.countDown();
+        List<String> expected = Lists.newArrayList();
+        for (int i = 0; i < 500; i++) {
+            expected.add("group-" + i);
+            queue.offer(pending("group-" + i));
+        }
+        awaitDelivered(500);
+        assertEquals(expected, delivered);
+    }
+
+    @Test
+    public void testSpilledEventsInTheOutboxAreNotReloaded() throws Exception {
+        queue = new DeliveryQueue(2, 1, 1, 0, OverflowPolicy.SPILL, spillPath, this::deliver, dropped::add,
+                                  () -> true);
+        for (int i = 0; i < 2; i++) {
+            queue.offer(pending("queued-" + i));
+        }
+        PendingEvent persisted = pending("in-outbox");
+        queue.offer(new PendingEvent(persisted.event, 7, persisted.enqueuedAt));
+        queue.offer(pending("spilled"));
+        assertEquals(4, queue.depth());
+        queue.close();
+
+        // The outbox replays the persisted event; only the other one comes back from the spill file
+        gate.countDown();
+        queue = new DeliveryQueue(2, 1, 1, 0, OverflowPolicy.SPILL, spillPath, this::deliver, dropped::add);
+        awaitDelivered(1);
+        Thread.sleep(200);
+        assertEquals(Lists.newArrayList("spilled"), delivered);
+    }
+
+    @Test
+    public void testPausedQueueKeepsEventsAndRequeuedGoFirst() throws Exception {
+        AtomicBoolean paused = new AtomicBoolean(true);
+        queue = new DeliveryQueue(2, 1, 1, 0, OverflowPolicy.DROP_OLDEST, spillPath, this::deliver, dropped::add,
+                                  paused::get);
+        gate.countDown();
+        for (int i = 0; i < 3; i++) {
+            queue.offer(pending("group-" + i));
+        }
+        queue.requeue(pending("retried"));
+        Thread.sleep(200);
+        assertTrue(delivered.isEmpty());
+        // The queue's capacity and overflow policy still apply
+        assertEquals(3, queue.depth());
+        assertEquals("group-0", dropped.get(0).event.groupName);
+
+        paused.set(false);
+        awaitDelivered(3);
+        assertEquals(Lists.newArrayList("retried", "group-1", "group-2"), delivered);
+    }
+
+    @Test
+    public void testBatchesBySizeAndWindow() throws Exception {
+        queue = new DeliveryQueue(10, 1, 3, 200, OverflowPolicy.BLOCK, spillPath, this::deliver, dropped::add);
+        gate.countDown();
+        for (int i = 0; i < 4; i++) {
+            queue.offer(pending("group-" + i));
+        }
+        awaitDelivered(4);
+        assertEquals(Lists.newArrayList("group-0", "group-1", "group-2", "group-3"), delivered);
+        // The last event waits out the window on its own
+        assertEquals(Lists.newArrayList(3, 1), batchSizes);
+    }
+}
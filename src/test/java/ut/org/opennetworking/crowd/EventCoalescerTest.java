@@ -0,0 +1,190 @@
+package ut.org.opennetworking.crowd;
+
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.poster.EventCoalescer;
+import org.opennetworking.crowd.poster.PendingEvent;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventCoalescerTest {
+    private final List<PendingEvent> delivered = Lists.newArrayList();
+    private final List<PendingEvent> discarded = Lists.newArrayList();
+    private EventCoalescer coalescer;
+    private long seq;
+
+    @Before
+    public void setup() {
+        // Long enough that windows only close when the test flushes
+        coalescer = new EventCoalescer(60000, delivered::add, discarded::add);
+    }
+
+    @After
+    public void tearDown() {
+        coalescer.close();
+    }
+
+    private static WebhookEvent event(EventType type, String username, String groupName) {
+        WebhookEvent event = new WebhookEvent();
+        event.type = type;
+        if (username != null) {
+            event.user = new WebhookUser(UserTemplateWithAttributes.toUserWithNoAttributes(
+                    ImmutableUser.builder(7L, username).build()));
+        }
+        event.groupName = groupName;
+        return event;
+    }
+
+    private void offer(WebhookEvent event) {
+        coalescer.offer(new PendingEvent(event, seq++, System.currentTimeMillis()));
+    }
+
+    private List<EventType> deliveredTypes() {
+        return delivered.stream().map(p -> p.event.type).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testRepeatedEventsCollapse() {
+        offer(event(EventType.USER_ADDED_GROUP, "alice", "onf"));
+        offer(event(EventType.USER_ADDED_GROUP, "alice", "onf"));
+        offer(event(EventType.USER_ADDED_GROUP, "alice", "onf-members"));
+        coalescer.flush();
+        assertEquals(2, delivered.size());
+        assertEquals("onf", delivered.get(0).event.groupName);
+        assertEquals(1, delivered.get(0).seq); // the later snapshot
+        assertEquals(1, discarded.size());
+        assertEquals(1, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void testAddedThenDeletedCancelsOut() {
+        offer(event(EventType.USER_ADDED_GROUP, "alice", "onf"));
+        offer(event(EventType.USER_DELETED_GROUP, "alice", "onf"));
+        offer(event(EventType.USER_DELETED_GROUP, "bob", "onf"));
+        offer(event(EventType.USER_ADDED_GROUP, "bob", "onf"));
+        coalescer.flush();
+        // Only an add followed by a delete cancels; bob's delete and re-add both go out
+        assertEquals(ImmutableList.of(EventType.USER_DELETED_GROUP, EventType.USER_ADDED_GROUP), deliveredTypes());
+        assertEquals(2, discarded.size());
+    }
+
+    @Test
+    public void testEmailUpdatesMerge() {
+        WebhookEvent first = event(EventType.USER_UPDATED_EMAIL, "alice", null);
+        first.oldEmail = "a@onf";
+        first.newEmail = "b@onf";
+        WebhookEvent second = event(EventType.USER_UPDATED_EMAIL, "alice", null);
+        second.oldEmail = "b@onf";
+        second.newEmail = "c@onf";
+        offer(first);
+        offer(second);
+        coalescer.flush();
+        assertEquals(1, delivered.size());
+        assertEquals("a@onf", delivered.get(0).event.oldEmail);
+        assertEquals("c@onf", delivered.get(0).event.newEmail);
+
+        // Changed and changed back: nothing to send
+        WebhookEvent back = event(EventType.USER_UPDATED_EMAIL, "alice", null);
+        back.oldEmail = "c@onf";
+        back.newEmail = "a@onf";
+        offer(first);
+        offer(second);
+        offer(back);
+        coalescer.flush();
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void testOrderIsKept() {
+        offer(event(EventType.USER_ADDED, "alice", null));
+        offer(event(EventType.USER_ADDED_GROUP, "alice", "onf"));
+        offer(event(EventType.USER_UPDATED_EMAIL, "alice", null));
+        // No user: everything pending goes first
+        offer(event(EventType.USER_DELETED, null, null));
+        assertEquals(ImmutableList.of(EventType.USER_ADDED, EventType.USER_ADDED_GROUP,
+                                      EventType.USER_UPDATED_EMAIL, EventType.USER_DELETED), deliveredTypes());
+        assertTrue(discarded.isEmpty());
+    }
+
+    @Test
+    public void testMergedRepeatKeepsItsPlace() {
+        WebhookEvent first = event(EventType.USER_UPDATED_GITHUB, "alice", null);
+        first.oldGithubId = "a";
+        first.newGithubId = "b";
+        WebhookEvent second = event(EventType.USER_UPDATED_GITHUB, "alice", null);
+        second.oldGithubId = "b";
+        second.newGithubId = "c";
+        offer(first);
+        offer(event(EventType.USER_ADDED_GROUP, "alice", "onf"));
+        offer(second);
+        coalescer.flush();
+        assertEquals(ImmutableList.of(EventType.USER_UPDATED_GITHUB, EventType.USER_ADDED_GROUP), deliveredTypes());
+        assertEquals("a", delivered.get(0).event.oldGithubId);
+        assertEquals("c", delivered.get(0).event.newGithubId);
+    }
+
+    private static WebhookEvent github(EventType type, String oldId, String newId) {
+        WebhookEvent event = event(type, "alice", null);
+        event.oldGithubId = oldId;
+        event.newGithubId = newId;
+        return event;
+    }
+
+    @Test
+    public void testGithubEventsStayInOrder() {
+        offer(github(EventType.USER_DELETED_GITHUB, "x", null));
+        offer(github(EventType.USER_ADDED_GITHUB, null, "y"));
+        offer(github(EventType.USER_DELETED_GITHUB, "y", null));
+        coalescer.flush();
+        assertEquals(ImmutableList.of(EventType.USER_DELETED_GITHUB, EventType.USER_ADDED_GITHUB,
+                                      EventType.USER_DELETED_GITHUB), deliveredTypes());
+        assertEquals("y", delivered.get(2).event.oldGithubId);
+        assertTrue(discarded.isEmpty());
+    }
+
+    @Test
+    public void testNothingMergesAcrossUserDeletedAndAdded() {
+        offer(event(EventType.USER_ADDED_GROUP, "alice", "onf"));
+        offer(event(EventType.USER_DELETED, "alice", null));
+        offer(event(EventType.USER_ADDED, "alice", null));
+        offer(event(EventType.USER_ADDED_GROUP, "alice", "onf"));
+        coalescer.flush();
+        assertEquals(ImmutableList.of(EventType.USER_ADDED_GROUP, EventType.USER_DELETED, EventType.USER_ADDED,
+                                      EventType.USER_ADDED_GROUP), deliveredTypes());
+        assertTrue(discarded.isEmpty());
+    }
+
+    @Test
+    public void testDownstreamIsCalledOutsideTheLock() {
+        coalescer.close();
+        List<Boolean> locked = Lists.newArrayList();
+        coalescer = new EventCoalescer(60000, p -> locked.add(Thread.holdsLock(coalescer)), discarded::add);
+        offer(event(EventType.USER_ADDED, "alice", null));
+        offer(event(EventType.USER_DELETED, null, null));
+        assertEquals(ImmutableList.of(false, false), locked);
+    }
+
+    @Test
+    public void testWindowCloses() throws InterruptedException {
+        coalescer.close();
+        coalescer = new EventCoalescer(10, delivered::add, discarded::add);
+        offer(event(EventType.USER_ADDED, "alice", null));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (delivered.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, delivered.size());
+    }
+}
@@ -0,0 +1,82 @@
+package ut.org.opennetworking.crowd;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+import org.opennetworking.crowd.listener.FanOut;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class FanOutTest {
+
+    @Test
+    public void testPerUserOrder() throws InterruptedException {
+        FanOut fanOut = new FanOut(4, 10);
+        List<String> users = IntStream.range(0, 1000).mapToObj(i -> "user-" + i).collect(Collectors.toList());
+        ConcurrentMap<String, List<String>> seen = Maps.newConcurrentMap();
+        for (String step : ImmutableList.of("added", "removed", "re-added")) {
+            FanOut.Operation operation = fanOut.start(step);
+            // Submitted in pages, as the listener does
+            Lists.partition(users, 100).forEach(page -> operation.submit(page, username ->
+                    seen.computeIfAbsent(username, u -> Collections.synchronizedList(Lists.newArrayList()))
+                        .add(step)));
+            operation.done();
+        }
+        fanOut.close(10000);
+        assertEquals(users.size(), seen.size());
+        seen.values().forEach(steps -> assertEquals(ImmutableList.of("added", "removed", "re-added"), steps));
+        assertEquals(3 * users.size(), fanOut.getCompletedCount());
+    }
+
+    @Test
+    public void testFailuresAreCounted() throws InterruptedException {
+        FanOut fanOut = new FanOut(2, 10);
+        FanOut.Operation operation = fanOut.start("test");
+        operation.submit(ImmutableList.of("ok", "bad", "fine"), username -> {
+            if (username.equals("bad")) {
+                throw new IllegalStateException("lookup failed");
+            }
+        });
+        operation.done();
+        fanOut.close(10000);
+        assertEquals(2, fanOut.getCompletedCount());
+        assertEquals(1, fanOut.getFailedCount());
+    }
+
+    @Test
+    public void testInline() throws InterruptedException {
+        FanOut fanOut = new FanOut(0, 10);
+        List<String> seen = Lists.newArrayList();
+        FanOut.Operation operation = fanOut.start("test");
+        operation.submit(ImmutableList.of("a", "b"), seen::add);
+        assertEquals(ImmutableList.of("a", "b"), seen);
+        operation.done();
+        fanOut.close(0);
+    }
+
+    @Test
+    public void testAwaitUsers() throws InterruptedException {
+        FanOut fanOut = new FanOut(4, 10);
+        List<String> seen = Collections.synchronizedList(Lists.newArrayList());
+        FanOut.Operation operation = fanOut.start("test");
+        operation.submit(ImmutableList.of("alice"), username -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            seen.add(username);
+        });
+        operation.done();
+        fanOut.awaitUsers(ImmutableList.of("alice"));
+        assertEquals(ImmutableList.of("alice"), seen);
+        fanOut.close(10000);
+    }
+}
@@ -0,0 +1,117 @@
+package ut.org.opennetworking.crowd;
+
+import com.atlassian.crowd.model.group.GroupTemplate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennetworking.crowd.listener.GroupHierarchyCache;
+import org.opennetworking.crowd.listener.MembershipPager;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.atlassian.crowd.model.membership.MembershipType.GROUP_GROUP;
+import static com.atlassian.crowd.model.membership.MembershipType.GROUP_USER;
+import static org.junit.Assert.assertEquals;
+
+public class GroupHierarchyCacheTest {
+    private static final long DIRECTORY_ID = 7L;
+    private static final long MAX_STALENESS_MILLIS = 60000;
+    private static final int PAGE_SIZE = 2;
+
+    private MockDirectoryManager directoryManager;
+    private AtomicLong now;
+    private GroupHierarchyCache cache;
+
+    @Before
+    public void setup() throws Exception {
+        directoryManager = new MockDirectoryManager();
+        for (String group : ImmutableList.of("onf", "onf-members", "onf-tst", "onf-other")) {
+            directoryManager.addGroup(DIRECTORY_ID, new GroupTemplate(group, DIRECTORY_ID));
+        }
+        // onf-tst is nested in onf-members, which is nested in onf
+        directoryManager.addGroupToGroup(DIRECTORY_ID, "onf-members", "onf");
+        directoryManager.addGroupToGroup(DIRECTORY_ID, "onf-tst", "onf-members");
+        directoryManager.addUserToGroup(DIRECTORY_ID, "alice", "onf-tst");
+        now = new AtomicLong();
+        cache = new GroupHierarchyCache(directoryManager, new MembershipPager(directoryManager, PAGE_SIZE),
+                                        MAX_STALENESS_MILLIS, now::get);
+    }
+
+    @Test
+    public void testAncestorsAreCached() throws Exception {
+        assertEquals(ImmutableSet.of("onf-tst", "onf-members", "onf"),
+                     cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst"));
+        int queries = directoryManager.relationshipQueries;
+        assertEquals(ImmutableSet.of("onf-tst", "onf-members", "onf"),
+                     cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst"));
+        assertEquals(ImmutableSet.of("onf-members", "onf"),
+                     cache.getGroupAndAncestors(DIRECTORY_ID, "onf-members"));
+        assertEquals(queries, directoryManager.relationshipQueries);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testNestedGroupAddedInvalidatesDescendants() throws Exception {
+        cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst");
+        directoryManager.addGroupToGroup(DIRECTORY_ID, "onf-members", "onf-other");
+        cache.membershipsCreated(DIRECTORY_ID, "onf-other", GROUP_GROUP, ImmutableList.of("onf-members"));
+        assertEquals(ImmutableSet.of("onf-tst", "onf-members", "onf", "onf-other"),
+                     cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst"));
+
+        directoryManager.removeGroupFromGroup(DIRECTORY_ID, "onf-members", "onf");
+        cache.membershipDeleted(DIRECTORY_ID, "onf", GROUP_GROUP, "onf-members");
+        assertEquals(ImmutableSet.of("onf-tst", "onf-members", "onf-other"),
+                     cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst"));
+    }
+
+    private List<String> nestedUsers(String groupName) throws Exception {
+        List<String> users = Lists.newArrayList();
+        cache.forEachNestedUser(DIRECTORY_ID, groupName, users::addAll);
+        return users;
+    }
+
+    @Test
+    public void testUserAddedInvalidatesAncestorMembers() throws Exception {
+        cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst");
+        assertEquals(ImmutableList.of("alice"), nestedUsers("onf"));
+        int queries = directoryManager.relationshipQueries;
+        assertEquals(ImmutableList.of("alice"), nestedUsers("onf"));
+        assertEquals(queries, directoryManager.relationshipQueries);
+
+        directoryManager.addUserToGroup(DIRECTORY_ID, "bob", "onf-tst");
+        cache.membershipsCreated(DIRECTORY_ID, "onf-tst", GROUP_USER, ImmutableList.of("bob"));
+        assertEquals(ImmutableList.of("alice", "bob"), nestedUsers("onf"));
+    }
+
+    @Test
+    public void testLargeGroupsArePaged() throws Exception {
+        for (String user : ImmutableList.of("bob", "carol", "dave", "erin")) {
+            directoryManager.addUserToGroup(DIRECTORY_ID, user, "onf-members");
+        }
+        List<List<String>> pages = Lists.newArrayList();
+        cache.forEachNestedUser(DIRECTORY_ID, "onf", pages::add);
+        assertEquals(ImmutableList.of(ImmutableList.of("alice", "bob"), ImmutableList.of("carol", "dave"),
+                                      ImmutableList.of("erin")), pages);
+        // More than a page is not cached
+        int queries = directoryManager.relationshipQueries;
+        assertEquals(5, nestedUsers("onf").size());
+        assertEquals(queries + 3, directoryManager.relationshipQueries);
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst");
+        // A change made without an event is seen once the entries are too old
+        directoryManager.addGroupToGroup(DIRECTORY_ID, "onf", "onf-other");
+        now.addAndGet(MAX_STALENESS_MILLIS - 1);
+        assertEquals(MAX_STALENESS_MILLIS - 1, cache.getOldestEntryAgeMillis());
+        assertEquals(ImmutableSet.of("onf-tst", "onf-members", "onf"),
+                     cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst"));
+        now.addAndGet(1);
+        assertEquals(ImmutableSet.of("onf-tst", "onf-members", "onf", "onf-other"),
+                     cache.getGroupAndAncestors(DIRECTORY_ID, "onf-tst"));
+    }
+}
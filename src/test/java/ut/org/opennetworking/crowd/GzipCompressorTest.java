@@ -0,0 +1,92 @@
+package ut.org.opennetworking.crowd;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Test;
+import org.opennetworking.crowd.poster.GzipCompressor;
+import org.opennetworking.crowd.poster.PayloadBuffer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GzipCompressorTest {
+    private final GzipCompressor compressor = new GzipCompressor(Deflater.DEFAULT_COMPRESSION);
+
+    private final PayloadBuffer out = new PayloadBuffer();
+
+    @After
+    public void tearDown() {
+        compressor.close();
+    }
+
+    private PayloadBuffer compress(PayloadBuffer payload) {
+        compressor.compress(payload, out);
+        return out;
+    }
+
+    private static byte[] gunzip(PayloadBuffer gzipped) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray()))) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static PayloadBuffer payload(String s) {
+        PayloadBuffer payload = new PayloadBuffer();
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        payload.write(bytes, 0, bytes.length);
+        return payload;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        PayloadBuffer payload = payload(Strings.repeat("{\"groups\":[\"onf-members\",\"onf-tst\"]}", 1000));
+        PayloadBuffer gzipped = compress(payload);
+        assertTrue(gzipped.length() < payload.length() / 10);
+        assertArrayEquals(payload.toByteArray(), gunzip(gzipped));
+    }
+
+    @Test
+    public void testReusedForSmallerAndEmptyPayloads() throws IOException {
+        compress(payload(Strings.repeat("x", 100000)));
+        PayloadBuffer small = payload("{\"type\":\"USER_ADDED\"}");
+        assertArrayEquals(small.toByteArray(), gunzip(compress(small)));
+        assertArrayEquals(new byte[0], gunzip(compress(new PayloadBuffer())));
+    }
+
+    @Test
+    public void testCompressesAfterConcurrentUseAndClose() throws Exception {
+        PayloadBuffer payload = payload(Strings.repeat("{\"type\":\"USER_ADDED\"}", 100));
+        List<Future<byte[]>> results = Lists.newArrayList();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 20; i++) {
+                results.add(threads.submit(() -> {
+                    PayloadBuffer gzipped = new PayloadBuffer();
+                    compressor.compress(payload, gzipped);
+                    return gunzip(gzipped);
+                }));
+            }
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(payload.toByteArray(), result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+        compressor.close();
+        // Still works, without keeping the deflater
+        assertArrayEquals(payload.toByteArray(), gunzip(compress(payload)));
+    }
+}
@@ -13,6 +13,7 @@ import com.google.common.collect.Maps;
 public class MockAuditService implements AuditService {
 
     Map<String, List<AuditLogChangeset>> entries = Maps.newHashMap();
+    int searches = 0;
 
     @Override
     public void saveAudit(AuditLogChangeset auditLogChangeset) {
@@ -28,8 +29,11 @@ public class MockAuditService implements AuditService {
 
     @Override
     public <RESULT> List<RESULT> searchAuditLog(AuditLogQuery<RESULT> auditLogQuery) {
-        String user = auditLogQuery.getUsers().iterator().next().getName();
-        return (List<RESULT>) entries.getOrDefault(user, Lists.newArrayList());
+        searches++;
+        List<RESULT> results = Lists.newArrayList();
+        auditLogQuery.getUsers().forEach(user ->
+                results.addAll((List<RESULT>) entries.getOrDefault(user.getName(), Lists.newArrayList())));
+        return results;
     }
 
     @Override
@@ -17,8 +17,12 @@ import com.atlassian.crowd.model.user.*;
 import com.atlassian.crowd.search.query.entity.EntityQuery;
 import com.atlassian.crowd.search.query.membership.MembershipQuery;
 import com.atlassian.crowd.util.BoundedCount;
+import com.atlassian.crowd.search.Entity;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -27,6 +31,13 @@ import java.util.*;
 public class MockDirectoryManager implements DirectoryManager {
 
     Map<String, UserWithAttributes> users = Maps.newHashMap();
+    Set<String> groups = Sets.newHashSet();
+    // user or child group name -> direct parent groups
+    SetMultimap<String, String> userParents = HashMultimap.create();
+    SetMultimap<String, String> groupParents = HashMultimap.create();
+    int relationshipQueries = 0;
+    int userLookups = 0;
+    List<Directory> directories = ImmutableList.of();
 
     @Override
     public UserWithAttributes addUser(long l, UserTemplateWithAttributes userTemplateWithAttributes, PasswordCredential passwordCredential) throws InvalidCredentialException, InvalidUserException, DirectoryPermissionException, DirectoryNotFoundException, OperationFailedException, UserAlreadyExistsException {
@@ -36,12 +47,91 @@ public class MockDirectoryManager implements DirectoryManager {
 
     @Override
     public UserWithAttributes findUserWithAttributesByName(long l, String username) throws DirectoryNotFoundException, UserNotFoundException, OperationFailedException {
+        userLookups++;
         return users.get(username);
     }
 
+    @Override
+    public Group addGroup(long l, GroupTemplate groupTemplate) throws InvalidGroupException, DirectoryPermissionException, DirectoryNotFoundException, OperationFailedException {
+        groups.add(groupTemplate.getName());
+        return groupTemplate;
+    }
+
+    @Override
+    public Group findGroupByName(long l, String s) throws GroupNotFoundException, DirectoryNotFoundException, OperationFailedException {
+        if (!groups.contains(s)) {
+            throw new GroupNotFoundException(s);
+        }
+        return new GroupTemplate(s, l);
+    }
+
+    @Override
+    public void addUserToGroup(long l, String s, String s1) throws DirectoryPermissionException, DirectoryNotFoundException, UserNotFoundException, GroupNotFoundException, OperationFailedException, ReadOnlyGroupException, MembershipAlreadyExistsException {
+        userParents.put(s, s1);
+    }
+
+    @Override
+    public void addGroupToGroup(long l, String s, String s1) throws DirectoryPermissionException, DirectoryNotFoundException, GroupNotFoundException, InvalidMembershipException, NestedGroupsNotSupportedException, OperationFailedException, ReadOnlyGroupException, MembershipAlreadyExistsException {
+        groupParents.put(s, s1);
+    }
+
+    @Override
+    public void removeUserFromGroup(long l, String s, String s1) throws DirectoryPermissionException, DirectoryNotFoundException, UserNotFoundException, GroupNotFoundException, MembershipNotFoundException, OperationFailedException, ReadOnlyGroupException {
+        userParents.remove(s, s1);
+    }
+
+    @Override
+    public void removeGroupFromGroup(long l, String s, String s1) throws DirectoryPermissionException, GroupNotFoundException, DirectoryNotFoundException, InvalidMembershipException, MembershipNotFoundException, OperationFailedException, ReadOnlyGroupException {
+        groupParents.remove(s, s1);
+    }
+
+    @Override
+    public <T> List<T> searchDirectGroupRelationships(long l, MembershipQuery<T> membershipQuery) throws DirectoryNotFoundException, OperationFailedException {
+        return searchRelationships(membershipQuery, false);
+    }
+
     @Override
     public <T> List<T> searchNestedGroupRelationships(long l, MembershipQuery<T> membershipQuery) throws DirectoryNotFoundException, OperationFailedException {
-        return ImmutableList.of();
+        return searchRelationships(membershipQuery, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> searchRelationships(MembershipQuery<T> query, boolean nested) {
+        relationshipQueries++;
+        boolean matchUser = query.getEntityToMatch().getEntityType() == Entity.USER;
+        boolean returnUsers = query.getEntityToReturn().getEntityType() == Entity.USER;
+        Set<String> result = Sets.newTreeSet();
+        if (query.isFindChildren()) {
+            Set<String> groupsBelow = Sets.newHashSet(query.getEntityNameToMatch());
+            Deque<String> pending = new ArrayDeque<>(groupsBelow);
+            while (nested && !pending.isEmpty()) {
+                String group = pending.pop();
+                for (Map.Entry<String, String> membership : groupParents.entries()) {
+                    if (membership.getValue().equals(group) && groupsBelow.add(membership.getKey())) {
+                        pending.push(membership.getKey());
+                    }
+                }
+            }
+            for (Map.Entry<String, String> membership : (returnUsers ? userParents : groupParents).entries()) {
+                if (groupsBelow.contains(membership.getValue())) {
+                    result.add(membership.getKey());
+                }
+            }
+        } else {
+            result.addAll((matchUser ? userParents : groupParents).get(query.getEntityNameToMatch()));
+            Deque<String> pending = new ArrayDeque<>(result);
+            while (nested && !pending.isEmpty()) {
+                for (String parent : groupParents.get(pending.pop())) {
+                    if (result.add(parent)) {
+                        pending.push(parent);
+                    }
+                }
+            }
+        }
+        List<String> page = ImmutableList.copyOf(result);
+        int from = Math.min(query.getStartIndex(), page.size());
+        int to = query.getMaxResults() < 0 ? page.size() : Math.min(page.size(), from + query.getMaxResults());
+        return (List<T>) page.subList(from, to);
     }
 
     //-----------------------
@@ -58,7 +148,7 @@ public class MockDirectoryManager implements DirectoryManager {
 
     @Override
     public List<Directory> findAllDirectories() {
-        return null;
+        return directories;
     }
 
     @Override
@@ -88,7 +178,10 @@ public class MockDirectoryManager implements DirectoryManager {
 
     @Override
     public User findUserByName(long l, String s) throws DirectoryNotFoundException, UserNotFoundException, OperationFailedException {
-        return null;
+        if (!users.containsKey(s)) {
+            throw new UserNotFoundException(s);
+        }
+        return users.get(s);
     }
 
     @Nonnull
@@ -108,8 +201,13 @@ public class MockDirectoryManager implements DirectoryManager {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public <T> List<T> searchUsers(long l, EntityQuery<T> entityQuery) throws DirectoryNotFoundException, OperationFailedException {
-        return null;
+        // Usernames in no particular order, like the map holds them
+        List<String> names = ImmutableList.copyOf(users.keySet());
+        int from = Math.min(entityQuery.getStartIndex(), names.size());
+        int to = entityQuery.getMaxResults() < 0 ? names.size() : Math.min(names.size(), from + entityQuery.getMaxResults());
+        return (List<T>) names.subList(from, to);
     }
 
     @Override
@@ -147,11 +245,6 @@ public class MockDirectoryManager implements DirectoryManager {
 
     }
 
-    @Override
-    public Group findGroupByName(long l, String s) throws GroupNotFoundException, DirectoryNotFoundException, OperationFailedException {
-        return null;
-    }
-
     @Override
     public GroupWithAttributes findGroupWithAttributesByName(long l, String s) throws GroupNotFoundException, DirectoryNotFoundException, OperationFailedException {
         return null;
@@ -162,11 +255,6 @@ public class MockDirectoryManager implements DirectoryManager {
         return null;
     }
 
-    @Override
-    public Group addGroup(long l, GroupTemplate groupTemplate) throws InvalidGroupException, DirectoryPermissionException, DirectoryNotFoundException, OperationFailedException {
-        return null;
-    }
-
     @Override
     public Group updateGroup(long l, GroupTemplate groupTemplate) throws GroupNotFoundException, DirectoryNotFoundException, DirectoryPermissionException, InvalidGroupException, OperationFailedException, ReadOnlyGroupException {
         return null;
@@ -202,31 +290,6 @@ public class MockDirectoryManager implements DirectoryManager {
         return false;
     }
 
-    @Override
-    public void addUserToGroup(long l, String s, String s1) throws DirectoryPermissionException, DirectoryNotFoundException, UserNotFoundException, GroupNotFoundException, OperationFailedException, ReadOnlyGroupException, MembershipAlreadyExistsException {
-
-    }
-
-    @Override
-    public void addGroupToGroup(long l, String s, String s1) throws DirectoryPermissionException, DirectoryNotFoundException, GroupNotFoundException, InvalidMembershipException, NestedGroupsNotSupportedException, OperationFailedException, ReadOnlyGroupException, MembershipAlreadyExistsException {
-
-    }
-
-    @Override
-    public void removeUserFromGroup(long l, String s, String s1) throws DirectoryPermissionException, DirectoryNotFoundException, UserNotFoundException, GroupNotFoundException, MembershipNotFoundException, OperationFailedException, ReadOnlyGroupException {
-
-    }
-
-    @Override
-    public void removeGroupFromGroup(long l, String s, String s1) throws DirectoryPermissionException, GroupNotFoundException, DirectoryNotFoundException, InvalidMembershipException, MembershipNotFoundException, OperationFailedException, ReadOnlyGroupException {
-
-    }
-
-    @Override
-    public <T> List<T> searchDirectGroupRelationships(long l, MembershipQuery<T> membershipQuery) throws DirectoryNotFoundException, OperationFailedException {
-        return null;
-    }
-
     @Override
     public boolean isUserNestedGroupMember(long l, String s, String s1) throws DirectoryNotFoundException, OperationFailedException {
         return false;
@@ -0,0 +1,144 @@
+package ut.org.opennetworking.crowd;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennetworking.crowd.poster.NioTransport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioTransportTest {
+    private static final Map<String, String> HEADERS = ImmutableMap.of("Content-Type", "application/json");
+    private static final byte[] BODY = "{\"type\":\"USER_ADDED\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<byte[]> bodies = Collections.synchronizedList(Lists.newArrayList());
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(Sets.newHashSet());
+    private HttpServer server;
+    private NioTransport transport;
+    private volatile long delayMillis;
+    private volatile boolean chunked;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1000);
+        server.setExecutor(executor);
+        server.createContext("/", this::respond);
+        server.start();
+        transport = new NioTransport(5000, 1000, 1000, 1);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            bodies.add(ByteStreams.toByteArray(in));
+        }
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            return;
+        }
+        byte[] response = "accepted".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(202, chunked ? 0 : response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private CompletableFuture<Integer> send() throws IOException {
+        return transport.send(new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/hooks?id=1"),
+                              HEADERS, BODY, BODY.length);
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        assertEquals(202, (int) send().get(5, TimeUnit.SECONDS));
+        assertArrayEquals(BODY, bodies.get(0));
+    }
+
+    @Test
+    public void testChunkedResponsesReuseConnection() throws Exception {
+        chunked = true;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(202, (int) send().get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void testManySlowRequestsInFlight() throws Exception {
+        delayMillis = 500;
+        List<CompletableFuture<Integer>> responses = Lists.newArrayList();
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            responses.add(send());
+        }
+        for (CompletableFuture<Integer> response : responses) {
+            assertEquals(202, (int) response.get(5, TimeUnit.SECONDS));
+        }
+        // one selector thread, but the requests waited on the receiver together
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+        assertEquals(100, bodies.size());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        delayMillis = 3000;
+        assertFailsWith(SocketTimeoutException.class, send());
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        assertFailsWith(ConnectException.class,
+                        transport.send(new URL("http://127.0.0.1:" + port + "/"), HEADERS, BODY, BODY.length));
+    }
+
+    private static void assertFailsWith(Class<? extends IOException> type, CompletableFuture<Integer> response)
+            throws Exception {
+        try {
+            response.get(5, TimeUnit.SECONDS);
+            fail("Expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+        }
+    }
+}
@@ -2,6 +2,9 @@ package ut.org.opennetworking.crowd;
 
 import com.atlassian.crowd.embedded.api.Directory;
 import com.atlassian.crowd.embedded.api.DirectoryType;
+import com.atlassian.crowd.event.group.GroupDeletedEvent;
+import com.atlassian.crowd.event.group.GroupMembershipDeletedEvent;
+import com.atlassian.crowd.event.group.GroupMembershipsCreatedEvent;
 import com.atlassian.crowd.event.user.UserAttributeDeletedEvent;
 import com.atlassian.crowd.event.user.UserAttributeStoredEvent;
 import com.atlassian.crowd.event.user.UserCreatedEvent;
@@ -10,8 +13,11 @@ import com.atlassian.crowd.exception.*;
 import com.atlassian.crowd.manager.directory.DirectoryManager;
 import com.atlassian.crowd.manager.directory.DirectoryPermissionException;
 import com.atlassian.crowd.model.directory.ImmutableDirectory;
+import com.atlassian.crowd.model.group.GroupTemplate;
+import com.atlassian.crowd.model.membership.MembershipType;
 import com.atlassian.crowd.model.user.ImmutableUser;
 import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -23,20 +29,25 @@ import org.opennetworking.crowd.api.WebhookUser;
 import org.opennetworking.crowd.api.WebhookEvent.EventType;
 import org.opennetworking.crowd.listener.OnfEventListener;
 import org.opennetworking.crowd.api.OnfEventPoster;
+import org.opennetworking.crowd.poster.PosterSettings;
 
+import java.nio.file.Files;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.opennetworking.crowd.api.WebhookEvent.EventType.*;
 import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
 
 public class OnfEventListenerTest
 {
     private MockOnfEventPoster eventPoster;
-    private DirectoryManager directoryManager;
+    private MockDirectoryManager directoryManager;
     private MockAuditService auditService;
     private OnfEventListener eventListener;
     private static Directory directory = ImmutableDirectory
@@ -46,12 +57,24 @@ public class OnfEventListenerTest
 
     static class MockOnfEventPoster implements OnfEventPoster {
         List<WebhookEvent> events = Lists.newArrayList();
+        boolean wantsGroups = true;
+        Consumer<WebhookEvent> undeliveredHandler;
 
         @Override
         public void send(WebhookEvent event) {
             // Mock event send
             events.add(event);
         }
+
+        @Override
+        public boolean wantsGroups(EventType type) {
+            return wantsGroups;
+        }
+
+        @Override
+        public void onUndelivered(Consumer<WebhookEvent> handler) {
+            undeliveredHandler = handler;
+        }
     }
 
     private static UserTemplateWithAttributes getUser(String username, String email, String githubId) {
@@ -73,7 +96,9 @@ public class OnfEventListenerTest
         eventPoster = new MockOnfEventPoster();
         directoryManager = new MockDirectoryManager();
         auditService = new MockAuditService();
-        eventListener = new OnfEventListener(eventPoster, directoryManager, auditService);
+        // Handle membership changes on the test thread
+        PosterSettings settings = new PosterSettings(ImmutableMap.of("ONF_WEBHOOK_FANOUT_THREADS", "0")::get);
+        eventListener = new OnfEventListener(eventPoster, directoryManager, auditService, settings);
     }
 
     @Test
@@ -137,6 +162,8 @@ public class OnfEventListenerTest
         assertEquals(2, eventPoster.events.size());
         assertEquals(expectedEvent, eventPoster.events.get(1));
         assertEquals(2, auditService.entries.get(username).size());
+        // The old Github ID comes from the audit index rather than another audit log search
+        assertEquals(1, auditService.searches);
     }
 
     @Test
@@ -154,6 +181,56 @@ public class OnfEventListenerTest
         assertEquals(1, auditService.entries.get(username).size());
     }
 
+    @Test
+    public void testUserModifiedGithubNoopWithStateStore() throws Exception {
+        PosterSettings settings = new PosterSettings(ImmutableMap.of(
+                "ONF_WEBHOOK_FANOUT_THREADS", "0",
+                "ONF_WEBHOOK_STATE_STORE", "true",
+                "ONF_WEBHOOK_DATA_DIR", Files.createTempDirectory("onf-webhook-state").toString())::get);
+        eventListener = new OnfEventListener(eventPoster, directoryManager, auditService, settings);
+        String username = "test-user";
+        String oldGithubId = "test-github";
+        UserTemplateWithAttributes user = AddUserWithGithub(username, oldGithubId);
+        int searches = auditService.searches;
+        Map<String, Set<String>> attributes = ImmutableMap.of(GITHUB_ID_ATTRIBUTE, ImmutableSet.of(oldGithubId));
+        UserAttributeStoredEvent event = new UserAttributeStoredEvent(null, directory, user, attributes);
+        eventListener.userAttributeStored(event);
+        assertEquals(1, eventPoster.events.size());
+        // Decided from the state store alone
+        assertEquals(searches, auditService.searches);
+        assertEquals(1, auditService.entries.get(username).size());
+        eventListener.close();
+    }
+
+    @Test
+    public void testStateStoreForgetsUndeliveredAndDeletedGroups() throws Exception {
+        PosterSettings settings = new PosterSettings(ImmutableMap.of(
+                "ONF_WEBHOOK_FANOUT_THREADS", "0",
+                "ONF_WEBHOOK_STATE_STORE", "true",
+                "ONF_WEBHOOK_DATA_DIR", Files.createTempDirectory("onf-webhook-state").toString())::get);
+        eventListener = new OnfEventListener(eventPoster, directoryManager, auditService, settings);
+        directoryManager.directories = ImmutableList.of(directory);
+        directoryManager.addUser(7, getUser("test-user", "test@test", "test-github"), null);
+        directoryManager.addGroup(7, new GroupTemplate("onf", 7));
+        directoryManager.addUserToGroup(7, "test-user", "onf");
+        GroupMembershipsCreatedEvent added = new GroupMembershipsCreatedEvent(
+                null, directory, ImmutableList.of("test-user"), "onf", MembershipType.GROUP_USER);
+        eventListener.groupMembersCreated(added);
+        eventListener.groupMembersCreated(added);
+        assertEquals(1, eventPoster.events.size());
+
+        // The event was dead-lettered, so the same change is sent again
+        eventPoster.undeliveredHandler.accept(eventPoster.events.get(0));
+        eventListener.groupMembersCreated(added);
+        assertEquals(2, eventPoster.events.size());
+
+        // The group was deleted and created again
+        eventListener.groupDeleted(new GroupDeletedEvent(null, directory, "onf"));
+        eventListener.groupMembersCreated(added);
+        assertEquals(3, eventPoster.events.size());
+        eventListener.close();
+    }
+
     @Test
     public void testUserDeletedGithub() throws
             DirectoryPermissionException, DirectoryNotFoundException, InvalidCredentialException,
@@ -183,9 +260,96 @@ public class OnfEventListenerTest
         eventListener.userDeleted(event);
         WebhookEvent expectedEvent = new WebhookEvent();
         expectedEvent.type = USER_DELETED;
+        expectedEvent.user = WebhookUser.deleted(username);
         expectedEvent.oldGithubId = githubId;
         assertEquals(2, eventPoster.events.size());
         assertEquals(expectedEvent, eventPoster.events.get(1));
         assertEquals(2, auditService.entries.get(username).size());
    }
-}
\ No newline at end of file
+
+    @Test
+    public void testUsersDeletedInBulk() throws
+            DirectoryPermissionException, DirectoryNotFoundException, InvalidCredentialException,
+            InvalidUserException, OperationFailedException, UserAlreadyExistsException {
+        List<String> usernames = ImmutableList.of("user-1", "user-2", "user-3");
+        for (String username : usernames) {
+            AddUserWithGithub(username, username + "-github");
+        }
+        int searches = auditService.searches;
+        UsersDeletedEvent event = new UsersDeletedEvent(null, directory, usernames);
+        eventListener.userDeleted(event);
+        // One audit log search for all three users
+        assertEquals(searches + 1, auditService.searches);
+        assertEquals(6, eventPoster.events.size());
+        for (int i = 0; i < usernames.size(); i++) {
+            WebhookEvent expectedEvent = new WebhookEvent();
+            expectedEvent.type = USER_DELETED;
+            expectedEvent.user = WebhookUser.deleted(usernames.get(i));
+            expectedEvent.oldGithubId = usernames.get(i) + "-github";
+            assertEquals(expectedEvent, eventPoster.events.get(3 + i));
+            assertEquals(2, auditService.entries.get(usernames.get(i)).size());
+        }
+    }
+
+    @Test
+    public void testUserAddedGroupResolvesUserOnce() throws Exception {
+        UserTemplateWithAttributes user = getUser("test-user", "test@test", "test-github");
+        directoryManager.addUser(7, user, null);
+        directoryManager.addGroup(7, new GroupTemplate("onf", 7));
+        directoryManager.addGroup(7, new GroupTemplate("onf-members", 7));
+        directoryManager.addGroupToGroup(7, "onf-members", "onf");
+        directoryManager.addUserToGroup(7, "test-user", "onf-members");
+        GroupMembershipsCreatedEvent event = new GroupMembershipsCreatedEvent(
+                null, directory, ImmutableList.of("test-user"), "onf-members", MembershipType.GROUP_USER);
+        eventListener.groupMembersCreated(event);
+        assertEquals(2, eventPoster.events.size());
+        // One user lookup (and one group search) for both groups
+        assertSame(eventPoster.events.get(0).user, eventPoster.events.get(1).user);
+        assertEquals(ImmutableList.of("onf", "onf-members"), eventPoster.events.get(0).user.groups);
+    }
+
+    @Test
+    public void testMembershipEventsReuseCachedUser() throws Exception {
+        UserTemplateWithAttributes user = getUser("test-user", "test@test", "test-github");
+        directoryManager.addUser(7, user, null);
+        directoryManager.addGroup(7, new GroupTemplate("onf-members", 7));
+        directoryManager.addGroup(7, new GroupTemplate("onf-tst", 7));
+        directoryManager.addUserToGroup(7, "test-user", "onf-members");
+        eventListener.groupMembersCreated(new GroupMembershipsCreatedEvent(
+                null, directory, ImmutableList.of("test-user"), "onf-members", MembershipType.GROUP_USER));
+        assertEquals(1, directoryManager.userLookups);
+
+        // The second event finds the user in the cache, with their groups looked up again
+        directoryManager.addUserToGroup(7, "test-user", "onf-tst");
+        eventListener.groupMembersCreated(new GroupMembershipsCreatedEvent(
+                null, directory, ImmutableList.of("test-user"), "onf-tst", MembershipType.GROUP_USER));
+        assertEquals(1, directoryManager.userLookups);
+        assertEquals(2, eventPoster.events.size());
+        assertEquals(ImmutableList.of("onf-members"), eventPoster.events.get(0).user.groups);
+        assertEquals(ImmutableList.of("onf-members", "onf-tst"), eventPoster.events.get(1).user.groups);
+    }
+
+    @Test
+    public void testGroupsOnlyLoadedWhenWanted() throws Exception {
+        eventPoster.wantsGroups = false;
+        UserTemplateWithAttributes user = getUser("test-user", "test@test", "test-github");
+        directoryManager.addUser(7, user, null);
+        directoryManager.addGroup(7, new GroupTemplate("onf-members", 7));
+        directoryManager.addGroup(7, new GroupTemplate("onf-tst", 7));
+        directoryManager.addUserToGroup(7, "test-user", "onf-members");
+        directoryManager.addUserToGroup(7, "test-user", "onf-tst");
+        eventListener.groupMembersCreated(new GroupMembershipsCreatedEvent(
+                null, directory, ImmutableList.of("test-user"), "onf-members", MembershipType.GROUP_USER));
+        assertEquals(1, eventPoster.events.size());
+        assertEquals("test@test", eventPoster.events.get(0).user.email);
+        assertNull(eventPoster.events.get(0).user.groups);
+
+        // Removal always checks the user's other groups
+        directoryManager.removeUserFromGroup(7, "test-user", "onf-tst");
+        eventListener.groupMemberDeleted(new GroupMembershipDeletedEvent(
+                null, directory, "test-user", "onf-tst", MembershipType.GROUP_USER));
+        assertEquals(2, eventPoster.events.size());
+        assertEquals(USER_DELETED_GROUP, eventPoster.events.get(1).type);
+        assertEquals(ImmutableList.of("onf-members"), eventPoster.events.get(1).user.groups);
+    }
+}
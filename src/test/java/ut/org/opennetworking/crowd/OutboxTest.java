@@ -0,0 +1,126 @@
+package ut.org.opennetworking.crowd;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennetworking.crowd.poster.Outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("onf-webhook-outbox").toFile();
+    }
+
+    private static byte[] payload(int i) {
+        return String.format("{\"event\":%d}", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<String> replay(Outbox outbox) {
+        List<String> replayed = Lists.newArrayList();
+        outbox.replay((seq, payload) -> replayed.add(seq + "=" + new String(payload, StandardCharsets.UTF_8)));
+        return replayed;
+    }
+
+    @Test
+    public void testReplayAfterRestart() throws IOException {
+        Outbox outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(i, outbox.append(payload(i)));
+        }
+        outbox.ack(1);
+        outbox.ack(3); // out of order; the cursor stays at 1
+        outbox.close();
+
+        outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        assertEquals(4, outbox.append(payload(4)));
+        // Only what the earlier run left
+        assertEquals(Lists.newArrayList("2={\"event\":2}", "3={\"event\":3}"), replay(outbox));
+        assertEquals(3, outbox.pending());
+        outbox.close();
+    }
+
+    @Test
+    public void testReplayedEventsCanBeAcknowledgedByOtherThreads() throws Exception {
+        Outbox outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        for (int i = 1; i <= 3; i++) {
+            outbox.append(payload(i));
+        }
+        outbox.close();
+        Outbox reopened = new Outbox(dir, SEGMENT_SIZE, 1);
+        // As a delivery worker would, while the replay waits for room in the queue
+        CompletableFuture.runAsync(() -> reopened.replay(
+                (seq, payload) -> CompletableFuture.runAsync(() -> reopened.ack(seq)).join()))
+                         .get(5, TimeUnit.SECONDS);
+        assertEquals(0, reopened.pending());
+        reopened.close();
+    }
+
+    @Test
+    public void testReplayReadsEverySegmentInOrder() throws IOException {
+        Outbox outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        List<String> expected = Lists.newArrayList();
+        for (int i = 1; i <= 200; i++) {
+            outbox.append(payload(i));
+            expected.add(i + "=" + new String(payload(i), StandardCharsets.UTF_8));
+        }
+        assertTrue(outbox.segmentCount() > 1);
+        outbox.close();
+        outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        assertEquals(expected, replay(outbox));
+        outbox.close();
+    }
+
+    @Test
+    public void testRolloverAndCompaction() throws IOException {
+        Outbox outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        int count = 200; // ~20 bytes per record, several segments
+        for (int i = 1; i <= count; i++) {
+            outbox.append(payload(i));
+        }
+        int segments = outbox.segmentCount();
+        assertTrue(segments > 1);
+        for (int i = 1; i < count; i++) {
+            outbox.ack(i);
+        }
+        assertEquals(1, outbox.segmentCount());
+        assertEquals(1, outbox.pending());
+        outbox.close();
+        outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        assertEquals(Lists.newArrayList(count + "={\"event\":" + count + "}"), replay(outbox));
+        outbox.close();
+    }
+
+    @Test
+    public void testTornWriteIsDiscarded() throws IOException {
+        Outbox outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        outbox.append(payload(1));
+        outbox.append(payload(2));
+        outbox.close();
+
+        // Corrupt the payload of the second record
+        File segment = dir.listFiles((d, name) -> name.endsWith(".log"))[0];
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        bytes[8 + payload(1).length + 8] ^= 0xff;
+        Files.write(segment.toPath(), bytes);
+
+        outbox = new Outbox(dir, SEGMENT_SIZE, 1);
+        assertEquals(Lists.newArrayList("1={\"event\":1}"), replay(outbox));
+        assertEquals(2, outbox.append(payload(2)));
+        outbox.close();
+    }
+}
@@ -0,0 +1,209 @@
+package ut.org.opennetworking.crowd;
+
+import com.atlassian.crowd.exception.DirectoryNotFoundException;
+import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.model.group.GroupTemplate;
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.atlassian.crowd.search.query.entity.EntityQuery;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opennetworking.crowd.api.OnfEventPoster;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.listener.UserStateStore;
+import org.opennetworking.crowd.poster.PosterSettings;
+import org.opennetworking.crowd.reconcile.Reconciler;
+import org.opennetworking.crowd.reconcile.Reconciliation;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.*;
+import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
+
+public class ReconcilerTest {
+    private static final long DIRECTORY_ID = 7L;
+
+    private final List<WebhookEvent> events = Lists.newArrayList();
+    private MockDirectoryManager directoryManager;
+    private Reconciler reconciler;
+    private File dataDir;
+    private LiveChange afterRead; // made once every user has been read
+
+    private interface LiveChange {
+        void run() throws Exception;
+    }
+
+    @Before
+    public void setup() throws Exception {
+        directoryManager = new MockDirectoryManager() {
+            @Override
+            public <T> List<T> searchUsers(long directoryId, EntityQuery<T> query)
+                    throws DirectoryNotFoundException, OperationFailedException {
+                List<T> page = super.searchUsers(directoryId, query);
+                if (page.size() < query.getMaxResults() && afterRead != null) {
+                    LiveChange change = afterRead;
+                    afterRead = null;
+                    try {
+                        change.run();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return page;
+            }
+        };
+        dataDir = Files.createTempDirectory("onf-webhook-reconcile").toFile();
+        // Pages and sort runs of two users, so five users take several of each
+        PosterSettings settings = new PosterSettings(ImmutableMap.<String, String>builder()
+                .put("ONF_WEBHOOK_DATA_DIR", dataDir.toString())
+                .put("ONF_WEBHOOK_RECONCILE_DIRECTORIES", String.valueOf(DIRECTORY_ID))
+                .put("ONF_WEBHOOK_RECONCILE_RUN_SIZE", "2")
+                .put("ONF_WEBHOOK_PAGE_SIZE", "2")
+                .put("ONF_WEBHOOK_RECONCILE_USERS_PER_SECOND", "100000")
+                .build()::get);
+        reconciler = new Reconciler(new OnfEventPoster() {
+            @Override
+            public void send(WebhookEvent event) {
+                events.add(event);
+            }
+        }, directoryManager, settings);
+
+        addUser("alice", "alice@example.com", "alice-gh", "devs");
+        addUser("bob", "bob@example.com", null, "devs");
+        addUser("carol", "carol@example.com", "carol-gh", "devs", "admins");
+        addUser("erin", "erin@example.com", "erin-gh");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        reconciler.close();
+    }
+
+    private void addUser(String username, String email, String githubId, String... groups) throws Exception {
+        UserTemplateWithAttributes user = UserTemplateWithAttributes.toUserWithNoAttributes(
+                ImmutableUser.builder(DIRECTORY_ID, username).emailAddress(email).build());
+        if (githubId != null) {
+            user.setAttribute(GITHUB_ID_ATTRIBUTE, githubId);
+        }
+        directoryManager.addUser(DIRECTORY_ID, user, null);
+        for (String group : groups) {
+            directoryManager.addGroup(DIRECTORY_ID, new GroupTemplate(group, DIRECTORY_ID));
+            directoryManager.addUserToGroup(DIRECTORY_ID, username, group);
+        }
+    }
+
+    private List<String> summary() {
+        return events.stream()
+                     .map(e -> e.type + " " + (e.user != null ? e.user.username : e.oldEmail) +
+                             (e.groupName != null ? " " + e.groupName : ""))
+                     .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testFirstRunOnlyRecordsState() {
+        Reconciliation result = reconciler.run(false);
+        assertNull(result.error);
+        assertEquals(4, result.users);
+        assertEquals(0, events.size());
+
+        // Nothing changed since
+        result = reconciler.run(false);
+        assertEquals(0, result.events);
+        assertEquals(0, events.size());
+    }
+
+    @Test
+    public void testSendsOnlyChanges() throws Exception {
+        reconciler.run(false);
+
+        addUser("alice", "alice@example.org", "alice-gh", "devs");
+        addUser("bob", "bob@example.com", "bob-gh", "devs");
+        directoryManager.removeUserFromGroup(DIRECTORY_ID, "carol", "admins");
+        directoryManager.addUserToGroup(DIRECTORY_ID, "carol", "ops");
+        addUser("dave", "dave@example.com", null, "devs");
+        directoryManager.users.remove("erin");
+
+        Reconciliation result = reconciler.run(false);
+        assertNull(result.error);
+        assertEquals(Arrays.asList("USER_UPDATED_EMAIL alice",
+                                   "USER_ADDED_GITHUB bob",
+                                   "USER_ADDED_GROUP carol ops",
+                                   "USER_DELETED_GROUP carol admins",
+                                   "USER_ADDED dave",
+                                   "USER_DELETED erin"),
+                     summary());
+        assertEquals("alice@example.com", events.get(0).oldEmail);
+        assertEquals("alice@example.org", events.get(0).newEmail);
+        assertEquals("bob-gh", events.get(1).newGithubId);
+        assertEquals("erin@example.com", events.get(5).oldEmail);
+        assertEquals("erin-gh", events.get(5).oldGithubId);
+        assertEquals(1, result.added);
+        assertEquals(3, result.updated);
+        assertEquals(1, result.deleted);
+
+        events.clear();
+        reconciler.run(false);
+        assertEquals(0, events.size());
+    }
+
+    @Test
+    public void testFullRunSendsEveryone() {
+        reconciler.run(false);
+        Reconciliation result = reconciler.run(true);
+        assertEquals(Arrays.asList("USER_ADDED alice", "USER_ADDED bob", "USER_ADDED carol", "USER_ADDED erin"),
+                     summary());
+        assertEquals(Arrays.asList("admins", "devs"), events.get(2).user.groups);
+        assertEquals(4, result.added);
+    }
+
+    @Test
+    public void testLiveChangeAfterReadIsNotUndone() throws Exception {
+        reconciler.run(false);
+
+        directoryManager.addUserToGroup(DIRECTORY_ID, "carol", "ops");
+        addUser("dave", "dave@example.com", null, "devs");
+        afterRead = () -> {
+            directoryManager.removeUserFromGroup(DIRECTORY_ID, "carol", "ops");
+            directoryManager.addUserToGroup(DIRECTORY_ID, "carol", "qa");
+            directoryManager.users.remove("dave");
+        };
+
+        reconciler.run(false);
+        assertEquals(Arrays.asList("USER_ADDED_GROUP carol qa"), summary());
+
+        // What was sent is what was saved
+        events.clear();
+        reconciler.run(false);
+        assertEquals(0, events.size());
+    }
+
+    @Test
+    public void testChangesSentLiveAreNotSentAgain() throws Exception {
+        reconciler.run(false);
+        try (UserStateStore stateStore = new UserStateStore(new File(dataDir, "user-state.map"), 16)) {
+            reconciler.setStateStore(stateStore);
+            // The listener sent these as they happened
+            addUser("alice", "alice@example.org", "alice-gh", "devs");
+            stateStore.record(DIRECTORY_ID, "alice", UserStateStore.EMAIL, "alice@example.org");
+            directoryManager.addUserToGroup(DIRECTORY_ID, "carol", "ops");
+            stateStore.recordMembership(DIRECTORY_ID, "carol", "ops", true);
+            // This one was lost
+            directoryManager.removeUserFromGroup(DIRECTORY_ID, "carol", "admins");
+
+            Reconciliation result = reconciler.run(false);
+            assertEquals(Arrays.asList("USER_DELETED_GROUP carol admins"), summary());
+            assertEquals(1, result.updated);
+            assertTrue(stateStore.isSameMembership(DIRECTORY_ID, "carol", "admins", false));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ut.org.opennetworking.crowd;
+
+import org.junit.Test;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.poster.PendingEvent;
+import org.opennetworking.crowd.poster.RetryScheduler;
+import org.opennetworking.crowd.poster.RetryScheduler.Outcome;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RetrySchedulerTest {
+    @Test
+    public void testOutcomes() {
+        assertEquals(Outcome.DELIVERED, Outcome.of(200));
+        assertEquals(Outcome.DELIVERED, Outcome.of(204));
+        assertEquals(Outcome.RETRY, Outcome.of(-1));
+        assertEquals(Outcome.RETRY, Outcome.of(429));
+        assertEquals(Outcome.RETRY, Outcome.of(503));
+        assertEquals(Outcome.REJECTED, Outcome.of(400));
+        assertEquals(Outcome.REJECTED, Outcome.of(404));
+    }
+
+    @Test
+    public void testRetriesUntilExhausted() throws InterruptedException {
+        BlockingQueue<PendingEvent> redelivered = new LinkedBlockingQueue<>();
+        BlockingQueue<PendingEvent> exhausted = new LinkedBlockingQueue<>();
+        try (RetryScheduler scheduler = new RetryScheduler(1, 10, 3, redelivered::add, exhausted::add)) {
+            PendingEvent pending = new PendingEvent(new WebhookEvent(), 7, System.currentTimeMillis());
+            for (int attempt = 1; attempt < 3; attempt++) {
+                scheduler.retry(pending, 503);
+                pending = redelivered.poll(5, TimeUnit.SECONDS);
+                assertEquals(attempt, pending.attempts);
+                assertEquals(7, pending.seq);
+            }
+            scheduler.retry(pending, 503);
+            PendingEvent gaveUp = exhausted.poll(5, TimeUnit.SECONDS);
+            assertEquals(3, gaveUp.attempts);
+            assertEquals(503, gaveUp.lastResponseCode);
+            assertEquals(2, scheduler.getRetryCount());
+            assertEquals(1, scheduler.getExhaustedCount());
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ut.org.opennetworking.crowd;
+
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.poster.PosterSettings;
+import org.opennetworking.crowd.poster.SubscriptionFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionFilterTest {
+    private static WebhookEvent event(EventType type, String groupName, String... userGroups) {
+        WebhookEvent event = new WebhookEvent();
+        event.type = type;
+        event.groupName = groupName;
+        event.user = new WebhookUser(UserTemplateWithAttributes.toUserWithNoAttributes(
+                ImmutableUser.builder(7L, "test-user").build()));
+        event.user.groups = ImmutableList.copyOf(userGroups);
+        return event;
+    }
+
+    @Test
+    public void testFilters() {
+        PosterSettings settings = new PosterSettings(ImmutableMap.of(
+                "ONF_WEBHOOK_EVENT_TYPES", "user_added_group, USER_UPDATED_EMAIL, NOT_A_TYPE",
+                "ONF_WEBHOOK_GROUP_PREFIXES", "onf-,cla-")::get);
+        SubscriptionFilter filter = SubscriptionFilter.fromSettings(settings);
+        assertTrue(filter.accepts(event(EventType.USER_ADDED_GROUP, "onf-members")));
+        assertFalse(filter.accepts(event(EventType.USER_ADDED_GROUP, "other")));
+        assertFalse(filter.accepts(event(EventType.USER_DELETED_GROUP, "onf-members")));
+        // Events without a group match on the user's groups
+        assertTrue(filter.accepts(event(EventType.USER_UPDATED_EMAIL, null, "other", "cla-signers")));
+        assertFalse(filter.accepts(event(EventType.USER_UPDATED_EMAIL, null, "other")));
+    }
+
+    @Test
+    public void testNeedsGroupsOnlyToMatchUserGroups() {
+        SubscriptionFilter filter = new SubscriptionFilter(
+                ImmutableList.of(EventType.USER_ADDED_GROUP, EventType.USER_UPDATED_EMAIL), ImmutableList.of("onf-"));
+        assertFalse(filter.needsGroups(EventType.USER_ADDED_GROUP)); // matched on the event's group
+        assertTrue(filter.needsGroups(EventType.USER_UPDATED_EMAIL));
+        assertFalse(filter.needsGroups(EventType.USER_DELETED)); // not accepted at all
+        assertFalse(new SubscriptionFilter(ImmutableList.of(), ImmutableList.of()).needsGroups(EventType.USER_ADDED));
+    }
+
+    @Test
+    public void testEmptyFilterAcceptsEverything() {
+        SubscriptionFilter filter = SubscriptionFilter.fromSettings(new PosterSettings(key -> null));
+        for (EventType type : EventType.values()) {
+            assertTrue(filter.accepts(event(type, "any")));
+        }
+    }
+
+    @Test
+    public void testOnlyUnknownTypesAcceptsNothing() {
+        SubscriptionFilter filter = SubscriptionFilter.fromSettings(new PosterSettings(ImmutableMap.of(
+                "ONF_WEBHOOK_EVENT_TYPES", "USER_ADDED_GRUOP, NOT_A_TYPE")::get));
+        for (EventType type : EventType.values()) {
+            assertFalse(filter.accepts(event(type, "any")));
+            assertFalse(filter.needsGroups(type));
+        }
+    }
+
+    @Test
+    public void testSubscriberSettingsFallBack() {
+        PosterSettings settings = new PosterSettings(ImmutableMap.of(
+                "ONF_WEBHOOK_WORKERS", "2",
+                "ONF_WEBHOOK_TEAM_SYNC_WORKERS", "4")::get);
+        assertEquals(4, settings.forSubscriber("team-sync").getInt("ONF_WEBHOOK_WORKERS", 1));
+        assertEquals(2, settings.forSubscriber("cla").getInt("ONF_WEBHOOK_WORKERS", 1));
+        assertEquals(1, settings.forSubscriber("cla").getInt("ONF_WEBHOOK_BATCH_SIZE", 1));
+    }
+}
@@ -0,0 +1,76 @@
+package ut.org.opennetworking.crowd;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opennetworking.crowd.listener.UserStateStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.opennetworking.crowd.listener.UserStateStore.EMAIL;
+import static org.opennetworking.crowd.listener.UserStateStore.GITHUB_ID;
+
+public class UserStateStoreTest {
+    private File path;
+
+    @Before
+    public void setup() throws IOException {
+        path = new File(Files.createTempDirectory("onf-webhook-state").toFile(), "user-state.map");
+    }
+
+    @Test
+    public void testRecordAndCompare() throws IOException {
+        try (UserStateStore store = new UserStateStore(path, 16)) {
+            // Nothing is known until recorded, not even that a value is unset
+            assertFalse(store.isSame(1, "alice", GITHUB_ID, "alice-gh"));
+            assertFalse(store.isSame(1, "alice", GITHUB_ID, null));
+            store.record(1, "alice", GITHUB_ID, "alice-gh");
+            assertTrue(store.isSame(1, "Alice", GITHUB_ID, "alice-gh"));
+            assertFalse(store.isSame(1, "alice", GITHUB_ID, "alice-gh2"));
+            assertFalse(store.isSame(2, "alice", GITHUB_ID, "alice-gh"));
+            store.record(1, "alice", GITHUB_ID, null);
+            assertTrue(store.isSame(1, "alice", GITHUB_ID, ""));
+
+            store.recordMembership(1, "alice", "devs", true);
+            assertTrue(store.isSameMembership(1, "alice", "devs", true));
+            assertFalse(store.isSameMembership(1, "alice", "devs", false));
+            assertFalse(store.isSameMembership(1, "alice", "admins", false));
+            store.recordMembership(1, "alice", "devs", false);
+            assertTrue(store.isSameMembership(1, "alice", "devs", false));
+
+            // A group deleted and created again starts without members
+            store.recordMembership(1, "alice", "ops", true);
+            store.recordMembership(1, "bob", "ops", true);
+            store.forgetGroup(1, "ops");
+            assertFalse(store.isSameMembership(1, "alice", "ops", true));
+            assertFalse(store.isSameMembership(1, "bob", "ops", true));
+            assertTrue(store.isSameMembership(1, "alice", "devs", false));
+
+            store.record(1, "alice", EMAIL, "alice@example.com");
+            store.forget(1, "alice");
+            assertFalse(store.isSame(1, "alice", EMAIL, "alice@example.com"));
+            assertFalse(store.isSameMembership(1, "alice", "devs", false));
+        }
+    }
+
+    @Test
+    public void testGrowsAndSurvivesRestart() throws IOException {
+        try (UserStateStore store = new UserStateStore(path, 16)) {
+            for (int i = 0; i < 1000; i++) {
+                store.record(1, "user" + i, EMAIL, "user" + i + "@example.com");
+            }
+            assertEquals(1000, store.size());
+        }
+        try (UserStateStore store = new UserStateStore(path, 16)) {
+            assertEquals(1000, store.size());
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(store.isSame(1, "user" + i, EMAIL, "user" + i + "@example.com"));
+            }
+            assertFalse(store.isSame(1, "user1000", EMAIL, "user1000@example.com"));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ut.org.opennetworking.crowd;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookEvent.EventType;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.poster.PayloadBuffer;
+import org.opennetworking.crowd.poster.WebhookCborWriter;
+import org.opennetworking.crowd.poster.WebhookJsonWriter;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_DELETED;
+
+public class WebhookCborWriterTest {
+    private final WebhookCborWriter writer = new WebhookCborWriter();
+
+    private byte[] write(WebhookEvent event) {
+        PayloadBuffer buffer = new PayloadBuffer();
+        writer.write(event, buffer);
+        return buffer.toByteArray();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testFieldIds() {
+        WebhookEvent event = new WebhookEvent();
+        event.type = USER_DELETED;
+        event.user = new WebhookUser("ab", null, null, null, ImmutableList.of("g"));
+        event.oldEmail = "x";
+        assertArrayEquals(bytes(0xa3,                   // map of 3
+                                0x00, 0x05,             // type: USER_DELETED
+                                0x01, 0xa2,             // user: map of 2
+                                0x00, 0x62, 'a', 'b',   //   username: "ab"
+                                0x03, 0x81, 0x61, 'g',  //   groups: ["g"]
+                                0x05, 0x61, 'x'),       // oldEmail: "x"
+                          write(event));
+    }
+
+    @Test
+    public void testStringLengthsInUtf8Bytes() {
+        WebhookEvent event = new WebhookEvent();
+        // 20 ASCII chars, a 2-byte char and a 4-byte code point: 26 bytes, so a one-byte length follows 0x78
+        event.groupName = "abcdefghijklmnopqrstü😀";
+        byte[] cbor = write(event);
+        assertEquals(1 + 1 + 2 + 26, cbor.length);
+        assertArrayEquals(bytes(0xa1, 0x02, 0x78, 26), Arrays.copyOf(cbor, 4));
+    }
+
+    @Test
+    public void testTypeIdsAreDistinct() {
+        Set<Integer> ids = Sets.newHashSet();
+        for (EventType type : EventType.values()) {
+            assertTrue(type.name(), ids.add(WebhookCborWriter.typeId(type)));
+        }
+    }
+
+    @Test
+    public void testSmallerThanJson() {
+        WebhookEvent event = new WebhookEvent();
+        event.type = USER_ADDED_GROUP;
+        event.user = new WebhookUser("test-user", "test@opennetworking.org", "Test User", "test-github",
+                                     ImmutableList.of("onf-members", "onf-tst", "onf-admins"));
+        event.groupName = "onf-tst";
+        PayloadBuffer json = new PayloadBuffer();
+        new WebhookJsonWriter().write(ImmutableList.of(event, event), json);
+        PayloadBuffer cbor = new PayloadBuffer();
+        writer.write(ImmutableList.of(event, event), cbor);
+        assertEquals(0x82, cbor.bytes()[0] & 0xff); // array of 2
+        assertTrue(cbor.length() < json.length() * 2 / 3);
+    }
+}
@@ -0,0 +1,92 @@
+package ut.org.opennetworking.crowd;
+
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.Gson;
+import org.apache.commons.codec.digest.HmacUtils;
+import org.junit.Test;
+import org.opennetworking.crowd.api.WebhookEvent;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.poster.PayloadBuffer;
+import org.opennetworking.crowd.poster.WebhookJsonWriter;
+import org.opennetworking.crowd.poster.WebhookSigner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED_GROUP;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_UPDATED_EMAIL;
+import static org.opennetworking.crowd.api.WebhookUser.GITHUB_ID_ATTRIBUTE;
+
+public class WebhookJsonWriterTest {
+    private final Gson gson = new Gson();
+    private final WebhookJsonWriter writer = new WebhookJsonWriter();
+
+    private static WebhookUser user(String username, String displayName, String email) {
+        UserTemplateWithAttributes user = UserTemplateWithAttributes.toUserWithNoAttributes(
+                ImmutableUser.builder(7L, username)
+                             .displayName(displayName)
+                             .emailAddress(email)
+                             .build());
+        user.setAttribute(GITHUB_ID_ATTRIBUTE, "test-github");
+        return new WebhookUser(user);
+    }
+
+    private byte[] write(WebhookEvent event) {
+        PayloadBuffer buffer = new PayloadBuffer();
+        writer.write(event, buffer);
+        return buffer.toByteArray();
+    }
+
+    @Test
+    public void testMatchesGson() {
+        WebhookEvent event = new WebhookEvent();
+        event.type = USER_ADDED_GROUP;
+        event.user = user("test-user", "Test User", "test@test");
+        event.user.groups = ImmutableList.of("onf-members", "onf-tst");
+        event.groupName = "onf-members";
+        assertEquals(gson.toJson(event), new String(write(event), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEscapingAndNonAscii() {
+        WebhookEvent event = new WebhookEvent();
+        event.type = USER_UPDATED_EMAIL;
+        // Non-ASCII display name, characters Gson escapes, and a supplementary code point
+        event.user = user("j\u00fcrgen",
+                          "J\u00fcrgen \"J\" <M\u00fcller> & S\u00f8n = 'ok'\n\t\u2028 \ud83d\ude00 \u65e5\u672c",
+                          "j@test");
+        event.oldEmail = "old\\@test";
+        event.newEmail = "j@test";
+        assertArrayEquals(gson.toJson(event).getBytes(StandardCharsets.UTF_8), write(event));
+    }
+
+    @Test
+    public void testBatchIsJsonArray() {
+        WebhookEvent first = new WebhookEvent();
+        first.type = USER_ADDED_GROUP;
+        first.groupName = "a";
+        WebhookEvent second = new WebhookEvent();
+        second.type = USER_ADDED_GROUP;
+        second.groupName = "b";
+        PayloadBuffer buffer = new PayloadBuffer();
+        writer.write(Arrays.asList(first, second), buffer);
+        assertEquals(gson.toJson(Arrays.asList(first, second)), buffer.toString());
+    }
+
+    @Test
+    public void testSignatureMatchesHmacSha256() {
+        WebhookEvent event = new WebhookEvent();
+        event.type = USER_ADDED_GROUP;
+        event.user = user("j\u00fcrgen", "J\u00fcrgen", "j@test");
+        byte[] payload = write(event);
+        WebhookSigner signer = new WebhookSigner("secret");
+        String expected = HmacUtils.hmacSha256Hex("secret".getBytes(StandardCharsets.UTF_8), payload);
+        assertEquals(expected, signer.sign(payload, payload.length));
+        // The reused Mac starts fresh for every payload
+        assertEquals(expected, signer.sign(payload, payload.length));
+    }
+}
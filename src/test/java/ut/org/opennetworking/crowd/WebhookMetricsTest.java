@@ -0,0 +1,58 @@
+package ut.org.opennetworking.crowd;
+
+import org.junit.Test;
+import org.opennetworking.crowd.metrics.Histogram;
+import org.opennetworking.crowd.metrics.WebhookMetrics;
+import org.opennetworking.crowd.metrics.WebhookMetrics.Failure;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_ADDED;
+import static org.opennetworking.crowd.api.WebhookEvent.EventType.USER_UPDATED_EMAIL;
+
+public class WebhookMetricsTest {
+    @Test
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(0.99));
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertEquals(1000, histogram.getMax());
+        // Within a bucket (25%) of the exact value, and never past the maximum
+        long p50 = histogram.getPercentile(0.5);
+        assertTrue(String.valueOf(p50), p50 >= 500 && p50 <= 625);
+        long p99 = histogram.getPercentile(0.99);
+        assertTrue(String.valueOf(p99), p99 >= 990 && p99 <= 1000);
+        assertEquals(1000, histogram.getPercentile(1));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSnapshot() {
+        WebhookMetrics metrics = new WebhookMetrics();
+        metrics.sent(USER_ADDED);
+        metrics.sent(USER_ADDED);
+        metrics.suppressed(USER_UPDATED_EMAIL);
+        metrics.failure(Failure.TIMEOUT);
+        metrics.time(WebhookMetrics.Timer.HTTP_POST, System.nanoTime());
+        metrics.gauge("queued", () -> 3);
+
+        Map<String, Object> snapshot = metrics.snapshot();
+        assertEquals(2L, ((Map<String, Long>) snapshot.get("sent")).get("USER_ADDED").longValue());
+        assertEquals(1L, ((Map<String, Long>) snapshot.get("suppressed")).get("USER_UPDATED_EMAIL").longValue());
+        assertEquals(1L, ((Map<String, Long>) snapshot.get("failures")).get("TIMEOUT").longValue());
+        assertEquals(3L, ((Map<String, Long>) snapshot.get("gauges")).get("queued").longValue());
+        assertEquals(1, metrics.getTimer(WebhookMetrics.Timer.HTTP_POST).getCount());
+
+        metrics.removeGauge("queued");
+        assertTrue(!((Map<String, Long>) metrics.snapshot().get("gauges")).containsKey("queued"));
+    }
+}
@@ -0,0 +1,60 @@
+package ut.org.opennetworking.crowd;
+
+import com.atlassian.crowd.model.user.ImmutableUser;
+import com.atlassian.crowd.model.user.UserTemplateWithAttributes;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.opennetworking.crowd.api.WebhookUser;
+import org.opennetworking.crowd.listener.WebhookUserCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WebhookUserCacheTest {
+    private static final long TTL_MILLIS = 1000;
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    };
+
+    private static WebhookUser user(String username) {
+        return new WebhookUser(UserTemplateWithAttributes.toUserWithNoAttributes(
+                ImmutableUser.builder(7L, username).build()));
+    }
+
+    @Test
+    public void testEntriesExpire() {
+        WebhookUserCache cache = new WebhookUserCache(TTL_MILLIS, ticker);
+        WebhookUser user = user("test-user");
+        cache.put(7L, "test-user", user);
+        assertSame(user, cache.get(7L, "Test-User"));
+        assertNull(cache.get(8L, "test-user"));
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(TTL_MILLIS));
+        assertNull(cache.get(7L, "test-user"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        WebhookUserCache cache = new WebhookUserCache(TTL_MILLIS, ticker);
+        cache.put(7L, "alice", user("alice"));
+        cache.put(7L, "bob", user("bob"));
+        cache.invalidate(7L, ImmutableList.of("alice", "bob"));
+        assertNull(cache.get(7L, "alice"));
+        assertNull(cache.get(7L, "bob"));
+    }
+
+    @Test
+    public void testDisabled() {
+        WebhookUserCache cache = new WebhookUserCache(0, ticker);
+        cache.put(7L, "test-user", user("test-user"));
+        assertNull(cache.get(7L, "test-user"));
+    }
+}